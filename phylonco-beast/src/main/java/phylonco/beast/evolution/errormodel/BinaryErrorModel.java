@@ -9,8 +9,8 @@ import beast.base.evolution.datatype.DataType;
 @Description("Binary error model with parameters as false positive and false negative probabilities")
 public class BinaryErrorModel extends ErrorModel {
 	
-    final public Input<RealParameter> alphaInput = new Input<>("alpha", "the false positive probability", Input.Validate.REQUIRED);
-    final public Input<RealParameter> betaInput = new Input<>("beta", "the false negative probability",  Input.Validate.REQUIRED);
+    final public Input<RealParameter> alphaInput = new Input<>("alpha", "the false positive probability, either one value or one value for each taxon in the alignment", Input.Validate.REQUIRED);
+    final public Input<RealParameter> betaInput = new Input<>("beta", "the false negative probability, either one value or one value for each taxon in the alignment",  Input.Validate.REQUIRED);
 
     private RealParameter alpha;
     private RealParameter beta;
@@ -22,30 +22,20 @@ public class BinaryErrorModel extends ErrorModel {
         // init error parameters
         alpha = alphaInput.get();
         beta = betaInput.get();
+        initMatrices(getMatrixCount(alpha, beta));
 
-        if (updateMatrix) {
-            setupErrorMatrix();
-            updateMatrix = false;
-        }
+        setupErrorMatrix();
     }
 
-     @Override
-    public void setupErrorMatrix() {
-         if (errorMatrix == null) {
-             errorMatrix = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
-         }
-         for (int trueState = 0; trueState < datatype.getStateCount(); trueState++) {
-             for (int observedState = 0; observedState < datatype.mapCodeToStateSet.length; observedState++) {
-                 // rows are observed states X, columns are true states Y
-                 errorMatrix[observedState][trueState] = getProbability(observedState, trueState);
-             }
-         }
+    @Override
+    public double getProbability(int observedState, int trueState) {
+        return getProbability(0, observedState, trueState);
     }
 
     @Override
-    public double getProbability(int observedState, int trueState) {
-        double a = alpha.getValue();
-        double b = beta.getValue();
+    public double getProbability(int matrixIndex, int observedState, int trueState) {
+        double a = getValue(alpha, matrixIndex);
+        double b = getValue(beta, matrixIndex);
         double prob;
         if (datatype.isAmbiguousCode(observedState)) {
             prob = getStatePartial(observedState, trueState);
@@ -74,12 +64,8 @@ public class BinaryErrorModel extends ErrorModel {
     }
 
     @Override
-    public double[] getProbabilities(int observedState) {
-        if (updateMatrix) {
-            setupErrorMatrix();
-            updateMatrix = false;
-        }
-        return errorMatrix[observedState];
+    public boolean parametersAreDirty(int matrixIndex) {
+        return isDirty(alpha, matrixIndex) || isDirty(beta, matrixIndex);
     }
 
     @Override
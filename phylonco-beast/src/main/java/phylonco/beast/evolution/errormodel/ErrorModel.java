@@ -4,18 +4,61 @@ import beast.base.inference.CalculationNode;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.datatype.DataType;
+import beast.base.inference.parameter.RealParameter;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.GammaDistribution;
+import org.apache.commons.math.distribution.GammaDistributionImpl;
+
+import java.util.Arrays;
 
 @Description("Error model abstract class")
 public abstract class ErrorModel extends CalculationNode {
 
     final public Input<DataType> datatypeInput = new Input<>("datatype", "the datatype of the alignment, for example nucleotide etc", Input.Validate.REQUIRED);
+    final public Input<Integer> categoryCountInput = new Input<>("categoryCount", "number of categories of error rates across sites, " +
+            "the error parameters of each category are scaled by a gamma distributed rate with mean one (default 1)", 1);
+    final public Input<RealParameter> shapeInput = new Input<>("shape", "shape parameter of the gamma distribution of error rates across sites, " +
+            "required when there is more than one category");
 
     protected DataType.Base datatype;
 
-    protected double[][] errorMatrix;
-    protected double[][] storedErrorMatrix;
+    /**
+     * number of error matrices, one for each index of vector-valued error parameters
+     */
+    protected int matrixCount = 1;
+
+    /**
+     * number of error rate categories, each category has its own set of error matrices
+     */
+    protected int categoryCount = 1;
+
+    protected RealParameter shape;
+
+    /**
+     * rates that scale the error parameters of each category, stored for restore
+     */
+    protected double[] categoryRates;
+    protected double[] storedCategoryRates;
+
+    /**
+     * two preallocated buffers for each error matrix, store and restore swap between them,
+     * indexed by buffer, matrix index, observed code and true state,
+     * the matrix index is category * matrix count + index of the error parameters
+     */
+    protected double[][][][] errorMatrices;
+    protected int[] currentMatrixIndex;
+    protected int[] storedMatrixIndex;
+
+    /**
+     * flags for error matrices that need to be recalculated
+     */
+    protected boolean[] updateMatrices;
 
-    protected boolean updateMatrix = true;
+    /**
+     * error parameter and values used instead of the parameter values while calculating an error matrix for a proposal
+     */
+    protected RealParameter proposedParameter;
+    protected double[] proposedValues;
 
     /**
      * initialises error model and performs input checking
@@ -28,9 +71,159 @@ public abstract class ErrorModel extends CalculationNode {
             String message = "Error model cannot handle data type " + datatype.getTypeDescription();
             throw new IllegalArgumentException(message);
         }
+        categoryCount = categoryCountInput.get();
+        shape = shapeInput.get();
+        if (categoryCount < 1) {
+            throw new IllegalArgumentException("Error model needs at least one error rate category, got " + categoryCount);
+        }
+        if (categoryCount > 1 && shape == null) {
+            throw new IllegalArgumentException("Error model with " + categoryCount + " error rate categories needs a shape parameter");
+        }
+        categoryRates = new double[categoryCount];
+        storedCategoryRates = new double[categoryCount];
+        calculateCategoryRates();
+        initMatrices(1);
         // subclasses to set up error matrix
     }
 
+    /**
+     * allocates the buffer indices and update flags for a number of error matrices in each category,
+     * subclasses with vector-valued parameters call this after reading their parameters
+     * @param matrixCount number of error matrices
+     */
+    protected void initMatrices(int matrixCount) {
+        this.matrixCount = matrixCount;
+        int totalCount = matrixCount * categoryCount;
+        errorMatrices = new double[2][totalCount][][];
+        currentMatrixIndex = new int[totalCount];
+        storedMatrixIndex = new int[totalCount];
+        updateMatrices = new boolean[totalCount];
+        Arrays.fill(updateMatrices, true);
+    }
+
+    /**
+     * calculates the error rate of each category from the quantiles of a gamma distribution,
+     * normalised to a mean of one in the same way as the rate categories of a site model
+     */
+    protected void calculateCategoryRates() {
+        if (categoryCount == 1) {
+            categoryRates[0] = 1.0;
+            return;
+        }
+        double a = shape.getValue();
+        GammaDistribution g = new GammaDistributionImpl(a, 1.0 / a);
+        double mean = 0.0;
+        for (int i = 0; i < categoryCount; i++) {
+            try {
+                categoryRates[i] = g.inverseCumulativeProbability((2.0 * i + 1.0) / (2.0 * categoryCount));
+            } catch (MathException e) {
+                throw new RuntimeException("Failed to compute inverse cumulative probability of error rate category " + i, e);
+            }
+            mean += categoryRates[i];
+        }
+        mean /= categoryCount;
+        for (int i = 0; i < categoryCount; i++) {
+            categoryRates[i] /= mean;
+        }
+    }
+
+    /**
+     * returns the number of error matrices needed for the error parameters,
+     * each parameter has either one value shared by all matrices or one value per matrix
+     * @param parameters error parameters
+     * @return number of error matrices
+     */
+    protected int getMatrixCount(RealParameter... parameters) {
+        int count = 1;
+        for (RealParameter parameter : parameters) {
+            count = Math.max(count, parameter.getDimension());
+        }
+        for (RealParameter parameter : parameters) {
+            if (parameter.getDimension() != 1 && parameter.getDimension() != count) {
+                throw new IllegalArgumentException("Error parameter " + parameter.getID() + " has dimension " +
+                        parameter.getDimension() + ", expected 1 or " + count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * returns the value of the error parameter for the error matrix,
+     * scaled by the rate of the category of the matrix and capped at one
+     * @return value of the error parameter for the error matrix
+     */
+    protected double getValue(RealParameter parameter, int matrixIndex) {
+        double value = parameter == proposedParameter ?
+                proposedValues[matrixIndex % parameter.getDimension()] : parameter.getValue(matrixIndex % parameter.getDimension());
+        if (categoryCount == 1) {
+            return value;
+        }
+        return Math.min(value * categoryRates[matrixIndex / matrixCount], 1.0);
+    }
+
+    /**
+     * returns the derivative of the value used by the error matrix with respect to the parameter value,
+     * which is the category rate, or zero when the scaled value is capped at one
+     * @return derivative of the value of the error parameter for the error matrix
+     */
+    protected double getValueDerivative(RealParameter parameter, int matrixIndex) {
+        if (categoryCount == 1) {
+            return 1.0;
+        }
+        double rate = categoryRates[matrixIndex / matrixCount];
+        return parameter.getValue(matrixIndex % parameter.getDimension()) * rate < 1.0 ? rate : 0.0;
+    }
+
+    /**
+     * @return true if the value of the error parameter for the error matrix has changed
+     */
+    protected static boolean isDirty(RealParameter parameter, int matrixIndex) {
+        // per value dirty flags are only valid while the parameter is being edited
+        return parameter.somethingIsDirty() && parameter.isDirty(matrixIndex % parameter.getDimension());
+    }
+
+    /**
+     * returns the number of error matrices in each category,
+     * which is more than one when error parameters have a value for each taxon
+     * @return number of error matrices
+     */
+    public int getMatrixCount() {
+        return matrixCount;
+    }
+
+    /**
+     * @return number of error rate categories
+     */
+    public int getCategoryCount() {
+        return categoryCount;
+    }
+
+    /**
+     * @return proportion of sites in each error rate category
+     */
+    public double[] getCategoryProportions() {
+        double[] proportions = new double[categoryCount];
+        Arrays.fill(proportions, 1.0 / categoryCount);
+        return proportions;
+    }
+
+    /**
+     * @return rate that scales the error parameters of each category
+     */
+    public double[] getCategoryRates() {
+        return categoryRates.clone();
+    }
+
+    /**
+     * returns the index of an error matrix in a category, used by the methods that take a matrix index
+     * @param category error rate category
+     * @param matrixIndex index of the error matrix within the category
+     * @return index of the error matrix
+     */
+    public int getMatrixIndex(int category, int matrixIndex) {
+        return category * matrixCount + matrixIndex;
+    }
+
     /**
      * returns the probability of observed state given the true state based on the error model
      * @param observedState index of observed state
@@ -39,12 +232,87 @@ public abstract class ErrorModel extends CalculationNode {
      */
     public abstract double getProbability(int observedState, int trueState);
 
+    /**
+     * returns the probability of observed state given the true state for one of the error matrices
+     * @param matrixIndex index of the error matrix
+     * @param observedState index of observed state
+     * @param trueState index of true state
+     * @return probability of observed state given the true state
+     */
+    public double getProbability(int matrixIndex, int observedState, int trueState) {
+        return getProbability(observedState, trueState);
+    }
+
+    /**
+     * returns a probability vector of the conditional probability of the observed state given each true state,
+     * the error matrix is updated first if any error parameter has changed
+     * @param observedState index of observed state
+     * @return conditional probabilities of the observed state given the true state, for each possible true state
+     */
+    public double[] getProbabilities(int observedState) {
+        return getProbabilities(0, observedState);
+    }
+
     /**
      * returns a probability vector of the conditional probability of the observed state given each true state
+     * for one of the error matrices
+     * @param matrixIndex index of the error matrix
      * @param observedState index of observed state
      * @return conditional probabilities of the observed state given the true state, for each possible true state
      */
-    public abstract double[] getProbabilities(int observedState);
+    public double[] getProbabilities(int matrixIndex, int observedState) {
+        if (updateMatrices[matrixIndex]) {
+            setupErrorMatrix(matrixIndex);
+        }
+        return errorMatrices[currentMatrixIndex[matrixIndex]][matrixIndex][observedState];
+    }
+
+    /**
+     * fills a partials buffer with the conditional probabilities of each observed code given each true state,
+     * one block of state count entries per observed code, the whole block of codes is repeated for each category
+     * @param observedCodes observed code for each pattern
+     * @param out partials buffer of length at least offset + categoryRepeat * observedCodes.length * state count
+     * @param offset index of the first entry to fill in the partials buffer
+     * @param categoryRepeat number of copies of the partials, one for each rate category
+     */
+    public void fill(int[] observedCodes, double[] out, int offset, int categoryRepeat) {
+        fill(0, observedCodes, out, offset, categoryRepeat);
+    }
+
+    /**
+     * fills a partials buffer from one of the error matrices, see {@link #fill(int[], double[], int, int)}
+     * @param matrixIndex index of the error matrix
+     */
+    public void fill(int matrixIndex, int[] observedCodes, double[] out, int offset, int categoryRepeat) {
+        if (updateMatrices[matrixIndex]) {
+            setupErrorMatrix(matrixIndex);
+        }
+        double[][] matrix = errorMatrices[currentMatrixIndex[matrixIndex]][matrixIndex];
+        int nrOfStates = datatype.getStateCount();
+        int v = offset;
+        for (int i = 0; i < observedCodes.length; i++) {
+            System.arraycopy(matrix[observedCodes[i]], 0, out, v, nrOfStates);
+            v += nrOfStates;
+        }
+        // replicate the partials for each category
+        int n = observedCodes.length * nrOfStates;
+        for (int l = 1; l < categoryRepeat; l++) {
+            System.arraycopy(out, offset, out, v, n);
+            v += n;
+        }
+    }
+
+    /**
+     * fills the partial derivatives of an error matrix with respect to the value of an error parameter for that matrix,
+     * flat array indexed by observedState * stateCount + trueState,
+     * subclasses that support gradients override this
+     * @param parameter error parameter of this error model
+     * @param matrixIndex index of the error matrix
+     * @param out array of length codeCount * stateCount
+     */
+    public void getDerivatives(RealParameter parameter, int matrixIndex, double[] out) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not provide derivatives of the error matrix");
+    }
 
     /**
      * checks whether the error model can handle the input datatype
@@ -71,34 +339,146 @@ public abstract class ErrorModel extends CalculationNode {
     }
 
     /**
-     * set up the error matrix using the error parameter inputs
+     * set up all error matrices using the error parameter inputs
      */
     public void setupErrorMatrix() {
-        if (errorMatrix == null) {
-            errorMatrix = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
+        for (int m = 0; m < updateMatrices.length; m++) {
+            setupErrorMatrix(m);
         }
+    }
+
+    /**
+     * set up the error matrices whose error parameters have changed
+     */
+    public void updateErrorMatrices() {
+        for (int m = 0; m < updateMatrices.length; m++) {
+            if (updateMatrices[m]) {
+                setupErrorMatrix(m);
+            }
+        }
+    }
+
+    /**
+     * set up one error matrix using the error parameter inputs,
+     * the matrix is written to the buffer that is not stored so it can be restored
+     * @param matrixIndex index of the error matrix
+     */
+    public void setupErrorMatrix(int matrixIndex) {
+        calculateErrorMatrix(matrixIndex, selectWritableErrorMatrix(matrixIndex));
+        updateMatrices[matrixIndex] = false;
+    }
+
+    /**
+     * calculates one error matrix from the error parameters,
+     * subclasses can override this with a faster calculation
+     * @param matrixIndex index of the error matrix
+     * @param matrix error matrix indexed by observed state, then true state
+     */
+    protected void calculateErrorMatrix(int matrixIndex, double[][] matrix) {
         for (int trueState = 0; trueState < datatype.getStateCount(); trueState++) {
             for (int observedState = 0; observedState < datatype.mapCodeToStateSet.length; observedState++) {
                 // rows are observed states X, columns are true states Y
-                errorMatrix[observedState][trueState] = getProbability(observedState, trueState);
+                matrix[observedState][trueState] = getProbability(matrixIndex, observedState, trueState);
             }
         }
     }
 
     /**
-     * returns a boolean indicating whether the error matrix needs to be udpated
+     * calculates one error matrix for proposed values of an error parameter,
+     * without changing the parameter or the error matrices of this error model,
+     * used to evaluate the likelihood of several proposals at once
+     * @param parameter error parameter of this error model
+     * @param values proposed values of the parameter, one for each dimension
+     * @param matrixIndex index of the error matrix
+     * @param matrix error matrix indexed by observed state, then true state
+     */
+    public void calculateErrorMatrix(RealParameter parameter, double[] values, int matrixIndex, double[][] matrix) {
+        proposedParameter = parameter;
+        proposedValues = values;
+        try {
+            calculateErrorMatrix(matrixIndex, matrix);
+        } finally {
+            proposedParameter = null;
+            proposedValues = null;
+        }
+    }
+
+    /**
+     * returns the buffer of the error matrix that is not stored, allocating both buffers on first use
+     * @param matrixIndex index of the error matrix
+     * @return writable error matrix
+     */
+    protected double[][] selectWritableErrorMatrix(int matrixIndex) {
+        if (errorMatrices[0][matrixIndex] == null) {
+            errorMatrices[0][matrixIndex] = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
+            errorMatrices[1][matrixIndex] = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
+        } else if (currentMatrixIndex[matrixIndex] == storedMatrixIndex[matrixIndex]) {
+            currentMatrixIndex[matrixIndex] = 1 - currentMatrixIndex[matrixIndex];
+        }
+        return errorMatrices[currentMatrixIndex[matrixIndex]][matrixIndex];
+    }
+
+    /**
+     * returns the number of observed codes, including ambiguous codes, which are the rows of the error matrix
+     * @return number of observed codes
+     */
+    public int getCodeCount() {
+        return datatype.mapCodeToStateSet.length;
+    }
+
+    /**
+     * returns a boolean indicating whether any error matrix needs to be udpated
      * @return true if the error matrix needs to updated
      */
     public boolean getUpdateFlag() {
-        return updateMatrix;
+        for (int m = 0; m < updateMatrices.length; m++) {
+            if (updateMatrices[m]) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * sets the boolean indicating whether the error matrix needs to be udpated
+     * sets the boolean indicating whether the error matrices need to be udpated
      * @param status matrix update status
      */
     public void setUpdateFlag(boolean status) {
-        updateMatrix = status;
+        Arrays.fill(updateMatrices, status);
+    }
+
+    /**
+     * returns whether any of the error parameters of an error matrix has changed,
+     * subclasses should override this to check their parameters
+     * @param matrixIndex index of the error matrix
+     * @return true if the error matrix needs to be recalculated
+     */
+    public boolean parametersAreDirty(int matrixIndex) {
+        return true;
+    }
+
+    /**
+     * returns whether the error matrix of any category for a matrix index has changed
+     * @param matrixIndex index of the error matrix within a category
+     * @return true if the error matrix of any category needs to be recalculated
+     */
+    public boolean matrixIsDirty(int matrixIndex) {
+        if (categoryRatesAreDirty()) {
+            return true;
+        }
+        for (int c = 0; c < categoryCount; c++) {
+            if (parametersAreDirty(getMatrixIndex(c, matrixIndex))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the shape of the error rate distribution has changed
+     */
+    protected boolean categoryRatesAreDirty() {
+        return categoryCount > 1 && shape.somethingIsDirty();
     }
 
     /**
@@ -106,23 +486,43 @@ public abstract class ErrorModel extends CalculationNode {
      */
     @Override
     public void store() {
-        storedErrorMatrix = errorMatrix;
+        System.arraycopy(currentMatrixIndex, 0, storedMatrixIndex, 0, currentMatrixIndex.length);
+        System.arraycopy(categoryRates, 0, storedCategoryRates, 0, categoryCount);
         super.store();
     }
 
     /**
-     * Restore the additional stored state
+     * Restore the additional stored state by swapping the error matrix buffers
      */
     @Override
     public void restore() {
-        errorMatrix = storedErrorMatrix;
+        int[] tmp = currentMatrixIndex;
+        currentMatrixIndex = storedMatrixIndex;
+        storedMatrixIndex = tmp;
+        double[] tmpRates = categoryRates;
+        categoryRates = storedCategoryRates;
+        storedCategoryRates = tmpRates;
+        for (int m = 0; m < currentMatrixIndex.length; m++) {
+            // the restored matrix matches the restored parameters
+            updateMatrices[m] = errorMatrices[currentMatrixIndex[m]][m] == null;
+        }
         super.restore();
     }
+
     @Override
     public boolean requiresRecalculation() {
-        // we only get here if something is dirty
-        updateMatrix = true;
-        return true;
+        boolean ratesDirty = categoryRatesAreDirty();
+        if (ratesDirty) {
+            calculateCategoryRates();
+        }
+        boolean dirty = false;
+        for (int m = 0; m < updateMatrices.length; m++) {
+            if (ratesDirty || parametersAreDirty(m)) {
+                updateMatrices[m] = true;
+                dirty = true;
+            }
+        }
+        return dirty;
     }
 
 }
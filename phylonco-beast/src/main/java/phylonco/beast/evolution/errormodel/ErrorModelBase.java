@@ -17,47 +17,32 @@ public class ErrorModelBase extends ErrorModel {
         super.initAndValidate();
         epsilon = epsilonInput.get();
 
-        if (updateMatrix) {
-            setupErrorMatrix();
-            updateMatrix = false;
-        }
+        setupErrorMatrix();
     }
 
     @Override
-    public void setupErrorMatrix() {
-        if (errorMatrix == null) {
-            errorMatrix = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
-        }
-        for (int trueState = 0; trueState < datatype.getStateCount(); trueState++) {
-            for (int observedState = 0; observedState < datatype.mapCodeToStateSet.length; observedState++) {
-                // rows are observed states X, columns are true states Y
-                errorMatrix[observedState][trueState] = getProbability(observedState, trueState);
-            }
-        }
+    public double getProbability(int observedState, int trueState) {
+        return getProbability(0, observedState, trueState);
     }
 
     @Override
-    public double getProbability(int observedState, int trueState) {
+    public double getProbability(int matrixIndex, int observedState, int trueState) {
         double prob;
         int states = datatype.getStateCount();
+        double e = getValue(epsilon, matrixIndex);
         if (datatype.isAmbiguousCode(observedState)) {
             prob = getStatePartial(observedState, trueState);
         } else if (observedState == trueState) {
-            prob =  1 - epsilon.getValue();
+            prob =  1 - e;
         } else {
-            prob = epsilon.getValue() / (states - 1);
+            prob = e / (states - 1);
         }
         return prob;
     }
 
     @Override
-    public double[] getProbabilities(int observedState) {
-        int states = datatype.getStateCount();
-        double[] prob = new double[states];
-        for (int i = 0; i < states; i++) {
-            prob[i] = getProbability(observedState, i);
-        }
-        return prob;
+    public boolean parametersAreDirty(int matrixIndex) {
+        return epsilon.somethingIsDirty();
     }
 
     @Override
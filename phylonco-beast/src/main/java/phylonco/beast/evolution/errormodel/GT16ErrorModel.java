@@ -20,45 +20,81 @@ import static beast.base.evolution.datatype.DataType.MISSING_CHAR;
 @Description("GT16 diploid error model from CellPhy paper")
 public class GT16ErrorModel extends ErrorModel {
 
-    final public Input<RealParameter> deltaInput = new Input<>("delta", "the allelic dropout probability", Input.Validate.REQUIRED);
-    final public Input<RealParameter> epsilonInput = new Input<>("epsilon", "the sequencing error probability",  Input.Validate.REQUIRED);
+    final public Input<RealParameter> deltaInput = new Input<>("delta", "the allelic dropout probability, either one value or one value for each taxon in the alignment", Input.Validate.REQUIRED);
+    final public Input<RealParameter> epsilonInput = new Input<>("epsilon", "the sequencing error probability, either one value or one value for each taxon in the alignment",  Input.Validate.REQUIRED);
 
     private RealParameter delta;
     private RealParameter epsilon;
 
+    /**
+     * each error matrix entry is the polynomial c + cDelta * delta + cEpsilon * epsilon + cDeltaEpsilon * delta * epsilon,
+     * the coefficient tables are flat arrays indexed by observedState * stateCount + trueState
+     */
+    private double[] coefConstant;
+    private double[] coefDelta;
+    private double[] coefEpsilon;
+    private double[] coefDeltaEpsilon;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
 
         delta = deltaInput.get();
         epsilon = epsilonInput.get();
+        initMatrices(getMatrixCount(delta, epsilon));
 
-        if (updateMatrix) {
-            setupErrorMatrix();
-            updateMatrix = false;
-        }
+        compileCoefficients();
+
+        setupErrorMatrix();
     }
 
-    @Override
-    public double getProbability(int observedState, int trueState) {
-        double prob;
-        String observedStr = datatype.getCharacter(observedState);
+    /**
+     * compiles the coefficient tables for all codes, including gap, missing and ambiguous codes
+     */
+    private void compileCoefficients() {
+        int nrOfCodes = datatype.mapCodeToStateSet.length;
+        int nrOfStates = datatype.getStateCount();
+        coefConstant = new double[nrOfCodes * nrOfStates];
+        coefDelta = new double[nrOfCodes * nrOfStates];
+        coefEpsilon = new double[nrOfCodes * nrOfStates];
+        coefDeltaEpsilon = new double[nrOfCodes * nrOfStates];
+
         String gap = Character.toString(GAP_CHAR);
         String missing = Character.toString(MISSING_CHAR);
-        if (observedStr.equals(gap) || observedStr.equals(missing)) {
-            // gap or missing code
-            prob = 1.0;
-        } else if (datatype.isAmbiguousCode(observedState)) {
-            // ambiguous code for more than one state (not gap or missing)
-            int[] codes = datatype.getStatesForCode(observedState);
-            prob = 0.0;
-            for (int i = 0; i < codes.length; i++) {
-                prob += getProbabilityUnambiguous(codes[i], trueState);
+        double[] coefs = new double[4];
+        for (int observedState = 0; observedState < nrOfCodes; observedState++) {
+            String observedStr = datatype.getCharacter(observedState);
+            for (int trueState = 0; trueState < nrOfStates; trueState++) {
+                int k = observedState * nrOfStates + trueState;
+                if (observedStr.equals(gap) || observedStr.equals(missing)) {
+                    // gap or missing code
+                    coefConstant[k] = 1.0;
+                } else {
+                    // ambiguous codes are the sum over their unambiguous codes
+                    int[] codes = datatype.getStatesForCode(observedState);
+                    for (int i = 0; i < codes.length; i++) {
+                        getCoefficientsUnambiguous(codes[i], trueState, coefs);
+                        coefConstant[k] += coefs[0];
+                        coefDelta[k] += coefs[1];
+                        coefEpsilon[k] += coefs[2];
+                        coefDeltaEpsilon[k] += coefs[3];
+                    }
+                }
             }
-        } else {
-            // unambiguous code
-            prob = getProbabilityUnambiguous(observedState, trueState);
         }
+    }
+
+    @Override
+    public double getProbability(int observedState, int trueState) {
+        return getProbability(0, observedState, trueState);
+    }
+
+    @Override
+    public double getProbability(int matrixIndex, int observedState, int trueState) {
+        double d = getValue(delta, matrixIndex);
+        double e = getValue(epsilon, matrixIndex);
+        int k = observedState * datatype.getStateCount() + trueState;
+        double prob = coefConstant[k] + coefDelta[k] * d + coefEpsilon[k] * e + coefDeltaEpsilon[k] * d * e;
 
         if (prob > 1.0) {
             throw new RuntimeException("Error in GT16ErrorModel: Tip partial likelihood cannot exceed 1.0!");
@@ -67,10 +103,98 @@ public class GT16ErrorModel extends ErrorModel {
         return prob;
     }
 
-    private double getProbabilityUnambiguous(int observedState, int trueState) {
-        double d = delta.getValue();
-        double e = epsilon.getValue();
+    /**
+     * set up the error matrix in a single pass over the coefficient tables
+     */
+    @Override
+    protected void calculateErrorMatrix(int matrixIndex, double[][] errorMatrix) {
+        double d = getValue(delta, matrixIndex);
+        double e = getValue(epsilon, matrixIndex);
+        double de = d * e;
+        int nrOfStates = datatype.getStateCount();
+        int k = 0;
+        for (int observedState = 0; observedState < errorMatrix.length; observedState++) {
+            double[] row = errorMatrix[observedState];
+            for (int trueState = 0; trueState < nrOfStates; trueState++) {
+                row[trueState] = coefConstant[k] + coefDelta[k] * d + coefEpsilon[k] * e + coefDeltaEpsilon[k] * de;
+                k++;
+            }
+        }
+    }
+
+    /**
+     * fills the partial derivatives of the error matrix with respect to delta,
+     * flat array indexed by observedState * stateCount + trueState
+     * @param out array of length codeCount * stateCount
+     */
+    public void getDerivativesDelta(double[] out) {
+        getDerivativesDelta(0, out);
+    }
+
+    /**
+     * fills the partial derivatives of one error matrix with respect to its delta value
+     * @param matrixIndex index of the error matrix
+     * @param out array of length codeCount * stateCount
+     */
+    public void getDerivativesDelta(int matrixIndex, double[] out) {
+        double e = getValue(epsilon, matrixIndex);
+        for (int k = 0; k < coefDelta.length; k++) {
+            out[k] = coefDelta[k] + coefDeltaEpsilon[k] * e;
+        }
+    }
+
+    /**
+     * fills the partial derivatives of the error matrix with respect to epsilon,
+     * flat array indexed by observedState * stateCount + trueState
+     * @param out array of length codeCount * stateCount
+     */
+    public void getDerivativesEpsilon(double[] out) {
+        getDerivativesEpsilon(0, out);
+    }
 
+    /**
+     * fills the partial derivatives of one error matrix with respect to its epsilon value
+     * @param matrixIndex index of the error matrix
+     * @param out array of length codeCount * stateCount
+     */
+    public void getDerivativesEpsilon(int matrixIndex, double[] out) {
+        double d = getValue(delta, matrixIndex);
+        for (int k = 0; k < coefEpsilon.length; k++) {
+            out[k] = coefEpsilon[k] + coefDeltaEpsilon[k] * d;
+        }
+    }
+
+    /**
+     * fills the partial derivatives of one error matrix with respect to the delta or epsilon value of that matrix,
+     * including the scaling of the value by the error rate category of the matrix
+     * @param parameter delta or epsilon
+     * @param matrixIndex index of the error matrix
+     * @param out array of length codeCount * stateCount
+     */
+    @Override
+    public void getDerivatives(RealParameter parameter, int matrixIndex, double[] out) {
+        if (parameter == delta) {
+            getDerivativesDelta(matrixIndex, out);
+        } else if (parameter == epsilon) {
+            getDerivativesEpsilon(matrixIndex, out);
+        } else {
+            throw new IllegalArgumentException("Parameter " + parameter.getID() + " is not delta or epsilon of this error model");
+        }
+        double scale = getValueDerivative(parameter, matrixIndex);
+        if (scale != 1.0) {
+            for (int k = 0; k < out.length; k++) {
+                out[k] *= scale;
+            }
+        }
+    }
+
+    /**
+     * returns the coefficients of P(observed | true) for an unambiguous observed state
+     * @param observedState unambiguous observed state
+     * @param trueState true state
+     * @param coefs output array for the constant, delta, epsilon and delta * epsilon coefficients
+     */
+    private void getCoefficientsUnambiguous(int observedState, int trueState, double[] coefs) {
         int bases = 4;
 
         int trueFirst = trueState / bases; // first allele in true state
@@ -78,75 +202,62 @@ public class GT16ErrorModel extends ErrorModel {
         int observedFirst = observedState / bases; // first allele in observed state
         int observedSecond = observedState % bases; // second allele in observed state
 
-        double prob = 0.0;
+        coefs[0] = 0.0;
+        coefs[1] = 0.0;
+        coefs[2] = 0.0;
+        coefs[3] = 0.0;
 
         if (trueFirst == trueSecond) {
             // true state homozygous
             if (observedState == trueState) {
                 // P(aa | aa) = (1 - epsilon) + (1/2) * delta * epsilon
-                prob = 1 - e + (1.0 / 2.0) * d * e;
+                coefs[0] = 1.0;
+                coefs[2] = -1.0;
+                coefs[3] = 1.0 / 2.0;
             } else if (observedFirst == trueFirst || observedSecond == trueSecond) {
                 // P(ab | aa) =
                 // P(ba | aa) = (1 - delta) * (1/6) * epsilon
-                prob = (1 - d) * (1.0 / 6.0) * e;
+                coefs[2] = 1.0 / 6.0;
+                coefs[3] = -1.0 / 6.0;
             } else if (observedFirst == observedSecond) {
                 // P(bb | aa) = (1/6) * delta * epsilon
-                prob = (1.0 / 6.0) * d * e;
-            } else {
-                // P(bc | aa) = 0
-                prob = 0.0;
+                coefs[3] = 1.0 / 6.0;
             }
+            // P(bc | aa) = 0
         } else {
             // true state heterozygous
             if (observedState == trueState) {
                 // P(ab | ab) = (1 - delta) * (1 - epsilon)
-                prob = (1 - d) * (1 - e);
+                coefs[0] = 1.0;
+                coefs[1] = -1.0;
+                coefs[2] = -1.0;
+                coefs[3] = 1.0;
             } else if (observedFirst == observedSecond) {
                 // observed is homozygous
                 if (observedFirst == trueFirst || observedSecond == trueSecond) {
                     // P(aa | ab) =
                     // P(bb | ab) = (1/2) * delta + (1/6) * epsilon - (1/3) * delta * epsilon
-                    prob = (1.0 / 2.0) * d + (1.0 / 6.0) * e - (1.0 / 3.0) * d * e;
+                    coefs[1] = 1.0 / 2.0;
+                    coefs[2] = 1.0 / 6.0;
+                    coefs[3] = -1.0 / 3.0;
                 } else {
                     // P(cc | ab) = (1/6) * delta * epsilon
-                    prob = (1.0 / 6.0) * d * e;
+                    coefs[3] = 1.0 / 6.0;
                 }
-            } else {
+            } else if (observedFirst == trueFirst || observedSecond == trueSecond) {
                 // observed is heterozygous
-                if (observedFirst == trueFirst || observedSecond == trueSecond) {
-                    // P(ac | ab) =
-                    // P(cb | ab) = (1 - delta) * (1/6) * epsilon
-                    prob = (1 - d) * (1.0 / 6.0) * e;
-                } else {
-                    // P(cd | ab) = 0
-                    prob = 0.0;
-                }
+                // P(ac | ab) =
+                // P(cb | ab) = (1 - delta) * (1/6) * epsilon
+                coefs[2] = 1.0 / 6.0;
+                coefs[3] = -1.0 / 6.0;
             }
+            // P(cd | ab) = 0
         }
-
-        return prob;
-    }
-
-    @Override
-    public double[] getProbabilities(int observedState) {
-        if (updateMatrix) {
-            setupErrorMatrix();
-            updateMatrix = false;
-        }
-        return errorMatrix[observedState];
     }
 
     @Override
-    public void setupErrorMatrix() {
-        if (errorMatrix == null) {
-            errorMatrix = new double[datatype.mapCodeToStateSet.length][datatype.getStateCount()];
-        }
-        for (int trueState = 0; trueState < datatype.getStateCount(); trueState++) {
-            for (int observedState = 0; observedState < datatype.mapCodeToStateSet.length; observedState++) {
-                // rows are observed states X, columns are true states Y
-                errorMatrix[observedState][trueState] = getProbability(observedState, trueState);
-            }
-        }
+    public boolean parametersAreDirty(int matrixIndex) {
+        return isDirty(delta, matrixIndex) || isDirty(epsilon, matrixIndex);
     }
 
     @Override
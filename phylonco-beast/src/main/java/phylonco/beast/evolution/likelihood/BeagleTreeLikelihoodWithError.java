@@ -4,6 +4,7 @@ import beagle.*;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.likelihood.TreeLikelihood;
@@ -64,21 +65,95 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     private int invariantCategory = -1;
 
+    /**
+     * whether the state was restored since the last calculation,
+     * in which case BEAGLE still holds the site log likelihoods of the rejected proposal
+     */
+    protected boolean restoredSinceCalculation = false;
+
     final public Input<ErrorModel> errorModelInput = new Input<>("errorModel", "error model to use for partials");
 
     final public Input<Boolean> useTipsEmpiricalInput = new Input<>("useTipsEmpirical", "use tip ambiguities from data", false);
 
+    final public Input<Boolean> foldErrorMatrixInput = new Input<>("foldErrorMatrix", "keep tips as states and fold the error matrix into the transition matrices of pendant branches, " +
+            "tips with ambiguous codes other than missing data still use partials", false);
+
     protected ErrorModel errorModel;
 
     protected boolean useTipsEmpirical;
 
+    protected boolean foldErrorMatrix;
+
+    /**
+     * tips stored as states in BEAGLE, with the error matrix folded into their transition matrices
+     */
+    protected boolean[] foldedTips;
+
+    /**
+     * tips with a newly calculated transition matrix that still needs the error matrix folded in
+     */
+    protected boolean[] updateFoldedTips;
+
+    /**
+     * taxon index of each tip
+     */
+    protected int[] tipTaxa;
+
+    protected double[] foldMatrix;
+    protected double[] foldRow;
+
+    /**
+     * java likelihood used instead of BEAGLE when BEAGLE is not available
+     */
+    protected ThreadedTreeLikelihoodWithError javaLikelihood;
+
+    /**
+     * private list with the java likelihood, to notify framework of likelihoods being created in initAndValidate()
+     */
+    final private Input<List<ThreadedTreeLikelihoodWithError>> likelihoodsInput = new Input<>("*", "", new ArrayList<>());
+
+    @Override
+    public List<Input<?>> listInputs() {
+        List<Input<?>> list = super.listInputs();
+        if (!ProgramStatus.name.equals("BEAUti") && System.getProperty("beast.is.junit.testing") == null) {
+            // do not expose internal likelihoods to BEAUti or junit tests
+            list.add(likelihoodsInput);
+        }
+        return list;
+    }
+
     @Override
     public void initAndValidate() {
         boolean forceJava = Boolean.valueOf(System.getProperty("java.only"));
-        if (forceJava) {
-            return;
+        if (forceJava || !initialize()) {
+            Log.warning.println("  BEAGLE not available, using Java implementation of tree likelihood with error models");
+            beagle = null;
+            initJavaLikelihood();
         }
-        initialize();
+    }
+
+    /**
+     * sets up the multithreaded java likelihood with the same inputs as this likelihood
+     */
+    protected void initJavaLikelihood() {
+        javaLikelihood = new ThreadedTreeLikelihoodWithError();
+        javaLikelihood.setID(getID() + ".java");
+        javaLikelihood.initByName(
+                "data", dataInput.get(),
+                "tree", treeInput.get(),
+                "siteModel", siteModelInput.get(),
+                "branchRateModel", branchRateModelInput.get(),
+                "rootFrequencies", rootFrequenciesInput.get(),
+                "scaling", scaling.get().toString(),
+                "errorModel", errorModelInput.get(),
+                "useTipsEmpirical", useTipsEmpiricalInput.get(),
+                "foldErrorMatrix", foldErrorMatrixInput.get());
+        javaLikelihood.getOutputs().add(this);
+        likelihoodsInput.get().add(javaLikelihood);
+        // TreeLikelihood.store() and restore() copy and swap the branch lengths, which initialize() may not have allocated
+        m_nNodeCount = treeInput.get().getNodeCount();
+        m_branchLengths = new double[m_nNodeCount];
+        storedBranchLengths = new double[m_nNodeCount];
     }
 
     private boolean initialize() {
@@ -87,6 +162,17 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         m_bUseTipLikelihoods = m_useTipLikelihoods.get();
         errorModel = errorModelInput.get();
         useTipsEmpirical = useTipsEmpiricalInput.get();
+        foldErrorMatrix = foldErrorMatrixInput.get() && errorModel != null && !useTipsEmpirical;
+        if (errorModel != null && errorModel.getMatrixCount() > 1 &&
+                errorModel.getMatrixCount() != dataInput.get().getTaxonCount()) {
+            throw new IllegalArgumentException("Error parameters have " + errorModel.getMatrixCount() +
+                    " values, expected one value or one value for each of the " + dataInput.get().getTaxonCount() + " taxa");
+        }
+        if (errorModel != null && errorModel.getCategoryCount() > 1) {
+            // the java likelihood shares the transition matrices between error categories
+            Log.warning.println("  Error rate categories are not supported by BEAGLE");
+            return false;
+        }
         if (!(siteModelInput.get() instanceof SiteModel.Base)) {
             throw new IllegalArgumentException("siteModel input should be of type SiteModel.Base");
         }
@@ -147,7 +233,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         internalNodeCount = m_nNodeCount - tipCount;
 
         int compactPartialsCount = tipCount;
-        if (m_bUseAmbiguities) {
+        if (m_bUseAmbiguities && !foldErrorMatrix) {
             // if we are using ambiguities then we don't use tip partials
             compactPartialsCount = 0;
         }
@@ -313,9 +399,20 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         Log.warning.println("  With " + patternCount + " unique site patterns.");
 
         Node [] nodes = treeInput.get().getNodesAsArray();
+        foldedTips = new boolean[m_nNodeCount];
+        updateFoldedTips = new boolean[m_nNodeCount];
+        tipTaxa = new int[tipCount];
+        if (foldErrorMatrix) {
+            foldMatrix = new double[m_nStateCount * m_nStateCount * categoryCount];
+            foldRow = new double[m_nStateCount];
+        }
         for (int i = 0; i < tipCount; i++) {
             int taxon = getTaxonIndex(nodes[i].getID(), dataInput.get());
-            if (m_bUseAmbiguities || m_bUseTipLikelihoods || useTipsEmpirical || errorModel != null) {
+            tipTaxa[i] = taxon;
+            if (foldErrorMatrix && canFoldErrorMatrix(taxon)) {
+                foldedTips[i] = true;
+                setFoldedStates(beagle, i, taxon);
+            } else if (m_bUseAmbiguities || m_bUseTipLikelihoods || useTipsEmpirical || errorModel != null) {
                 setPartials(beagle, i, taxon, false);
             } else {
                 setStates(beagle, i, taxon);
@@ -418,19 +515,22 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
                                      int nodeIndex, int taxon, boolean flip) {
         Alignment data = dataInput.get();
 
-        double[] partials = new double[patternCount * m_nStateCount * categoryCount];
+        if (tipPartials == null) {
+            tipPartials = new double[patternCount * m_nStateCount * categoryCount];
+            tipCodes = new int[patternCount];
+        }
+        double[] partials = tipPartials;
 
-        int v = 0;
-        for (int i = 0; i < patternCount; i++) {
-            double[] tipProbabilities;
-            if (errorModel != null) {
-                int stateIndex = data.getPattern(taxon, i);
-                tipProbabilities = errorModel.getProbabilities(stateIndex);
-                for (int state = 0; state < m_nStateCount; state++) {
-                    partials[v++] = tipProbabilities[state];
-                }
-            } else {
-                tipProbabilities = data.getTipLikelihoods(taxon, i);
+        if (errorModel != null) {
+            for (int i = 0; i < patternCount; i++) {
+                tipCodes[i] = data.getPattern(taxon, i);
+            }
+            // fills the partials for each category
+            errorModel.fill(getMatrixIndex(taxon), tipCodes, partials, 0, categoryCount);
+        } else {
+            int v = 0;
+            for (int i = 0; i < patternCount; i++) {
+                double[] tipProbabilities = data.getTipLikelihoods(taxon, i);
                 if (tipProbabilities != null) {
                     for (int state = 0; state < m_nStateCount; state++) {
                         partials[v++] = tipProbabilities[state];
@@ -447,14 +547,14 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
                     }
                 }
             }
-        }
 
-        // if there is more than one category then replicate the partials for each
-        int n = patternCount * m_nStateCount;
-        int k = n;
-        for (int i = 1; i < categoryCount; i++) {
-            System.arraycopy(partials, 0, partials, k, n);
-            k += n;
+            // if there is more than one category then replicate the partials for each
+            int n = patternCount * m_nStateCount;
+            int k = n;
+            for (int i = 1; i < categoryCount; i++) {
+                System.arraycopy(partials, 0, partials, k, n);
+                k += n;
+            }
         }
 
         if (flip) {
@@ -510,6 +610,103 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         beagle.setTipStates(nodeIndex, states);
     }
 
+    /**
+     * A tip can be stored as states if each observed code is either unambiguous,
+     * so it is a column of the folded matrix, or missing data with an error model row of ones.
+     *
+     * @param taxon the taxon
+     * @return true if the error matrix can be folded into the transition matrix of the tip
+     */
+    protected boolean canFoldErrorMatrix(int taxon) {
+        Alignment data = dataInput.get();
+        for (int i = 0; i < patternCount; i++) {
+            int code = data.getPattern(taxon, i);
+            if (!isUnambiguousState(code) && !isMissingCode(code)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the error matrix of the taxon, which is the taxon index when error parameters have a value per taxon
+     */
+    protected int getMatrixIndex(int taxon) {
+        return errorModel.getMatrixCount() == 1 ? 0 : taxon;
+    }
+
+    private boolean isUnambiguousState(int code) {
+        int[] statesForCode = dataInput.get().getDataType().getStatesForCode(code);
+        return statesForCode.length == 1 && statesForCode[0] == code;
+    }
+
+    private boolean isMissingCode(int code) {
+        boolean[] stateSet = dataInput.get().getStateSet(code);
+        double[] tipProbabilities = errorModel.getProbabilities(code);
+        for (int state = 0; state < m_nStateCount; state++) {
+            if (!stateSet[state] || tipProbabilities[state] != 1.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the observed states of a tip, missing data is set to the state count which BEAGLE treats as a gap.
+     *
+     * @param beagle        beagle
+     * @param nodeIndex     nodeIndex
+     * @param taxon         the taxon
+     */
+    protected final void setFoldedStates(Beagle beagle,
+                                         int nodeIndex, int taxon) {
+        Alignment data = dataInput.get();
+
+        int[] states = new int[patternCount];
+
+        for (int i = 0; i < patternCount; i++) {
+            int code = data.getPattern(taxon, i);
+            if (isUnambiguousState(code)) {
+                states[i] = code;
+            } else {
+                states[i] = m_nStateCount;
+            }
+        }
+
+        beagle.setTipStates(nodeIndex, states);
+    }
+
+    /**
+     * Replaces the transition matrices of the folded tips that were updated by P(t) * E,
+     * so entry [i][c] is the probability of observing code c below a branch starting in state i.
+     */
+    protected void foldErrorMatrices() {
+        int matrixSize = m_nStateCount * m_nStateCount;
+        for (int nodeNum = 0; nodeNum < tipCount; nodeNum++) {
+            if (updateFoldedTips[nodeNum]) {
+                int matrixIndex = matrixBufferHelper.getOffsetIndex(nodeNum);
+                int errorMatrixIndex = getMatrixIndex(tipTaxa[nodeNum]);
+                beagle.getTransitionMatrix(matrixIndex, foldMatrix);
+                for (int l = 0; l < categoryCount; l++) {
+                    for (int i = 0; i < m_nStateCount; i++) {
+                        int w = l * matrixSize + i * m_nStateCount;
+                        System.arraycopy(foldMatrix, w, foldRow, 0, m_nStateCount);
+                        for (int c = 0; c < m_nStateCount; c++) {
+                            double[] tipProbabilities = errorModel.getProbabilities(errorMatrixIndex, c);
+                            double sum = 0.0;
+                            for (int j = 0; j < m_nStateCount; j++) {
+                                sum += foldRow[j] * tipProbabilities[j];
+                            }
+                            foldMatrix[w + c] = sum;
+                        }
+                    }
+                }
+                beagle.setTransitionMatrix(matrixIndex, foldMatrix, 1.0);
+                updateFoldedTips[nodeNum] = false;
+            }
+        }
+    }
+
     /**
      *
      * @param taxon the taxon name as a string
@@ -548,12 +745,18 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      */
     @Override
     public boolean requiresRecalculation() {
+        if (javaLikelihood != null) {
+            return javaLikelihood.requiresRecalculation();
+        }
         hasDirt = Tree.IS_CLEAN;
 
         if (errorModel != null && errorModel.isDirtyCalculation()) {
             updateErrorModel = true;
-            hasDirt = Tree.IS_DIRTY;
-            return true;
+            if (!foldErrorMatrix) {
+                hasDirt = Tree.IS_DIRTY;
+                return true;
+            }
+            // only the tips are updated, internal transition matrices are unchanged
         }
 
         double[] categoryRates = m_siteModel.getCategoryRates(null);
@@ -592,7 +795,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             return true;
         }
 
-        return treeInput.get().somethingIsDirty();
+        return treeInput.get().somethingIsDirty() || updateErrorModel;
     }
 
     /**
@@ -600,7 +803,11 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      */
     @Override
     public void store() {
-        errorModel.store();
+        if (javaLikelihood != null) {
+            // the java likelihood is stored by the framework
+            super.store();
+            return;
+        }
         partialBufferHelper.storeState();
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
@@ -616,9 +823,13 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     @Override
     public void restore() {
+        if (javaLikelihood != null) {
+            super.restore();
+            return;
+        }
         updateSiteModel = true; // this is required to upload the categoryRates to BEAGLE after the restore
+        restoredSinceCalculation = true;
 
-        errorModel.restore();
         partialBufferHelper.restoreState();
         eigenBufferHelper.restoreState();
         matrixBufferHelper.restoreState();
@@ -648,19 +859,21 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         int nrOfPatterns = data.getPatternCount();
         double[] partials = new double[nrOfPatterns * nrOfStates];
         int t = getTaxonIndex(node.getID(), data); // taxon index
-        int i = 0;
-        for (int p = 0; p < nrOfPatterns; p++) {
-            int state = data.getPattern(t, p);
-            double[] tipLikelihoods;
-            if (useTipsEmpirical) {
-                tipLikelihoods = data.getTipLikelihoods(t, p);
-            } else {
-                tipLikelihoods = errorModel.getProbabilities(state);
+        if (useTipsEmpirical) {
+            int i = 0;
+            for (int p = 0; p < nrOfPatterns; p++) {
+                double[] tipLikelihoods = data.getTipLikelihoods(t, p);
+                for (int s = 0; s < nrOfStates; s++) {
+                    partials[i] = tipLikelihoods[s];
+                    i++;
+                }
             }
-            for (int s = 0; s < nrOfStates; s++) {
-                partials[i] = tipLikelihoods[s];
-                i++;
+        } else {
+            int[] codes = new int[nrOfPatterns];
+            for (int p = 0; p < nrOfPatterns; p++) {
+                codes[p] = data.getPattern(t, p);
             }
+            errorModel.fill(getMatrixIndex(t), codes, partials, 0, 1);
         }
         return partials;
     }
@@ -672,6 +885,11 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      */
     @Override
     public double calculateLogP() {
+        if (javaLikelihood != null) {
+            logP = javaLikelihood.calculateLogP();
+            return logP;
+        }
+        restoredSinceCalculation = false;
 
         if (patternLogLikelihoods == null) {
             patternLogLikelihoods = new double[patternCount];
@@ -767,6 +985,10 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             }
         }
 
+        if (foldErrorMatrix) {
+            foldErrorMatrices();
+        }
+
 //        if (COUNT_TOTAL_OPERATIONS) {
 //            for (int i = 0; i < eigenCount; i++) {
 //                totalMatrixUpdateCount += branchUpdateCount[i];
@@ -969,7 +1191,9 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 //        }
         final double branchRate = branchRateModel.getRateForBranch(node);
         final double branchTime = node.getLength() * branchRate;
-        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeNum])) {
+        // folded tips need a new transition matrix when the error model changes
+        final boolean refoldTip = foldedTips[nodeNum] && updateErrorModel;
+        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeNum] || refoldTip)) {
             m_branchLengths[nodeNum] = branchTime;
             if (branchTime < 0.0) {
                 throw new RuntimeException("Negative branch length: " + branchTime);
@@ -978,6 +1202,8 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             if (flip) {
                 // first flip the matrixBufferHelper
                 matrixBufferHelper.flipOffset(nodeNum);
+                // the error matrix is folded in after BEAGLE updates the matrix
+                updateFoldedTips[nodeNum] = foldedTips[nodeNum];
             }
 
             // then set which matrix to update
@@ -1061,7 +1287,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
                 update |= (update1 | update2);
 
             }
-        } else if (node.isLeaf() && updateErrorModel) {
+        } else if (node.isLeaf() && updateErrorModel && !foldedTips[nodeNum]) {
             if (flip) {
                 // first flip the partialBufferHelper
                 partialBufferHelper.flipOffset(nodeNum);
@@ -1069,6 +1295,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
             int taxon = getTaxonIndex(node.getID(), dataInput.get());
             setPartials(beagle, nodeNum, taxon, false);
+            update |= Tree.IS_DIRTY;
         }
 
         return update;
@@ -1123,6 +1350,11 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      */
     protected double[] tipPartials;
 
+    /**
+     * an array used to transfer the observed codes of a tip
+     */
+    protected int[] tipCodes;
+
     /**
      * the BEAGLE library instance
      */
@@ -1240,6 +1472,14 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     @Override
     public double [] getPatternLogLikelihoods() {
+        if (javaLikelihood != null) {
+            return javaLikelihood.getPatternLogLikelihoods();
+        }
+        if (restoredSinceCalculation) {
+            // the site log likelihoods of the restored state are only needed here,
+            // so they are calculated again from the restored buffers instead of being fetched in each store
+            calculateLogP();
+        }
         beagle.getSiteLogLikelihoods(patternLogLikelihoods);
         return patternLogLikelihoods.clone();
     }
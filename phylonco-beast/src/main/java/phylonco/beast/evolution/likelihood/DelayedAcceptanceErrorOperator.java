@@ -0,0 +1,125 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+import java.util.Arrays;
+
+@Description("Delayed acceptance random walk operator for an error parameter, such as delta or epsilon of a GT16 error model. " +
+        "A first stage screens each proposal with the likelihood of a fixed random subsample of the patterns, " +
+        "and only proposals that pass it are evaluated with the full likelihood, " +
+        "with a Hastings ratio that corrects for the first stage so the posterior stays the target.")
+public class DelayedAcceptanceErrorOperator extends Operator {
+
+    final public Input<RealParameter> parameterInput = new Input<>("parameter",
+            "error parameter of the error model of the likelihood", Input.Validate.REQUIRED);
+
+    final public Input<TreeLikelihoodWithErrorFast> likelihoodInput = new Input<>("likelihood",
+            "tree likelihood with an error model that uses the parameter", Input.Validate.REQUIRED);
+
+    final public Input<Double> windowSizeInput = new Input<>("windowSize",
+            "the size of the window both up and down", 0.01);
+
+    final public Input<Integer> subsampleSizeInput = new Input<>("subsampleSize",
+            "number of patterns in the subsample of the first stage", 1000);
+
+    protected double windowSize;
+
+    /**
+     * patterns of the subsample in increasing order,
+     * and the total weight of the patterns divided by the weight of the subsample
+     */
+    protected int[] subsample;
+    protected double subsampleScale;
+
+    @Override
+    public void initAndValidate() {
+        windowSize = windowSizeInput.get();
+        Alignment data = likelihoodInput.get().dataInput.get();
+        int nrOfPatterns = data.getPatternCount();
+        int subsampleSize = subsampleSizeInput.get();
+        if (subsampleSize < 1) {
+            throw new IllegalArgumentException("subsampleSize must be at least 1, but was " + subsampleSize);
+        }
+        // the subsample is fixed for the whole run, so the first stage is the same approximation of the likelihood in every step
+        subsample = Arrays.copyOf(Randomizer.shuffled(nrOfPatterns), Math.min(subsampleSize, nrOfPatterns));
+        Arrays.sort(subsample);
+        double totalWeight = 0.0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            totalWeight += data.getPatternWeight(k);
+        }
+        double subsampleWeight = 0.0;
+        for (int k : subsample) {
+            subsampleWeight += data.getPatternWeight(k);
+        }
+        subsampleScale = totalWeight / subsampleWeight;
+    }
+
+    /**
+     * Moves a random dimension of the parameter by a uniform random walk.
+     * The first stage accepts the proposal with the ratio of the scaled subsample likelihoods of the proposed and current values,
+     * both from one batch evaluation, and rejects it without the full likelihood otherwise.
+     * The returned Hastings ratio divides the posterior ratio by the subsample ratio,
+     * which makes the second stage the acceptance of delayed acceptance.
+     */
+    @Override
+    public double proposal() {
+        RealParameter parameter = parameterInput.get();
+        int index = Randomizer.nextInt(parameter.getDimension());
+        double value = parameter.getValue(index);
+        double newValue = value + Randomizer.nextDouble() * 2 * windowSize - windowSize;
+        if (newValue < parameter.getLower() || newValue > parameter.getUpper() || newValue == value) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double[] current = parameter.getDoubleValues();
+        double[] proposed = current.clone();
+        proposed[index] = newValue;
+        double[] logL = likelihoodInput.get().calculateLogPBatch(parameter, new double[][] {current, proposed}, subsample);
+        double logRatio = subsampleScale * (logL[1] - logL[0]);
+
+        // first stage
+        if (Double.isNaN(logRatio) || Math.log(Randomizer.nextDouble()) >= logRatio) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        parameter.setValue(index, newValue);
+        return -logRatio;
+    }
+
+    /**
+     * @return patterns of the subsample of the first stage
+     */
+    public int[] getSubsample() {
+        return subsample.clone();
+    }
+
+    /**
+     * @return total weight of the patterns divided by the weight of the subsample
+     */
+    public double getSubsampleScale() {
+        return subsampleScale;
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return windowSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        windowSize = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        double delta = calcDelta(logAlpha);
+        delta += Math.log(windowSize);
+        windowSize = Math.exp(delta);
+    }
+
+}
@@ -0,0 +1,1478 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+import java.util.Arrays;
+
+/**
+ * Likelihood core for error models where each leaf only stores its observed code per pattern.
+ *
+ * The tip partials are rows of a code-by-state table that is shared by all leaves,
+ * so a change in the error model only requires the table to be rebuilt,
+ * rather than a patterns * states partials array for every leaf.
+ * With per-taxon error parameters there is one code table per error matrix, and each leaf refers to its own table.
+ * The code tables are double buffered for store and restore, in the same way as the partials and matrices.
+ *
+ * With folded tips, the code table is multiplied into the transition matrix of each pendant branch,
+ * giving for each category a codes-by-states table of P(t) * E, so the first pruning step is a lookup per state.
+ *
+ * Codes with a row of ones in the code table, such as '?' and '-', are treated as missing.
+ * Each internal node keeps a flag per pattern for whether every leaf below it is missing,
+ * in which case its partials are one for all states and it is skipped when pruning its parent.
+ *
+ * Rows of the code table often contain structural zeros, for example P(bc | aa) = 0 in GT16,
+ * so the products of a leaf's transition matrix and code table row only loop over the non-zero states of the row.
+ *
+ * With error rate categories, the partials have a block for each error category and rate category,
+ * indexed by errorCategory * rateCategories + rateCategory.
+ * Only the code tables differ between error categories, each code table has a block of rows per error category,
+ * and the transition matrices are kept once per rate category and shared by all error categories.
+ *
+ * With dynamic scaling, only nodes where the largest partial of some pattern fell below the scaling threshold
+ * are rescaled, and the other nodes skip the pass over their partials, except for a check every few calculations.
+ * The scaling factors are only summed over the nodes that were rescaled.
+ *
+ * With two or three states, such as binary data, the pruning steps use unrolled kernels
+ * that keep the transition matrices of a category in local variables for all patterns.
+ *
+ * Single patterns can be updated in place, for example when a genotype of one cell is sampled:
+ * the code of a leaf and the partials of the nodes on its path to the root are changed in the current buffers,
+ * and the old values are kept in an undo log until the next store, which restore writes back.
+ */
+public class ErrorLikelihoodCore extends BeerLikelihoodCore {
+
+    /**
+     * observed codes for each leaf node, null for internal nodes
+     */
+    protected int[][] codes;
+
+    /**
+     * code-by-state tables indexed by buffer and table, rows are observed codes and columns are true states
+     */
+    protected double[][][] codeTables;
+
+    protected int nrOfCodes;
+
+    protected int nrOfCodeTables = 1;
+
+    protected int[] currentCodeTableIndex;
+    protected int[] storedCodeTableIndex;
+
+    /**
+     * code table of each leaf node
+     */
+    protected int[] nodeCodeTables;
+
+    /**
+     * flags for codes with a row of ones in each code table
+     */
+    protected boolean[][][] missingCodes;
+
+    /**
+     * states with a non-zero probability in each row of each code table
+     */
+    protected int[][][][] nonZeroStates;
+
+    /**
+     * flags for patterns where all leaves below an internal node are missing, buffered with the partials
+     */
+    protected boolean[][][] missingPatterns;
+
+    /**
+     * flag to fold the code table into the transition matrices of pendant branches
+     */
+    protected boolean useFoldedTips = false;
+
+    /**
+     * code table multiplied by the transition matrices of each leaf, for each category
+     */
+    protected double[][][] foldedTables;
+    protected int[] currentFoldedIndex;
+    protected int[] storedFoldedIndex;
+    protected boolean[] foldedTableDirty;
+
+    /**
+     * number of error rate categories and their proportions, kept when the core is initialised
+     */
+    protected int nrOfErrorCategories = 1;
+    protected double[] errorCategoryProportions = {1.0};
+
+    /**
+     * number of rate categories, each with a transition matrix,
+     * nrOfMatrices is the number of partials blocks over error and rate categories
+     */
+    protected int nrOfRateMatrices;
+
+    /**
+     * proportions of the combined error and rate categories, used when integrating over categories
+     */
+    protected double[] combinedProportions;
+
+    /**
+     * number of calculations of a node between checks of its partials with dynamic scaling, 0 to scale every node
+     */
+    protected int scalingCheckInterval = 0;
+
+    /**
+     * flags for nodes with rescaled patterns in each partials buffer, so their scaling factors are non-zero
+     */
+    protected boolean[][] scaledPartials;
+
+    /**
+     * flags for nodes that needed rescaling at their last check, and the number of calculations of each node
+     */
+    protected boolean[] rescaleNodes;
+    protected int[] nodeCalculations;
+
+    protected static final double SCALING_THRESHOLD = 1.0E-100;
+
+    /**
+     * undo log of the in-place updates of single patterns since the last store:
+     * node, pattern and old code of each code update, and node, partials buffer, pattern, old missing flag
+     * and old scaled flag of each partials update, with the old partials of the pattern for each category
+     * followed by its old scaling factor
+     */
+    protected int[] codeUpdates = new int[0];
+    protected int codeUpdateCount;
+    protected int[] patternUpdates = new int[0];
+    protected double[] patternUpdateValues = new double[0];
+    protected int patternUpdateCount;
+
+    public ErrorLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount * nrOfErrorCategories, integrateCategories, useAmbiguities);
+        nrOfRateMatrices = matrixCount;
+        if (nrOfErrorCategories > 1) {
+            // transition matrices are shared by the error categories
+            matrices = new double[2][nodeCount][matrixCount * matrixSize];
+            combinedProportions = new double[nrOfMatrices];
+        }
+        codes = new int[nodeCount][];
+        nodeCodeTables = new int[nodeCount];
+        setCodeTableCount(nrOfCodeTables);
+        missingPatterns = new boolean[2][nodeCount][];
+        foldedTables = new double[2][nodeCount][];
+        currentFoldedIndex = new int[nodeCount];
+        storedFoldedIndex = new int[nodeCount];
+        foldedTableDirty = new boolean[nodeCount];
+        if (scalingCheckInterval > 0) {
+            scaledPartials = new boolean[2][nodeCount];
+            rescaleNodes = new boolean[nodeCount];
+            Arrays.fill(rescaleNodes, true);
+            nodeCalculations = new int[nodeCount];
+        }
+    }
+
+    /**
+     * Allocates the code tables, each leaf uses the first table until set otherwise.
+     * The count is kept when the core is initialised.
+     *
+     * @param codeTableCount number of code tables
+     */
+    public void setCodeTableCount(int codeTableCount) {
+        nrOfCodeTables = codeTableCount;
+        codeTables = new double[2][codeTableCount][];
+        missingCodes = new boolean[2][codeTableCount][];
+        nonZeroStates = new int[2][codeTableCount][][];
+        currentCodeTableIndex = new int[codeTableCount];
+        storedCodeTableIndex = new int[codeTableCount];
+    }
+
+    /**
+     * Sets the code table used by a leaf node
+     *
+     * @param nodeIndex leaf node index
+     * @param table     code table index
+     */
+    public void setNodeCodeTable(int nodeIndex, int table) {
+        nodeCodeTables[nodeIndex] = table;
+        foldedTableDirty[nodeIndex] = true;
+    }
+
+    /**
+     * Sets the proportions of the error rate categories, which also sets the number of error categories.
+     * The code tables then have a block of rows for each error category.
+     * Must be called before the core is initialised, the proportions are kept when the core is initialised.
+     *
+     * @param proportions proportion of sites in each error category
+     */
+    public void setErrorCategoryProportions(double[] proportions) {
+        nrOfErrorCategories = proportions.length;
+        errorCategoryProportions = proportions.clone();
+    }
+
+    public int getErrorCategoryCount() {
+        return nrOfErrorCategories;
+    }
+
+    public void setUseFoldedTips(boolean useFoldedTips) {
+        this.useFoldedTips = useFoldedTips;
+    }
+
+    public boolean getUseFoldedTips() {
+        return useFoldedTips;
+    }
+
+    /**
+     * Sets dynamic scaling, which only rescales the nodes that need it and checks the other nodes periodically.
+     * Must be called before the core is initialised.
+     *
+     * @param scalingCheckInterval number of calculations of a node between checks of its partials, 0 to scale every node
+     */
+    public void setScalingCheckInterval(int scalingCheckInterval) {
+        this.scalingCheckInterval = scalingCheckInterval;
+    }
+
+    /**
+     * with dynamic scaling, every node is checked again, for example after the likelihood underflowed
+     */
+    @Override
+    public void setUseScaling(double scale) {
+        super.setUseScaling(scale);
+        if (scaledPartials != null) {
+            scaledPartials = new boolean[2][nrOfNodes];
+            Arrays.fill(rescaleNodes, true);
+        }
+    }
+
+    /**
+     * Sets the observed codes for a leaf node
+     *
+     * @param nodeIndex leaf node index
+     * @param codes     observed code for each pattern
+     */
+    public void setNodeCodes(int nodeIndex, int[] codes) {
+        if (this.codes[nodeIndex] == null) {
+            this.codes[nodeIndex] = new int[nrOfPatterns];
+        }
+        System.arraycopy(codes, 0, this.codes[nodeIndex], 0, nrOfPatterns);
+        foldedTableDirty[nodeIndex] = true;
+    }
+
+    /**
+     * Gets the observed codes for a leaf node
+     */
+    public void getNodeCodes(int nodeIndex, int[] codes) {
+        System.arraycopy(this.codes[nodeIndex], 0, codes, 0, nrOfPatterns);
+    }
+
+    /**
+     * @return observed code of a pattern of a leaf node
+     */
+    public int getNodeCode(int nodeIndex, int patternIndex) {
+        return codes[nodeIndex][patternIndex];
+    }
+
+    /**
+     * Flips the code table buffer so the stored table is kept for restore,
+     * does nothing if the table has already been flipped since the last store
+     */
+    public void setCodeTableForUpdate() {
+        setCodeTableForUpdate(0);
+    }
+
+    /**
+     * Flips the buffer of one code table, see {@link #setCodeTableForUpdate()}
+     *
+     * @param table code table index
+     */
+    public void setCodeTableForUpdate(int table) {
+        if (currentCodeTableIndex[table] == storedCodeTableIndex[table]) {
+            currentCodeTableIndex[table] = 1 - currentCodeTableIndex[table];
+        }
+    }
+
+    /**
+     * Sets the current code table
+     *
+     * @param codeTable flattened code-by-state table, entry [errorCategory * codes * states + code * states + state] is
+     *                  the probability of the observed code given the true state
+     */
+    public void setCodeTable(double[] codeTable) {
+        setCodeTable(0, codeTable);
+    }
+
+    /**
+     * Sets one of the current code tables, see {@link #setCodeTable(double[])}
+     *
+     * @param table     code table index
+     * @param codeTable flattened code-by-state table
+     */
+    public void setCodeTable(int table, double[] codeTable) {
+        int buffer = currentCodeTableIndex[table];
+        if (codeTables[buffer][table] == null) {
+            nrOfCodes = codeTable.length / (nrOfStates * nrOfErrorCategories);
+            codeTables[0][table] = new double[codeTable.length];
+            codeTables[1][table] = new double[codeTable.length];
+            missingCodes[0][table] = new boolean[nrOfCodes];
+            missingCodes[1][table] = new boolean[nrOfCodes];
+            nonZeroStates[0][table] = new int[nrOfErrorCategories * nrOfCodes][];
+            nonZeroStates[1][table] = new int[nrOfErrorCategories * nrOfCodes][];
+        }
+        System.arraycopy(codeTable, 0, codeTables[buffer][table], 0, codeTable.length);
+        for (int c = 0; c < nrOfCodes; c++) {
+            // a code is only missing if its row is all ones in every error category
+            boolean missing = true;
+            for (int i = 0; i < nrOfErrorCategories * nrOfCodes * nrOfStates && missing; i += nrOfCodes * nrOfStates) {
+                for (int j = 0; j < nrOfStates && missing; j++) {
+                    missing = codeTable[i + c * nrOfStates + j] == 1.0;
+                }
+            }
+            missingCodes[buffer][table][c] = missing;
+        }
+        for (int c = 0; c < nrOfErrorCategories * nrOfCodes; c++) {
+            nonZeroStates[buffer][table][c] = getNonZeroStates(codeTable, c * nrOfStates);
+        }
+        for (int i = 0; i < nrOfNodes; i++) {
+            if (codes[i] != null && nodeCodeTables[i] == table) {
+                foldedTableDirty[i] = true;
+            }
+        }
+    }
+
+    public int getCodeCount() {
+        return nrOfCodes;
+    }
+
+    /**
+     * @return indices of the states with a non-zero entry in a row of the code table
+     */
+    protected int[] getNonZeroStates(double[] codeTable, int offset) {
+        int count = 0;
+        for (int j = 0; j < nrOfStates; j++) {
+            if (codeTable[offset + j] != 0.0) {
+                count++;
+            }
+        }
+        int[] states = new int[count];
+        count = 0;
+        for (int j = 0; j < nrOfStates; j++) {
+            if (codeTable[offset + j] != 0.0) {
+                states[count] = j;
+                count++;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return current code table of a leaf node
+     */
+    protected double[] getNodeCodeTable(int nodeIndex) {
+        int table = nodeCodeTables[nodeIndex];
+        return codeTables[currentCodeTableIndex[table]][table];
+    }
+
+    /**
+     * @return missing code flags of the current code table of a leaf node
+     */
+    protected boolean[] getNodeMissingCodes(int nodeIndex) {
+        int table = nodeCodeTables[nodeIndex];
+        return missingCodes[currentCodeTableIndex[table]][table];
+    }
+
+    /**
+     * @return non-zero states of the current code table of a leaf node
+     */
+    protected int[][] getNodeNonZeroStates(int nodeIndex) {
+        int table = nodeCodeTables[nodeIndex];
+        return nonZeroStates[currentCodeTableIndex[table]][table];
+    }
+
+    @Override
+    public void setNodeMatrixForUpdate(int nodeIndex) {
+        super.setNodeMatrixForUpdate(nodeIndex);
+        if (codes[nodeIndex] != null) {
+            foldedTableDirty[nodeIndex] = true;
+        }
+    }
+
+    /**
+     * Returns the folded table of a leaf, recalculating it if the matrices or the code table have changed.
+     * Entry [category * codes * states + code * states + i] is the sum over j of P(i -> j) * P(code | j),
+     * where the category is the combined error and rate category.
+     */
+    protected double[] getFoldedTable(int nodeIndex) {
+        if (foldedTableDirty[nodeIndex]) {
+            if (currentFoldedIndex[nodeIndex] == storedFoldedIndex[nodeIndex]) {
+                currentFoldedIndex[nodeIndex] = 1 - currentFoldedIndex[nodeIndex];
+            }
+            int tableSize = nrOfMatrices * nrOfCodes * nrOfStates;
+            if (foldedTables[currentFoldedIndex[nodeIndex]][nodeIndex] == null) {
+                foldedTables[0][nodeIndex] = new double[tableSize];
+                foldedTables[1][nodeIndex] = new double[tableSize];
+            }
+            calculateFoldedTable(matrices[currentMatrixIndex[nodeIndex]][nodeIndex],
+                    getNodeCodeTable(nodeIndex), getNodeNonZeroStates(nodeIndex),
+                    foldedTables[currentFoldedIndex[nodeIndex]][nodeIndex]);
+            foldedTableDirty[nodeIndex] = false;
+        }
+        return foldedTables[currentFoldedIndex[nodeIndex]][nodeIndex];
+    }
+
+    protected void calculateFoldedTable(double[] matrices1, double[] codeTable, int[][] nonZeroStates, double[] folded) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int e = l / nrOfRateMatrices * nrOfCodes;
+            int w = l % nrOfRateMatrices * matrixSize;
+            for (int c = 0; c < nrOfCodes; c++) {
+                u = calculateSingleCodePruning(matrices1, w, codeTable, (e + c) * nrOfStates, nonZeroStates[e + c], folded, u);
+            }
+        }
+    }
+
+    /**
+     * Returns the missing flags of an internal node, allocating them if needed.
+     * The flags are buffered with the partials, so they follow the partials through store and restore.
+     */
+    protected boolean[] getMissingPatterns(int nodeIndex) {
+        boolean[] missing = missingPatterns[currentPartialsIndex[nodeIndex]][nodeIndex];
+        if (missing == null) {
+            missing = new boolean[nrOfPatterns];
+            missingPatterns[currentPartialsIndex[nodeIndex]][nodeIndex] = missing;
+        }
+        return missing;
+    }
+
+    /**
+     * Calculates partial likelihoods at a node.
+     * Patterns that are missing in every leaf below a child do not depend on that child,
+     * so the child is skipped, and if both children are missing the partials are set to one.
+     *
+     * @param nodeIndex1 the 'child 1' node
+     * @param nodeIndex2 the 'child 2' node
+     * @param nodeIndex3 the 'parent' node
+     */
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        boolean[] missing3 = getMissingPatterns(nodeIndex3);
+        if (codes[nodeIndex1] == null && codes[nodeIndex2] == null) {
+            calculatePartialsPartialsPruning(
+                    partials[currentPartialsIndex[nodeIndex1]][nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                    getMissingPatterns(nodeIndex1),
+                    partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                    getMissingPatterns(nodeIndex2),
+                    partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+        } else if (useFoldedTips) {
+            calculateFoldedPartials(nodeIndex1, nodeIndex2, nodeIndex3, missing3);
+        } else if (codes[nodeIndex1] != null) {
+            if (codes[nodeIndex2] != null) {
+                calculateCodesCodesPruning(
+                        codes[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        getNodeCodeTable(nodeIndex1), getNodeNonZeroStates(nodeIndex1), getNodeMissingCodes(nodeIndex1),
+                        codes[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        getNodeCodeTable(nodeIndex2), getNodeNonZeroStates(nodeIndex2), getNodeMissingCodes(nodeIndex2),
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+            } else {
+                calculateCodesPartialsPruning(
+                        codes[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        getNodeCodeTable(nodeIndex1), getNodeNonZeroStates(nodeIndex1), getNodeMissingCodes(nodeIndex1),
+                        partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        getMissingPatterns(nodeIndex2),
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+            }
+        } else {
+            calculateCodesPartialsPruning(
+                    codes[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                    getNodeCodeTable(nodeIndex2), getNodeNonZeroStates(nodeIndex2), getNodeMissingCodes(nodeIndex2),
+                    partials[currentPartialsIndex[nodeIndex1]][nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                    getMissingPatterns(nodeIndex1),
+                    partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+        }
+
+        if (useScaling && scaledPartials != null) {
+            scalePartialsDynamic(nodeIndex3);
+        } else if (useScaling) {
+            scalePartials(nodeIndex3);
+        }
+    }
+
+    /**
+     * Scales the partials of a node with dynamic scaling.
+     * A node is checked if some pattern needed rescaling at its last check, and every scalingCheckInterval calculations,
+     * otherwise the pass over its partials is skipped and its scaling factors are zero.
+     * A check finds the largest partial of each pattern and rescales the patterns where it is below the threshold,
+     * as in BeerLikelihoodCore.
+     */
+    protected void scalePartialsDynamic(int nodeIndex) {
+        int buffer = currentPartialsIndex[nodeIndex];
+        nodeCalculations[nodeIndex]++;
+        if (!rescaleNodes[nodeIndex] && nodeCalculations[nodeIndex] % scalingCheckInterval != 0) {
+            if (scaledPartials[buffer][nodeIndex]) {
+                Arrays.fill(scalingFactors[buffer][nodeIndex], 0.0);
+                scaledPartials[buffer][nodeIndex] = false;
+            }
+            return;
+        }
+
+        double[] partials1 = partials[buffer][nodeIndex];
+        double[] scalingFactors1 = scalingFactors[buffer][nodeIndex];
+        boolean rescaled = false;
+        int u = 0;
+        for (int i = 0; i < nrOfPatterns; i++) {
+
+            double scaleFactor = 0.0;
+            int v = u;
+            for (int k = 0; k < nrOfMatrices; k++) {
+                for (int j = 0; j < nrOfStates; j++) {
+                    if (partials1[v] > scaleFactor) {
+                        scaleFactor = partials1[v];
+                    }
+                    v++;
+                }
+                v += (nrOfPatterns - 1) * nrOfStates;
+            }
+
+            if (scaleFactor > 0.0 && scaleFactor < SCALING_THRESHOLD) {
+                v = u;
+                for (int k = 0; k < nrOfMatrices; k++) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        partials1[v] /= scaleFactor;
+                        v++;
+                    }
+                    v += (nrOfPatterns - 1) * nrOfStates;
+                }
+                scalingFactors1[i] = Math.log(scaleFactor);
+                rescaled = true;
+            } else {
+                scalingFactors1[i] = 0.0;
+            }
+            u += nrOfStates;
+        }
+        rescaleNodes[nodeIndex] = rescaled;
+        scaledPartials[buffer][nodeIndex] = rescaled;
+    }
+
+    /**
+     * with dynamic scaling, only the nodes with rescaled patterns are summed
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        if (!useScaling || scaledPartials == null) {
+            return super.getLogScalingFactor(patternIndex);
+        }
+        double logScalingFactor = 0.0;
+        for (int i = 0; i < nrOfNodes; i++) {
+            if (scaledPartials[currentPartialsIndex[i]][i]) {
+                logScalingFactor += scalingFactors[currentPartialsIndex[i]][i][patternIndex];
+            }
+        }
+        return logScalingFactor;
+    }
+
+    /**
+     * @return true if single patterns of the partials can be updated in place
+     */
+    public boolean canUpdatePatterns() {
+        return true;
+    }
+
+    /**
+     * Sets the observed code of one pattern of a leaf node in place,
+     * the old code is set back on restore unless the core is stored first.
+     *
+     * @param nodeIndex    leaf node index
+     * @param patternIndex pattern index
+     * @param code         observed code
+     */
+    public void setNodeCode(int nodeIndex, int patternIndex, int code) {
+        if (codeUpdates.length < (codeUpdateCount + 1) * 3) {
+            codeUpdates = Arrays.copyOf(codeUpdates, Math.max(30, codeUpdates.length * 2));
+        }
+        int u = codeUpdateCount * 3;
+        codeUpdates[u] = nodeIndex;
+        codeUpdates[u + 1] = patternIndex;
+        codeUpdates[u + 2] = codes[nodeIndex][patternIndex];
+        codeUpdateCount++;
+        codes[nodeIndex][patternIndex] = code;
+    }
+
+    /**
+     * Recalculates the partials of one pattern at a node in place in its current buffer,
+     * with the missing flag and the scaling factor of the pattern.
+     * The old values are set back on restore unless the core is stored first,
+     * so the node must not have been flipped for update since the last store.
+     *
+     * @param nodeIndex1   the 'child 1' node
+     * @param nodeIndex2   the 'child 2' node
+     * @param nodeIndex3   the 'parent' node
+     * @param patternIndex pattern index
+     */
+    public void calculatePatternPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int patternIndex) {
+        savePattern(nodeIndex3, patternIndex);
+        double[] partials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        boolean missing1 = isMissingPattern(nodeIndex1, patternIndex);
+        boolean missing2 = isMissingPattern(nodeIndex2, patternIndex);
+        getMissingPatterns(nodeIndex3)[patternIndex] = missing1 && missing2;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int u = (l * nrOfPatterns + patternIndex) * nrOfStates;
+            for (int i = 0; i < nrOfStates; i++) {
+                partials3[u + i] = 1.0;
+            }
+            if (!missing1) {
+                multiplyPatternPruning(nodeIndex1, l, patternIndex, partials3, u);
+            }
+            if (!missing2) {
+                multiplyPatternPruning(nodeIndex2, l, patternIndex, partials3, u);
+            }
+        }
+        if (useScaling) {
+            scalePattern(nodeIndex3, patternIndex);
+        }
+    }
+
+    /**
+     * @return true if the pattern is missing at a leaf, or in every leaf below an internal node
+     */
+    protected boolean isMissingPattern(int nodeIndex, int patternIndex) {
+        if (codes[nodeIndex] != null) {
+            return getNodeMissingCodes(nodeIndex)[codes[nodeIndex][patternIndex]];
+        }
+        return getMissingPatterns(nodeIndex)[patternIndex];
+    }
+
+    /**
+     * Multiplies the partials of one pattern and category of a parent by the sums over the states of a child
+     *
+     * @param nodeIndex    child node
+     * @param l            combined error and rate category
+     * @param patternIndex pattern index
+     * @param partials3    partials of the parent
+     * @param u            offset of the pattern and category in partials3
+     */
+    protected void multiplyPatternPruning(int nodeIndex, int l, int patternIndex, double[] partials3, int u) {
+        double[] matrices1 = matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+        int w = l % nrOfRateMatrices * matrixSize;
+        double[] partials1;
+        int v;
+        if (codes[nodeIndex] != null) {
+            partials1 = getNodeCodeTable(nodeIndex);
+            v = (l / nrOfRateMatrices * nrOfCodes + codes[nodeIndex][patternIndex]) * nrOfStates;
+        } else {
+            partials1 = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+            v = (l * nrOfPatterns + patternIndex) * nrOfStates;
+        }
+        for (int i = 0; i < nrOfStates; i++) {
+
+            double sum1 = 0.0;
+
+            for (int j = 0; j < nrOfStates; j++) {
+                sum1 += matrices1[w] * partials1[v + j];
+                w++;
+            }
+
+            partials3[u + i] *= sum1;
+        }
+    }
+
+    /**
+     * Scales the partials of one pattern at a node in the same way as scalePartials or scalePartialsDynamic,
+     * with dynamic scaling a rescaled pattern marks the node as rescaled
+     */
+    protected void scalePattern(int nodeIndex, int patternIndex) {
+        int buffer = currentPartialsIndex[nodeIndex];
+        double[] partials1 = partials[buffer][nodeIndex];
+        double scaleFactor = 0.0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int v = (l * nrOfPatterns + patternIndex) * nrOfStates;
+            for (int i = 0; i < nrOfStates; i++) {
+                if (partials1[v + i] > scaleFactor) {
+                    scaleFactor = partials1[v + i];
+                }
+            }
+        }
+        boolean rescale = scaleFactor < SCALING_THRESHOLD && (scaledPartials == null || scaleFactor > 0.0);
+        if (rescale) {
+            for (int l = 0; l < nrOfMatrices; l++) {
+                int v = (l * nrOfPatterns + patternIndex) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    partials1[v + i] /= scaleFactor;
+                }
+            }
+            scalingFactors[buffer][nodeIndex][patternIndex] = Math.log(scaleFactor);
+            if (scaledPartials != null) {
+                scaledPartials[buffer][nodeIndex] = true;
+                rescaleNodes[nodeIndex] = true;
+            }
+        } else {
+            scalingFactors[buffer][nodeIndex][patternIndex] = 0.0;
+        }
+    }
+
+    /**
+     * adds the current partials, missing flag and scaling factor of one pattern at a node to the undo log
+     */
+    protected void savePattern(int nodeIndex, int patternIndex) {
+        int stride = nrOfMatrices * nrOfStates + 1;
+        if (patternUpdates.length < (patternUpdateCount + 1) * 5) {
+            patternUpdates = Arrays.copyOf(patternUpdates, Math.max(50, patternUpdates.length * 2));
+            patternUpdateValues = Arrays.copyOf(patternUpdateValues, patternUpdates.length / 5 * stride);
+        }
+        int buffer = currentPartialsIndex[nodeIndex];
+        int u = patternUpdateCount * 5;
+        patternUpdates[u] = nodeIndex;
+        patternUpdates[u + 1] = buffer;
+        patternUpdates[u + 2] = patternIndex;
+        patternUpdates[u + 3] = getMissingPatterns(nodeIndex)[patternIndex] ? 1 : 0;
+        patternUpdates[u + 4] = scaledPartials != null && scaledPartials[buffer][nodeIndex] ? 1 : 0;
+        int v = patternUpdateCount * stride;
+        double[] partials1 = partials[buffer][nodeIndex];
+        for (int l = 0; l < nrOfMatrices; l++) {
+            System.arraycopy(partials1, (l * nrOfPatterns + patternIndex) * nrOfStates, patternUpdateValues, v, nrOfStates);
+            v += nrOfStates;
+        }
+        patternUpdateValues[v] = useScaling ? scalingFactors[buffer][nodeIndex][patternIndex] : 0.0;
+        patternUpdateCount++;
+    }
+
+    /**
+     * sets back the codes and partials of the undo log in reverse order, and clears the log
+     */
+    protected void undoPatternUpdates() {
+        int stride = nrOfMatrices * nrOfStates + 1;
+        for (int e = patternUpdateCount - 1; e >= 0; e--) {
+            int u = e * 5;
+            int nodeIndex = patternUpdates[u];
+            int buffer = patternUpdates[u + 1];
+            int patternIndex = patternUpdates[u + 2];
+            missingPatterns[buffer][nodeIndex][patternIndex] = patternUpdates[u + 3] == 1;
+            if (scaledPartials != null) {
+                scaledPartials[buffer][nodeIndex] = patternUpdates[u + 4] == 1;
+            }
+            int v = e * stride;
+            double[] partials1 = partials[buffer][nodeIndex];
+            for (int l = 0; l < nrOfMatrices; l++) {
+                System.arraycopy(patternUpdateValues, v, partials1, (l * nrOfPatterns + patternIndex) * nrOfStates, nrOfStates);
+                v += nrOfStates;
+            }
+            if (useScaling) {
+                scalingFactors[buffer][nodeIndex][patternIndex] = patternUpdateValues[v];
+            }
+        }
+        for (int e = codeUpdateCount - 1; e >= 0; e--) {
+            int u = e * 3;
+            codes[codeUpdates[u]][codeUpdates[u + 1]] = codeUpdates[u + 2];
+        }
+        patternUpdateCount = 0;
+        codeUpdateCount = 0;
+    }
+
+    /**
+     * Calculates the log likelihood of one pattern at the root, integrated over the error and rate categories,
+     * in the same way as integratePartials and calculateLogLikelihoods
+     *
+     * @param nodeIndex    root node
+     * @param patternIndex pattern index
+     * @param proportions  proportions of the rate categories
+     * @param frequencies  root state frequencies
+     * @return log likelihood of the pattern, including its scaling factors
+     */
+    public double calculatePatternLogLikelihood(int nodeIndex, int patternIndex, double[] proportions, double[] frequencies) {
+        proportions = getCombinedProportions(proportions);
+        double[] partials1 = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+        double sum = 0.0;
+        for (int i = 0; i < nrOfStates; i++) {
+            double partial = 0.0;
+            for (int l = 0; l < nrOfMatrices; l++) {
+                partial += partials1[(l * nrOfPatterns + patternIndex) * nrOfStates + i] * proportions[l];
+            }
+            sum += frequencies[i] * partial;
+        }
+        return Math.log(sum) + getLogScalingFactor(patternIndex);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node with at least one leaf child, using the folded tables.
+     */
+    protected void calculateFoldedPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, boolean[] missing3) {
+        if (codes[nodeIndex1] != null) {
+            if (codes[nodeIndex2] != null) {
+                calculateFoldedCodesCodesPruning(
+                        codes[nodeIndex1], getFoldedTable(nodeIndex1), getNodeMissingCodes(nodeIndex1),
+                        codes[nodeIndex2], getFoldedTable(nodeIndex2), getNodeMissingCodes(nodeIndex2),
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+            } else {
+                calculateFoldedCodesPartialsPruning(
+                        codes[nodeIndex1], getFoldedTable(nodeIndex1), getNodeMissingCodes(nodeIndex1),
+                        partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        getMissingPatterns(nodeIndex2),
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+            }
+        } else {
+            calculateFoldedCodesPartialsPruning(
+                    codes[nodeIndex2], getFoldedTable(nodeIndex2), getNodeMissingCodes(nodeIndex2),
+                    partials[currentPartialsIndex[nodeIndex1]][nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                    getMissingPatterns(nodeIndex1),
+                    partials[currentPartialsIndex[nodeIndex3]][nodeIndex3], missing3);
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have observed codes, using the folded tables.
+     */
+    protected void calculateFoldedCodesCodesPruning(int[] codes1, double[] folded1, boolean[] missingCode1,
+                                                    int[] codes2, double[] folded2, boolean[] missingCode2,
+                                                    double[] partials3, boolean[] missing3) {
+        int u = 0;
+        int tableSize = nrOfCodes * nrOfStates;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            missing3[k] = missingCode1[codes1[k]] && missingCode2[codes2[k]];
+        }
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+
+                int v1 = l * tableSize + codes1[k] * nrOfStates;
+                int v2 = l * tableSize + codes2[k] * nrOfStates;
+
+                if (missing3[k]) {
+                    Arrays.fill(partials3, u, u + nrOfStates, 1.0);
+                    u += nrOfStates;
+                } else if (missingCode1[codes1[k]]) {
+                    System.arraycopy(folded2, v2, partials3, u, nrOfStates);
+                    u += nrOfStates;
+                } else if (missingCode2[codes2[k]]) {
+                    System.arraycopy(folded1, v1, partials3, u, nrOfStates);
+                    u += nrOfStates;
+                } else {
+                    for (int i = 0; i < nrOfStates; i++) {
+                        partials3[u] = folded1[v1 + i] * folded2[v2 + i];
+                        u++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has observed codes and one has partials,
+     * using the folded table of the leaf.
+     */
+    protected void calculateFoldedCodesPartialsPruning(int[] codes1, double[] folded1, boolean[] missingCode1,
+                                                       double[] partials2, double[] matrices2, boolean[] missing2,
+                                                       double[] partials3, boolean[] missing3) {
+        double sum2;
+
+        int u = 0;
+        int v = 0;
+        int tableSize = nrOfCodes * nrOfStates;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            missing3[k] = missingCode1[codes1[k]] && missing2[k];
+        }
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+
+                int v1 = l * tableSize + codes1[k] * nrOfStates;
+
+                int w = l % nrOfRateMatrices * matrixSize;
+
+                if (missing3[k]) {
+                    Arrays.fill(partials3, u, u + nrOfStates, 1.0);
+                    u += nrOfStates;
+                } else if (missing2[k]) {
+                    System.arraycopy(folded1, v1, partials3, u, nrOfStates);
+                    u += nrOfStates;
+                } else if (missingCode1[codes1[k]]) {
+                    for (int i = 0; i < nrOfStates; i++) {
+
+                        sum2 = 0.0;
+
+                        for (int j = 0; j < nrOfStates; j++) {
+                            sum2 += matrices2[w] * partials2[v + j];
+                            w++;
+                        }
+
+                        partials3[u] = sum2;
+                        u++;
+                    }
+                } else {
+                    for (int i = 0; i < nrOfStates; i++) {
+
+                        sum2 = 0.0;
+
+                        for (int j = 0; j < nrOfStates; j++) {
+                            sum2 += matrices2[w] * partials2[v + j];
+                            w++;
+                        }
+
+                        partials3[u] = folded1[v1 + i] * sum2;
+                        u++;
+                    }
+                }
+                v += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have observed codes.
+     */
+    protected void calculateCodesCodesPruning(int[] codes1, double[] matrices1,
+                                              double[] codeTable1, int[][] nonZeroStates1, boolean[] missingCode1,
+                                              int[] codes2, double[] matrices2,
+                                              double[] codeTable2, int[][] nonZeroStates2, boolean[] missingCode2,
+                                              double[] partials3, boolean[] missing3) {
+        double sum1, sum2;
+
+        int u = 0;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            missing3[k] = missingCode1[codes1[k]] && missingCode2[codes2[k]];
+        }
+        if (nrOfStates == 2) {
+            calculateCodesCodesPruning2(codes1, matrices1, codeTable1, missingCode1, codes2, matrices2, codeTable2, missingCode2,
+                    partials3, missing3);
+            return;
+        } else if (nrOfStates == 3) {
+            calculateCodesCodesPruning3(codes1, matrices1, codeTable1, missingCode1, codes2, matrices2, codeTable2, missingCode2,
+                    partials3, missing3);
+            return;
+        }
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // rows of the error category in the code tables
+            int e = l / nrOfRateMatrices * nrOfCodes;
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+
+                int c1 = e + codes1[k];
+                int c2 = e + codes2[k];
+                int v1 = c1 * nrOfStates;
+                int v2 = c2 * nrOfStates;
+
+                int w = l % nrOfRateMatrices * matrixSize;
+
+                if (missing3[k]) {
+                    Arrays.fill(partials3, u, u + nrOfStates, 1.0);
+                    u += nrOfStates;
+                } else if (missingCode1[codes1[k]]) {
+                    u = calculateSingleCodePruning(matrices2, w, codeTable2, v2, nonZeroStates2[c2], partials3, u);
+                } else if (missingCode2[codes2[k]]) {
+                    u = calculateSingleCodePruning(matrices1, w, codeTable1, v1, nonZeroStates1[c1], partials3, u);
+                } else {
+                    int[] states1 = nonZeroStates1[c1];
+                    int[] states2 = nonZeroStates2[c2];
+                    for (int i = 0; i < nrOfStates; i++) {
+
+                        sum1 = sum2 = 0.0;
+
+                        for (int j : states1) {
+                            sum1 += matrices1[w + j] * codeTable1[v1 + j];
+                        }
+                        for (int j : states2) {
+                            sum2 += matrices2[w + j] * codeTable2[v2 + j];
+                        }
+                        w += nrOfStates;
+
+                        partials3[u] = sum1 * sum2;
+                        u++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has observed codes and one has partials.
+     */
+    protected void calculateCodesPartialsPruning(int[] codes1, double[] matrices1,
+                                                 double[] codeTable1, int[][] nonZeroStates1, boolean[] missingCode1,
+                                                 double[] partials2, double[] matrices2, boolean[] missing2,
+                                                 double[] partials3, boolean[] missing3) {
+        double sum1, sum2;
+
+        int u = 0;
+        int v = 0;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            missing3[k] = missingCode1[codes1[k]] && missing2[k];
+        }
+        if (nrOfStates == 2) {
+            calculateCodesPartialsPruning2(codes1, matrices1, codeTable1, missingCode1, partials2, matrices2, missing2,
+                    partials3, missing3);
+            return;
+        } else if (nrOfStates == 3) {
+            calculateCodesPartialsPruning3(codes1, matrices1, codeTable1, missingCode1, partials2, matrices2, missing2,
+                    partials3, missing3);
+            return;
+        }
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // rows of the error category in the code table
+            int e = l / nrOfRateMatrices * nrOfCodes;
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+
+                int c1 = e + codes1[k];
+                int v1 = c1 * nrOfStates;
+
+                int w = l % nrOfRateMatrices * matrixSize;
+
+                if (missing3[k]) {
+                    Arrays.fill(partials3, u, u + nrOfStates, 1.0);
+                    u += nrOfStates;
+                } else if (missingCode1[codes1[k]]) {
+                    u = calculateSingleChildPruning(matrices2, w, partials2, v, partials3, u);
+                } else if (missing2[k]) {
+                    u = calculateSingleCodePruning(matrices1, w, codeTable1, v1, nonZeroStates1[c1], partials3, u);
+                } else {
+                    int[] states1 = nonZeroStates1[c1];
+                    for (int i = 0; i < nrOfStates; i++) {
+
+                        sum1 = sum2 = 0.0;
+
+                        for (int j : states1) {
+                            sum1 += matrices1[w + j] * codeTable1[v1 + j];
+                        }
+                        for (int j = 0; j < nrOfStates; j++) {
+                            sum2 += matrices2[w] * partials2[v + j];
+                            w++;
+                        }
+
+                        partials3[u] = sum1 * sum2;
+                        u++;
+                    }
+                }
+                v += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1, boolean[] missing1,
+                                                    double[] partials2, double[] matrices2, boolean[] missing2,
+                                                    double[] partials3, boolean[] missing3) {
+        double sum1, sum2;
+
+        int u = 0;
+        int v = 0;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            missing3[k] = missing1[k] && missing2[k];
+        }
+        if (nrOfStates == 2) {
+            calculatePartialsPartialsPruning2(partials1, matrices1, missing1, partials2, matrices2, missing2, partials3, missing3);
+            return;
+        } else if (nrOfStates == 3) {
+            calculatePartialsPartialsPruning3(partials1, matrices1, missing1, partials2, matrices2, missing2, partials3, missing3);
+            return;
+        }
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+
+                int w = l % nrOfRateMatrices * matrixSize;
+
+                if (missing3[k]) {
+                    Arrays.fill(partials3, u, u + nrOfStates, 1.0);
+                    u += nrOfStates;
+                } else if (missing1[k]) {
+                    u = calculateSingleChildPruning(matrices2, w, partials2, v, partials3, u);
+                } else if (missing2[k]) {
+                    u = calculateSingleChildPruning(matrices1, w, partials1, v, partials3, u);
+                } else {
+                    for (int i = 0; i < nrOfStates; i++) {
+
+                        sum1 = sum2 = 0.0;
+
+                        for (int j = 0; j < nrOfStates; j++) {
+                            sum1 += matrices1[w] * partials1[v + j];
+                            sum2 += matrices2[w] * partials2[v + j];
+
+                            w++;
+                        }
+
+                        partials3[u] = sum1 * sum2;
+                        u++;
+                    }
+                }
+                v += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculateCodesCodesPruning} for two states, the missing flags of the parent are already set.
+     * The partials of a pattern are at the same offset in every node, and each row of a code table has one entry per state.
+     */
+    protected void calculateCodesCodesPruning2(int[] codes1, double[] matrices1, double[] codeTable1, boolean[] missingCode1,
+                                               int[] codes2, double[] matrices2, double[] codeTable2, boolean[] missingCode2,
+                                               double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int e = l / nrOfRateMatrices * nrOfCodes;
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1];
+            double a10 = matrices1[w + 2], a11 = matrices1[w + 3];
+            double b00 = matrices2[w], b01 = matrices2[w + 1];
+            double b10 = matrices2[w + 2], b11 = matrices2[w + 3];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int v1 = (e + codes1[k]) * 2;
+                int v2 = (e + codes2[k]) * 2;
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                } else if (missingCode1[codes1[k]]) {
+                    double q0 = codeTable2[v2], q1 = codeTable2[v2 + 1];
+                    partials3[u] = b00 * q0 + b01 * q1;
+                    partials3[u + 1] = b10 * q0 + b11 * q1;
+                } else if (missingCode2[codes2[k]]) {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1];
+                    partials3[u] = a00 * p0 + a01 * p1;
+                    partials3[u + 1] = a10 * p0 + a11 * p1;
+                } else {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1];
+                    double q0 = codeTable2[v2], q1 = codeTable2[v2 + 1];
+                    partials3[u] = (a00 * p0 + a01 * p1) * (b00 * q0 + b01 * q1);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1) * (b10 * q0 + b11 * q1);
+                }
+                u += 2;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculateCodesPartialsPruning} for two states, the missing flags of the parent are already set.
+     */
+    protected void calculateCodesPartialsPruning2(int[] codes1, double[] matrices1, double[] codeTable1, boolean[] missingCode1,
+                                                  double[] partials2, double[] matrices2, boolean[] missing2,
+                                                  double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int e = l / nrOfRateMatrices * nrOfCodes;
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1];
+            double a10 = matrices1[w + 2], a11 = matrices1[w + 3];
+            double b00 = matrices2[w], b01 = matrices2[w + 1];
+            double b10 = matrices2[w + 2], b11 = matrices2[w + 3];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int v1 = (e + codes1[k]) * 2;
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                } else if (missingCode1[codes1[k]]) {
+                    double q0 = partials2[u], q1 = partials2[u + 1];
+                    partials3[u] = b00 * q0 + b01 * q1;
+                    partials3[u + 1] = b10 * q0 + b11 * q1;
+                } else if (missing2[k]) {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1];
+                    partials3[u] = a00 * p0 + a01 * p1;
+                    partials3[u + 1] = a10 * p0 + a11 * p1;
+                } else {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1];
+                    double q0 = partials2[u], q1 = partials2[u + 1];
+                    partials3[u] = (a00 * p0 + a01 * p1) * (b00 * q0 + b01 * q1);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1) * (b10 * q0 + b11 * q1);
+                }
+                u += 2;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculatePartialsPartialsPruning} for two states, the missing flags of the parent are already set.
+     */
+    protected void calculatePartialsPartialsPruning2(double[] partials1, double[] matrices1, boolean[] missing1,
+                                                     double[] partials2, double[] matrices2, boolean[] missing2,
+                                                     double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1];
+            double a10 = matrices1[w + 2], a11 = matrices1[w + 3];
+            double b00 = matrices2[w], b01 = matrices2[w + 1];
+            double b10 = matrices2[w + 2], b11 = matrices2[w + 3];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                } else if (missing1[k]) {
+                    double q0 = partials2[u], q1 = partials2[u + 1];
+                    partials3[u] = b00 * q0 + b01 * q1;
+                    partials3[u + 1] = b10 * q0 + b11 * q1;
+                } else if (missing2[k]) {
+                    double p0 = partials1[u], p1 = partials1[u + 1];
+                    partials3[u] = a00 * p0 + a01 * p1;
+                    partials3[u + 1] = a10 * p0 + a11 * p1;
+                } else {
+                    double p0 = partials1[u], p1 = partials1[u + 1];
+                    double q0 = partials2[u], q1 = partials2[u + 1];
+                    partials3[u] = (a00 * p0 + a01 * p1) * (b00 * q0 + b01 * q1);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1) * (b10 * q0 + b11 * q1);
+                }
+                u += 2;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculateCodesCodesPruning} for three states, the missing flags of the parent are already set.
+     */
+    protected void calculateCodesCodesPruning3(int[] codes1, double[] matrices1, double[] codeTable1, boolean[] missingCode1,
+                                               int[] codes2, double[] matrices2, double[] codeTable2, boolean[] missingCode2,
+                                               double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int e = l / nrOfRateMatrices * nrOfCodes;
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2];
+            double a10 = matrices1[w + 3], a11 = matrices1[w + 4], a12 = matrices1[w + 5];
+            double a20 = matrices1[w + 6], a21 = matrices1[w + 7], a22 = matrices1[w + 8];
+            double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2];
+            double b10 = matrices2[w + 3], b11 = matrices2[w + 4], b12 = matrices2[w + 5];
+            double b20 = matrices2[w + 6], b21 = matrices2[w + 7], b22 = matrices2[w + 8];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int v1 = (e + codes1[k]) * 3;
+                int v2 = (e + codes2[k]) * 3;
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                    partials3[u + 2] = 1.0;
+                } else if (missingCode1[codes1[k]]) {
+                    double q0 = codeTable2[v2], q1 = codeTable2[v2 + 1], q2 = codeTable2[v2 + 2];
+                    partials3[u] = b00 * q0 + b01 * q1 + b02 * q2;
+                    partials3[u + 1] = b10 * q0 + b11 * q1 + b12 * q2;
+                    partials3[u + 2] = b20 * q0 + b21 * q1 + b22 * q2;
+                } else if (missingCode2[codes2[k]]) {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1], p2 = codeTable1[v1 + 2];
+                    partials3[u] = a00 * p0 + a01 * p1 + a02 * p2;
+                    partials3[u + 1] = a10 * p0 + a11 * p1 + a12 * p2;
+                    partials3[u + 2] = a20 * p0 + a21 * p1 + a22 * p2;
+                } else {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1], p2 = codeTable1[v1 + 2];
+                    double q0 = codeTable2[v2], q1 = codeTable2[v2 + 1], q2 = codeTable2[v2 + 2];
+                    partials3[u] = (a00 * p0 + a01 * p1 + a02 * p2) * (b00 * q0 + b01 * q1 + b02 * q2);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1 + a12 * p2) * (b10 * q0 + b11 * q1 + b12 * q2);
+                    partials3[u + 2] = (a20 * p0 + a21 * p1 + a22 * p2) * (b20 * q0 + b21 * q1 + b22 * q2);
+                }
+                u += 3;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculateCodesPartialsPruning} for three states, the missing flags of the parent are already set.
+     */
+    protected void calculateCodesPartialsPruning3(int[] codes1, double[] matrices1, double[] codeTable1, boolean[] missingCode1,
+                                                  double[] partials2, double[] matrices2, boolean[] missing2,
+                                                  double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int e = l / nrOfRateMatrices * nrOfCodes;
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2];
+            double a10 = matrices1[w + 3], a11 = matrices1[w + 4], a12 = matrices1[w + 5];
+            double a20 = matrices1[w + 6], a21 = matrices1[w + 7], a22 = matrices1[w + 8];
+            double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2];
+            double b10 = matrices2[w + 3], b11 = matrices2[w + 4], b12 = matrices2[w + 5];
+            double b20 = matrices2[w + 6], b21 = matrices2[w + 7], b22 = matrices2[w + 8];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int v1 = (e + codes1[k]) * 3;
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                    partials3[u + 2] = 1.0;
+                } else if (missingCode1[codes1[k]]) {
+                    double q0 = partials2[u], q1 = partials2[u + 1], q2 = partials2[u + 2];
+                    partials3[u] = b00 * q0 + b01 * q1 + b02 * q2;
+                    partials3[u + 1] = b10 * q0 + b11 * q1 + b12 * q2;
+                    partials3[u + 2] = b20 * q0 + b21 * q1 + b22 * q2;
+                } else if (missing2[k]) {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1], p2 = codeTable1[v1 + 2];
+                    partials3[u] = a00 * p0 + a01 * p1 + a02 * p2;
+                    partials3[u + 1] = a10 * p0 + a11 * p1 + a12 * p2;
+                    partials3[u + 2] = a20 * p0 + a21 * p1 + a22 * p2;
+                } else {
+                    double p0 = codeTable1[v1], p1 = codeTable1[v1 + 1], p2 = codeTable1[v1 + 2];
+                    double q0 = partials2[u], q1 = partials2[u + 1], q2 = partials2[u + 2];
+                    partials3[u] = (a00 * p0 + a01 * p1 + a02 * p2) * (b00 * q0 + b01 * q1 + b02 * q2);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1 + a12 * p2) * (b10 * q0 + b11 * q1 + b12 * q2);
+                    partials3[u + 2] = (a20 * p0 + a21 * p1 + a22 * p2) * (b20 * q0 + b21 * q1 + b22 * q2);
+                }
+                u += 3;
+            }
+        }
+    }
+
+    /**
+     * Unrolled {@link #calculatePartialsPartialsPruning} for three states, the missing flags of the parent are already set.
+     */
+    protected void calculatePartialsPartialsPruning3(double[] partials1, double[] matrices1, boolean[] missing1,
+                                                     double[] partials2, double[] matrices2, boolean[] missing2,
+                                                     double[] partials3, boolean[] missing3) {
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l % nrOfRateMatrices * matrixSize;
+            double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2];
+            double a10 = matrices1[w + 3], a11 = matrices1[w + 4], a12 = matrices1[w + 5];
+            double a20 = matrices1[w + 6], a21 = matrices1[w + 7], a22 = matrices1[w + 8];
+            double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2];
+            double b10 = matrices2[w + 3], b11 = matrices2[w + 4], b12 = matrices2[w + 5];
+            double b20 = matrices2[w + 6], b21 = matrices2[w + 7], b22 = matrices2[w + 8];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                if (missing3[k]) {
+                    partials3[u] = 1.0;
+                    partials3[u + 1] = 1.0;
+                    partials3[u + 2] = 1.0;
+                } else if (missing1[k]) {
+                    double q0 = partials2[u], q1 = partials2[u + 1], q2 = partials2[u + 2];
+                    partials3[u] = b00 * q0 + b01 * q1 + b02 * q2;
+                    partials3[u + 1] = b10 * q0 + b11 * q1 + b12 * q2;
+                    partials3[u + 2] = b20 * q0 + b21 * q1 + b22 * q2;
+                } else if (missing2[k]) {
+                    double p0 = partials1[u], p1 = partials1[u + 1], p2 = partials1[u + 2];
+                    partials3[u] = a00 * p0 + a01 * p1 + a02 * p2;
+                    partials3[u + 1] = a10 * p0 + a11 * p1 + a12 * p2;
+                    partials3[u + 2] = a20 * p0 + a21 * p1 + a22 * p2;
+                } else {
+                    double p0 = partials1[u], p1 = partials1[u + 1], p2 = partials1[u + 2];
+                    double q0 = partials2[u], q1 = partials2[u + 1], q2 = partials2[u + 2];
+                    partials3[u] = (a00 * p0 + a01 * p1 + a02 * p2) * (b00 * q0 + b01 * q1 + b02 * q2);
+                    partials3[u + 1] = (a10 * p0 + a11 * p1 + a12 * p2) * (b10 * q0 + b11 * q1 + b12 * q2);
+                    partials3[u + 2] = (a20 * p0 + a21 * p1 + a22 * p2) * (b20 * q0 + b21 * q1 + b22 * q2);
+                }
+                u += 3;
+            }
+        }
+    }
+
+    /**
+     * Calculates the partials of one pattern from a single leaf child, only using the non-zero states of its code.
+     *
+     * @param matrices1 transition matrices of the leaf
+     * @param w         offset of the matrix of the current category
+     * @param codeTable code table
+     * @param v         offset of the code in the code table
+     * @param states    states with a non-zero entry for the code
+     * @param partials3 output partials
+     * @param u         offset of the pattern in partials3
+     * @return offset of the next pattern in partials3
+     */
+    protected int calculateSingleCodePruning(double[] matrices1, int w, double[] codeTable, int v, int[] states,
+                                             double[] partials3, int u) {
+        for (int i = 0; i < nrOfStates; i++) {
+
+            double sum1 = 0.0;
+
+            for (int j : states) {
+                sum1 += matrices1[w + j] * codeTable[v + j];
+            }
+            w += nrOfStates;
+
+            partials3[u] = sum1;
+            u++;
+        }
+        return u;
+    }
+
+    /**
+     * Calculates the partials of one pattern from a single child, used when the other child is missing.
+     *
+     * @param matrices1 transition matrices of the child
+     * @param w         offset of the matrix of the current category
+     * @param partials1 partials or code table of the child
+     * @param v         offset of the pattern or code in partials1
+     * @param partials3 partials of the parent
+     * @param u         offset of the pattern in partials3
+     * @return offset of the next pattern in partials3
+     */
+    protected int calculateSingleChildPruning(double[] matrices1, int w, double[] partials1, int v, double[] partials3, int u) {
+        for (int i = 0; i < nrOfStates; i++) {
+
+            double sum1 = 0.0;
+
+            for (int j = 0; j < nrOfStates; j++) {
+                sum1 += matrices1[w] * partials1[v + j];
+                w++;
+            }
+
+            partials3[u] = sum1;
+            u++;
+        }
+        return u;
+    }
+
+    /**
+     * Integrates the partials over the error and rate categories,
+     * the proportions of the rate categories are combined with the proportions of the error categories
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+        super.calculateIntegratePartials(inPartials, getCombinedProportions(proportions), outPartials);
+    }
+
+    /**
+     * @return proportions of the combined error and rate categories, or the rate proportions without error categories
+     */
+    protected double[] getCombinedProportions(double[] proportions) {
+        if (nrOfErrorCategories == 1) {
+            return proportions;
+        }
+        for (int e = 0; e < nrOfErrorCategories; e++) {
+            for (int r = 0; r < nrOfRateMatrices; r++) {
+                combinedProportions[e * nrOfRateMatrices + r] = errorCategoryProportions[e] * proportions[r];
+            }
+        }
+        return combinedProportions;
+    }
+
+    /**
+     * Store current state
+     */
+    @Override
+    public void store() {
+        super.store();
+        patternUpdateCount = 0;
+        codeUpdateCount = 0;
+        System.arraycopy(currentCodeTableIndex, 0, storedCodeTableIndex, 0, nrOfCodeTables);
+        System.arraycopy(currentFoldedIndex, 0, storedFoldedIndex, 0, nrOfNodes);
+    }
+
+    /**
+     * Reverts the partials and matrices before they are all recalculated, for example when scaling is turned on.
+     * The code tables are kept, since they are set from the current error model before the partials are calculated,
+     * and the stored tables may not have been filled yet.
+     */
+    @Override
+    public void unstore() {
+        super.unstore();
+        System.arraycopy(storedFoldedIndex, 0, currentFoldedIndex, 0, nrOfNodes);
+    }
+
+    /**
+     * Restore the stored state, setting back the patterns updated in place
+     */
+    @Override
+    public void restore() {
+        undoPatternUpdates();
+        super.restore();
+        int[] tmp = currentCodeTableIndex;
+        currentCodeTableIndex = storedCodeTableIndex;
+        storedCodeTableIndex = tmp;
+
+        int[] tmp2 = currentFoldedIndex;
+        currentFoldedIndex = storedFoldedIndex;
+        storedFoldedIndex = tmp2;
+    }
+
+}
@@ -0,0 +1,112 @@
+package phylonco.beast.evolution.likelihood;
+
+/**
+ * Error likelihood core that stores the partials of internal nodes in single precision,
+ * halving the memory used by the partials.
+ *
+ * All calculations are done in double precision and only the stored values are rounded.
+ * Partials are always scaled per node and pattern so the largest entry is one,
+ * which keeps the stored values well within the range of a float.
+ */
+public class FloatErrorLikelihoodCore extends StoredPartialsErrorLikelihoodCore {
+
+    /**
+     * single precision partials of internal nodes, double buffered for store and restore
+     */
+    protected float[][][] floatPartials;
+
+    public FloatErrorLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        floatPartials = new float[2][nodeCount][];
+        super.setUseScaling(2.0);
+    }
+
+    /**
+     * partials are always scaled
+     */
+    @Override
+    public void setUseScaling(double scale) {
+        if (!useScaling) {
+            super.setUseScaling(scale);
+        }
+    }
+
+    /**
+     * partials are always scaled at every node, so dynamic scaling is not used
+     */
+    @Override
+    public void setScalingCheckInterval(int scalingCheckInterval) {
+    }
+
+    /**
+     * Allocates single precision partials for a node
+     */
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        floatPartials[0][nodeIndex] = new float[partialsSize];
+        floatPartials[1][nodeIndex] = new float[partialsSize];
+    }
+
+    @Override
+    protected void readPartials(int nodeIndex, int bufferIndex, double[] partialsOut) {
+        float[] stored = floatPartials[bufferIndex][nodeIndex];
+        for (int i = 0; i < partialsSize; i++) {
+            partialsOut[i] = stored[i];
+        }
+    }
+
+    @Override
+    protected void writePartials(int nodeIndex, int bufferIndex, double[] partialsIn) {
+        float[] stored = floatPartials[bufferIndex][nodeIndex];
+        for (int i = 0; i < partialsSize; i++) {
+            stored[i] = (float) partialsIn[i];
+        }
+    }
+
+    /**
+     * Scales the partials of each pattern at a node so the largest entry is one.
+     * Unlike BeerLikelihoodCore this does not use a threshold, so the stored partials never underflow.
+     */
+    @Override
+    protected void scalePartials(int nodeIndex) {
+        double[] partials1 = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+        double[] scalingFactors1 = scalingFactors[currentPartialsIndex[nodeIndex]][nodeIndex];
+        int u = 0;
+
+        for (int i = 0; i < nrOfPatterns; i++) {
+
+            double scaleFactor = 0.0;
+            int v = u;
+            for (int k = 0; k < nrOfMatrices; k++) {
+                for (int j = 0; j < nrOfStates; j++) {
+                    if (partials1[v] > scaleFactor) {
+                        scaleFactor = partials1[v];
+                    }
+                    v++;
+                }
+                v += (nrOfPatterns - 1) * nrOfStates;
+            }
+
+            if (scaleFactor > 0.0 && scaleFactor != 1.0) {
+                v = u;
+                for (int k = 0; k < nrOfMatrices; k++) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        partials1[v] /= scaleFactor;
+                        v++;
+                    }
+                    v += (nrOfPatterns - 1) * nrOfStates;
+                }
+                scalingFactors1[i] = Math.log(scaleFactor);
+            } else {
+                scalingFactors1[i] = 0.0;
+            }
+            u += nrOfStates;
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+@Description("Logs the posterior probabilities of the true genotype of each cell and site pattern given the data, " +
+        "from one pre-order pass of a tree likelihood with an error model, and accumulates the posterior means over the samples")
+public class GenotypePosteriorLogger extends BEASTObject implements Loggable {
+
+    final public Input<TreeLikelihoodWithErrorFast> likelihoodInput = new Input<>("likelihood",
+            "tree likelihood with an error model", Input.Validate.REQUIRED);
+
+    final public Input<Boolean> logProbabilitiesInput = new Input<>("logProbabilities",
+            "log the probability of every genotype for each cell and pattern, " +
+                    "otherwise only the most probable genotype is logged", false);
+
+    final public Input<String> meanFileNameInput = new Input<>("meanFileName",
+            "file for the posterior mean probability of every genotype for each cell and site, " +
+                    "written as tab separated values at the end of the run");
+
+    protected TreeLikelihoodWithErrorFast likelihood;
+
+    /**
+     * posterior probabilities of the last sample and their sum over the samples,
+     * indexed by node number of the leaf, then pattern * stateCount + state
+     */
+    protected double[][] posteriors;
+    protected double[][] posteriorSums;
+    protected long sampleCount;
+
+    @Override
+    public void initAndValidate() {
+        likelihood = likelihoodInput.get();
+        TreeInterface tree = likelihood.treeInput.get();
+        posteriors = new double[tree.getNodeCount()][];
+        posteriorSums = new double[tree.getNodeCount()][];
+        sampleCount = 0;
+    }
+
+    /**
+     * calculates the genotype posteriors of the current state and adds them to the sums
+     */
+    public void sample() {
+        likelihood.calculateGenotypePosteriors(posteriors);
+        for (Node leaf : likelihood.treeInput.get().getExternalNodes()) {
+            double[] values = posteriors[leaf.getNr()];
+            if (posteriorSums[leaf.getNr()] == null) {
+                posteriorSums[leaf.getNr()] = new double[values.length];
+            }
+            double[] sums = posteriorSums[leaf.getNr()];
+            for (int i = 0; i < values.length; i++) {
+                sums[i] += values[i];
+            }
+        }
+        sampleCount++;
+    }
+
+    /**
+     * @return posterior probabilities of the last sample, indexed by node number of the leaf,
+     *         then pattern * stateCount + state
+     */
+    public double[][] getPosteriors() {
+        return posteriors;
+    }
+
+    /**
+     * @param leaf leaf of the tree
+     * @return posterior mean probabilities of the leaf over the samples, indexed by pattern * stateCount + state
+     */
+    public double[] getPosteriorMeans(Node leaf) {
+        double[] sums = posteriorSums[leaf.getNr()];
+        double[] means = new double[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            means[i] = sums[i] / sampleCount;
+        }
+        return means;
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        Alignment data = likelihood.dataInput.get();
+        int nrOfStates = data.getDataType().getStateCount();
+        for (Node leaf : likelihood.treeInput.get().getExternalNodes()) {
+            for (int k = 0; k < data.getPatternCount(); k++) {
+                String prefix = getID() + "." + leaf.getID() + "." + k;
+                if (logProbabilitiesInput.get()) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        out.print(prefix + "." + data.getDataType().getCharacter(j) + "\t");
+                    }
+                } else {
+                    out.print(prefix + "\t");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        sample();
+        int nrOfStates = likelihood.dataInput.get().getDataType().getStateCount();
+        for (Node leaf : likelihood.treeInput.get().getExternalNodes()) {
+            double[] values = posteriors[leaf.getNr()];
+            for (int v = 0; v < values.length; v += nrOfStates) {
+                if (logProbabilitiesInput.get()) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        out.print(values[v + j] + "\t");
+                    }
+                } else {
+                    int best = 0;
+                    for (int j = 1; j < nrOfStates; j++) {
+                        if (values[v + j] > values[v + best]) {
+                            best = j;
+                        }
+                    }
+                    out.print(best + "\t");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (meanFileNameInput.get() == null || sampleCount == 0) {
+            return;
+        }
+        try (PrintStream meanOut = new PrintStream(meanFileNameInput.get())) {
+            logPosteriorMeans(meanOut);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Cannot write genotype posteriors to " + meanFileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes the posterior mean probability of every genotype for each cell and site, one line per cell and site
+     */
+    public void logPosteriorMeans(PrintStream out) {
+        Alignment data = likelihood.dataInput.get();
+        int nrOfStates = data.getDataType().getStateCount();
+        out.print("taxon\tsite");
+        for (int j = 0; j < nrOfStates; j++) {
+            out.print("\t" + data.getDataType().getCharacter(j));
+        }
+        out.println();
+        for (Node leaf : likelihood.treeInput.get().getExternalNodes()) {
+            double[] means = getPosteriorMeans(leaf);
+            for (int site = 0; site < data.getSiteCount(); site++) {
+                int v = data.getPatternIndex(site) * nrOfStates;
+                out.print(leaf.getID() + "\t" + site);
+                for (int j = 0; j < nrOfStates; j++) {
+                    out.print("\t" + means[v + j]);
+                }
+                out.println();
+            }
+        }
+    }
+
+}
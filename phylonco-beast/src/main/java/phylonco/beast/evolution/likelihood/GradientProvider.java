@@ -0,0 +1,23 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Likelihood that provides derivatives of its log likelihood, for gradient based operators.
+ * The derivatives are for the state of the last call to calculateLogP.
+ */
+public interface GradientProvider {
+
+    /**
+     * @param parameter parameter of the likelihood
+     * @return derivative of the log likelihood with respect to each value of the parameter
+     */
+    double[] getGradient(RealParameter parameter);
+
+    /**
+     * @return derivative of the log likelihood with respect to the length of the branch above each node,
+     *         indexed by node number, zero for the root
+     */
+    double[] getBranchLengthGradient();
+
+}
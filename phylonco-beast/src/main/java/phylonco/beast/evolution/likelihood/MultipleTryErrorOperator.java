@@ -0,0 +1,149 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+@Description("Multiple-try Metropolis operator for an error parameter, such as delta or epsilon of a GT16 error model. " +
+        "Selects a random dimension of the parameter, proposes several values within +/- windowSize " +
+        "and picks one in proportion to its tree likelihood, using one batch evaluation of the likelihood for all tries.")
+public class MultipleTryErrorOperator extends Operator {
+
+    final public Input<RealParameter> parameterInput = new Input<>("parameter",
+            "error parameter of the error model of the likelihood", Input.Validate.REQUIRED);
+
+    final public Input<TreeLikelihoodWithErrorFast> likelihoodInput = new Input<>("likelihood",
+            "tree likelihood with an error model that uses the parameter", Input.Validate.REQUIRED);
+
+    final public Input<Integer> tryCountInput = new Input<>("tryCount",
+            "number of values proposed in each step", 8);
+
+    final public Input<Double> windowSizeInput = new Input<>("windowSize",
+            "the size of the window both up and down", 0.01);
+
+    protected int tryCount;
+    protected double windowSize;
+
+    @Override
+    public void initAndValidate() {
+        tryCount = tryCountInput.get();
+        windowSize = windowSizeInput.get();
+        if (tryCount < 1) {
+            throw new IllegalArgumentException("tryCount must be at least 1, but was " + tryCount);
+        }
+    }
+
+    /**
+     * Proposes tryCount values from a random walk of the current value and selects one in proportion to its likelihood,
+     * then draws tryCount - 1 reference values from a random walk of the selected value.
+     * The likelihood is used as the weight of each try, so the Hastings ratio is the sum of the weights of the tries
+     * over the sum of the weights of the references, times the likelihood ratio of the current and selected values,
+     * which leaves the posterior as the target.
+     */
+    @Override
+    public double proposal() {
+        RealParameter parameter = parameterInput.get();
+        TreeLikelihoodWithErrorFast likelihood = likelihoodInput.get();
+        int index = Randomizer.nextInt(parameter.getDimension());
+        double[] current = parameter.getDoubleValues();
+
+        double[][] tries = new double[tryCount][];
+        for (int t = 0; t < tryCount; t++) {
+            tries[t] = proposeValues(parameter, current, index);
+        }
+        double[] tryLogL = calculateLogPBatch(likelihood, parameter, tries, index);
+        int selected = selectTry(tryLogL);
+        if (selected < 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // the references are drawn around the selected values, the last reference is the current values
+        double[][] references = new double[tryCount][];
+        for (int t = 0; t < tryCount - 1; t++) {
+            references[t] = proposeValues(parameter, tries[selected], index);
+        }
+        references[tryCount - 1] = current;
+        double[] referenceLogL = calculateLogPBatch(likelihood, parameter, references, index);
+
+        parameter.setValue(index, tries[selected][index]);
+        return logSumExp(tryLogL) - logSumExp(referenceLogL) - tryLogL[selected] + referenceLogL[tryCount - 1];
+    }
+
+    /**
+     * @return copy of the values with one value moved by a uniform random walk
+     */
+    protected double[] proposeValues(RealParameter parameter, double[] values, int index) {
+        double[] proposed = values.clone();
+        proposed[index] += Randomizer.nextDouble() * 2 * windowSize - windowSize;
+        return proposed;
+    }
+
+    /**
+     * @return log likelihood of each set of values, negative infinity for values out of the bounds of the parameter
+     */
+    protected double[] calculateLogPBatch(TreeLikelihoodWithErrorFast likelihood, RealParameter parameter,
+                                          double[][] values, int index) {
+        double[] logL = likelihood.calculateLogPBatch(parameter, values);
+        for (int t = 0; t < values.length; t++) {
+            if (values[t][index] < parameter.getLower() || values[t][index] > parameter.getUpper() || Double.isNaN(logL[t])) {
+                logL[t] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return logL;
+    }
+
+    /**
+     * @return index of a try drawn in proportion to its likelihood, or -1 if all tries have zero likelihood
+     */
+    protected int selectTry(double[] logL) {
+        double max = max(logL);
+        if (max == Double.NEGATIVE_INFINITY) {
+            return -1;
+        }
+        double[] weights = new double[logL.length];
+        for (int t = 0; t < logL.length; t++) {
+            weights[t] = Math.exp(logL[t] - max);
+        }
+        return Randomizer.randomChoicePDF(weights);
+    }
+
+    protected static double logSumExp(double[] logL) {
+        double max = max(logL);
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for (double value : logL) {
+            sum += Math.exp(value - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    protected static double max(double[] values) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return windowSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        windowSize = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        double delta = calcDelta(logAlpha);
+        delta += Math.log(windowSize);
+        windowSize = Math.exp(delta);
+    }
+
+}
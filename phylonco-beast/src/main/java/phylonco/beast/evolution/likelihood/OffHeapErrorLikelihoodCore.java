@@ -0,0 +1,97 @@
+package phylonco.beast.evolution.likelihood;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Error likelihood core that stores the partials of internal nodes off the Java heap,
+ * either in direct buffers or in a memory-mapped scratch file.
+ *
+ * The heap only holds the working arrays used for a single pruning step,
+ * so the size of the heap and garbage collection do not grow with the size of the partials.
+ * With a scratch file the operating system pages partials in and out as needed,
+ * so the partials may exceed the available memory, and since only the nodes on the path
+ * from a changed node to the root are updated, most partials stay on disk.
+ */
+public class OffHeapErrorLikelihoodCore extends StoredPartialsErrorLikelihoodCore {
+
+    /**
+     * scratch file for memory-mapped partials, or null to use direct buffers
+     */
+    protected File scratchFile;
+
+    protected RandomAccessFile scratch;
+
+    /**
+     * off heap partials of internal nodes, double buffered for store and restore
+     */
+    protected DoubleBuffer[][] offHeapPartials;
+
+    /**
+     * @param nrOfStates  number of states
+     * @param scratchFile file used to map the partials into memory, or null to use direct buffers
+     */
+    public OffHeapErrorLikelihoodCore(int nrOfStates, File scratchFile) {
+        super(nrOfStates);
+        this.scratchFile = scratchFile;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        if ((long) partialsSize * Double.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Partials of a node are too large for an off heap buffer: " + partialsSize);
+        }
+        offHeapPartials = new DoubleBuffer[2][nodeCount];
+        if (scratchFile != null && scratch == null) {
+            try {
+                scratch = new RandomAccessFile(scratchFile, "rw");
+                scratchFile.deleteOnExit();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot open scratch file for partials " + scratchFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Allocates off heap partials for a node
+     */
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        offHeapPartials[0][nodeIndex] = createBuffer(nodeIndex, 0);
+        offHeapPartials[1][nodeIndex] = createBuffer(nodeIndex, 1);
+    }
+
+    protected DoubleBuffer createBuffer(int nodeIndex, int bufferIndex) {
+        long size = (long) partialsSize * Double.BYTES;
+        ByteBuffer buffer;
+        if (scratch == null) {
+            buffer = ByteBuffer.allocateDirect((int) size);
+        } else {
+            // each buffer of each node has its own region of the file
+            long offset = ((long) bufferIndex * nrOfNodes + nodeIndex) * size;
+            try {
+                buffer = scratch.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, size);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map partials to scratch file " + scratchFile.getAbsolutePath(), e);
+            }
+        }
+        return buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    @Override
+    protected void readPartials(int nodeIndex, int bufferIndex, double[] partialsOut) {
+        offHeapPartials[bufferIndex][nodeIndex].get(0, partialsOut, 0, partialsSize);
+    }
+
+    @Override
+    protected void writePartials(int nodeIndex, int bufferIndex, double[] partialsIn) {
+        offHeapPartials[bufferIndex][nodeIndex].put(0, partialsIn, 0, partialsSize);
+    }
+
+}
@@ -0,0 +1,96 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Input;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.parser.XMLParser;
+import beast.pkgmgmt.PackageManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the log likelihood of tree likelihoods with error models using partials stored as floats
+ * against the log likelihood using partials stored as doubles.
+ *
+ * Usage: PartialsPrecisionCheck file.xml [file.xml ...]
+ * reports each likelihood with a partialsStorage input in the model of each file.
+ */
+public class PartialsPrecisionCheck {
+
+    private static final String STORAGE_INPUT = "partialsStorage";
+
+    private PartialsPrecisionCheck() {
+    }
+
+    /**
+     * Finds the likelihoods with a partialsStorage input that are reachable from the model.
+     *
+     * @param model root of the model, for example the MCMC object
+     * @return likelihoods in the model
+     */
+    public static List<GenericTreeLikelihood> getLikelihoods(BEASTInterface model) {
+        List<GenericTreeLikelihood> likelihoods = new ArrayList<>();
+        collectLikelihoods(model, new IdentityHashMap<>(), likelihoods);
+        return likelihoods;
+    }
+
+    private static void collectLikelihoods(BEASTInterface o, Map<BEASTInterface, Boolean> visited, List<GenericTreeLikelihood> likelihoods) {
+        if (visited.put(o, true) != null) {
+            return;
+        }
+        if (o instanceof GenericTreeLikelihood && o.getInputs().containsKey(STORAGE_INPUT)) {
+            likelihoods.add((GenericTreeLikelihood) o);
+        }
+        for (BEASTInterface child : o.listActiveBEASTObjects()) {
+            collectLikelihoods(child, visited, likelihoods);
+        }
+    }
+
+    /**
+     * Calculates the log likelihood with partials stored as doubles and as floats,
+     * the likelihood is left with its original storage.
+     *
+     * @param likelihood likelihood with a partialsStorage input
+     * @return log likelihoods using doubles and floats
+     */
+    public static double[] compare(GenericTreeLikelihood likelihood) {
+        Input<?> input = likelihood.getInput(STORAGE_INPUT);
+        Object storage = input.get();
+        double[] logP = new double[2];
+
+        likelihood.setInputValue(STORAGE_INPUT, TreeLikelihoodWithError.PartialsStorage.doubles);
+        likelihood.initAndValidate();
+        logP[0] = likelihood.calculateLogP();
+
+        likelihood.setInputValue(STORAGE_INPUT, TreeLikelihoodWithError.PartialsStorage.floats);
+        likelihood.initAndValidate();
+        logP[1] = likelihood.calculateLogP();
+
+        likelihood.setInputValue(STORAGE_INPUT, storage);
+        likelihood.initAndValidate();
+        return logP;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: PartialsPrecisionCheck file.xml [file.xml ...]");
+            return;
+        }
+        PackageManager.loadExternalJars();
+
+        System.out.println("file\tlikelihood\tlogP(doubles)\tlogP(floats)\tdifference");
+        for (String fileName : args) {
+            BEASTInterface model = (BEASTInterface) new XMLParser().parseFile(new File(fileName));
+            for (GenericTreeLikelihood likelihood : getLikelihoods(model)) {
+                double[] logP = compare(likelihood);
+                System.out.println(fileName + "\t" + likelihood.getID() + "\t" + logP[0] + "\t" + logP[1] + "\t" + (logP[1] - logP[0]));
+            }
+        }
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,233 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@Description("Streams the pattern log likelihoods of a tree likelihood with an error model to a binary file for model comparison, " +
+        "for example WAIC or LOO computed by PatternLogLikelihoodReader. " +
+        "The file is written on a background thread in blocks of samples, with the values of each pattern stored together")
+public class PatternLogLikelihoodLogger extends BEASTObject implements Loggable {
+
+    final public Input<GenericTreeLikelihood> likelihoodInput = new Input<>("likelihood",
+            "tree likelihood with an error model, a TreeLikelihood or ThreadedTreeLikelihoodWithError", Input.Validate.REQUIRED);
+
+    final public Input<String> fileNameInput = new Input<>("fileName",
+            "binary file for the pattern log likelihoods", Input.Validate.REQUIRED);
+
+    final public Input<Boolean> useFloatInput = new Input<>("useFloat",
+            "store the log likelihoods as 4 byte floats instead of 8 byte doubles", false);
+
+    final public Input<Integer> blockSizeInput = new Input<>("blockSize",
+            "number of samples in each block of the file", 100);
+
+    /**
+     * file format: a header of ints with MAGIC, VERSION, bytes per value, pattern count, site count,
+     * and the pattern index of each site, followed by blocks of samples,
+     * each block an int sample count n, n longs with the sample numbers, and n values for each pattern in turn.
+     * All values are big endian.
+     */
+    public static final int MAGIC = 0x504C4C4B;
+    public static final int VERSION = 1;
+
+    protected static final int QUEUE_SIZE = 64;
+
+    protected GenericTreeLikelihood likelihood;
+    protected int[] sitePatterns;
+    protected int patternCount;
+
+    protected BlockingQueue<double[]> queue;
+    protected Thread writer;
+    protected volatile Exception writerError;
+
+    @Override
+    public void initAndValidate() {
+        likelihood = likelihoodInput.get();
+        if (likelihood instanceof BeagleTreeLikelihoodWithError && ((BeagleTreeLikelihoodWithError) likelihood).javaLikelihood != null) {
+            // without BEAGLE the pattern log likelihoods are those of the java likelihood
+            likelihood = ((BeagleTreeLikelihoodWithError) likelihood).javaLikelihood;
+        }
+        List<Alignment> alignments = new ArrayList<>();
+        if (likelihood instanceof ThreadedTreeLikelihoodWithError) {
+            // the pattern log likelihoods are the patterns of each block of sites in turn
+            for (TreeLikelihoodWithErrorFast b : ((ThreadedTreeLikelihoodWithError) likelihood).treelikelihood) {
+                alignments.add(b.dataInput.get());
+            }
+        } else if (likelihood instanceof TreeLikelihood) {
+            alignments.add(likelihood.dataInput.get());
+        } else {
+            throw new IllegalArgumentException("Expected a TreeLikelihood or ThreadedTreeLikelihoodWithError, but got " +
+                    likelihood.getClass().getSimpleName());
+        }
+        if (blockSizeInput.get() < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1, but was " + blockSizeInput.get());
+        }
+
+        int siteCount = 0;
+        for (Alignment data : alignments) {
+            siteCount += data.getSiteCount();
+        }
+        sitePatterns = new int[siteCount];
+        int site = 0;
+        patternCount = 0;
+        for (Alignment data : alignments) {
+            for (int s = 0; s < data.getSiteCount(); s++) {
+                sitePatterns[site] = patternCount + data.getPatternIndex(s);
+                site++;
+            }
+            patternCount += data.getPatternCount();
+        }
+        if (likelihood instanceof ThreadedTreeLikelihoodWithError || likelihood instanceof TreeLikelihoodWithError) {
+            // BEAGLE only has its site log likelihoods after the first calculation, so it is checked when logged
+            getPatternLogLikelihoods();
+        }
+    }
+
+    /**
+     * @return the pattern log likelihoods, checked against the patterns of the header
+     */
+    protected double[] getPatternLogLikelihoods() {
+        double[] patternLogL;
+        if (likelihood instanceof ThreadedTreeLikelihoodWithError) {
+            patternLogL = ((ThreadedTreeLikelihoodWithError) likelihood).getPatternLogLikelihoods();
+        } else {
+            patternLogL = ((TreeLikelihood) likelihood).getPatternLogLikelihoods();
+        }
+        if (patternLogL.length != patternCount) {
+            throw new IllegalArgumentException(likelihood.getClass().getSimpleName() + " " + likelihood.getID() + " has " +
+                    patternLogL.length + " pattern log likelihoods, expected " + patternCount);
+        }
+        return patternLogL;
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        writerError = null;
+        writer = new Thread(this::write, "PatternLogLikelihoodLogger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * queues a copy of the pattern log likelihoods with the sample number in its last entry,
+     * only waiting for the writer when the queue is full
+     */
+    @Override
+    public void log(long sample, PrintStream out) {
+        double[] patternLogL = getPatternLogLikelihoods();
+        double[] record = new double[patternCount + 1];
+        System.arraycopy(patternLogL, 0, record, 0, patternCount);
+        record[patternCount] = sample;
+        enqueue(record);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (writer == null) {
+            return;
+        }
+        // an empty record marks the end of the samples
+        enqueue(new double[0]);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        checkWriter();
+    }
+
+    protected void enqueue(double[] record) {
+        try {
+            while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                checkWriter();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkWriter();
+    }
+
+    protected void checkWriter() {
+        if (writerError != null) {
+            throw new RuntimeException("Cannot write pattern log likelihoods to " + fileNameInput.get() + ": " +
+                    writerError.getMessage(), writerError);
+        }
+    }
+
+    /**
+     * writes the header and the queued samples in blocks, runs on the writer thread
+     */
+    protected void write() {
+        boolean useFloat = useFloatInput.get();
+        int bytesPerValue = useFloat ? Float.BYTES : Double.BYTES;
+        int blockSize = blockSizeInput.get();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileNameInput.get()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bytesPerValue);
+            out.writeInt(patternCount);
+            out.writeInt(sitePatterns.length);
+            for (int pattern : sitePatterns) {
+                out.writeInt(pattern);
+            }
+
+            double[][] block = new double[blockSize][];
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize * patternCount * bytesPerValue);
+            int n = 0;
+            while (true) {
+                double[] record = queue.take();
+                if (record.length == 0) {
+                    break;
+                }
+                block[n] = record;
+                n++;
+                if (n == blockSize) {
+                    writeBlock(out, block, n, buffer, useFloat);
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                writeBlock(out, block, n, buffer, useFloat);
+            }
+        } catch (IOException | InterruptedException e) {
+            writerError = e;
+        }
+    }
+
+    protected void writeBlock(DataOutputStream out, double[][] block, int n, ByteBuffer buffer, boolean useFloat) throws IOException {
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeLong((long) block[i][patternCount]);
+        }
+        buffer.clear();
+        for (int k = 0; k < patternCount; k++) {
+            for (int i = 0; i < n; i++) {
+                if (useFloat) {
+                    buffer.putFloat((float) block[i][k]);
+                } else {
+                    buffer.putDouble(block[i][k]);
+                }
+            }
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+}
@@ -0,0 +1,178 @@
+package phylonco.beast.evolution.likelihood;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads a file of pattern log likelihoods written by PatternLogLikelihoodLogger
+ * and computes WAIC and importance sampling LOO in a single pass over the samples,
+ * keeping running sums for each pattern only.
+ * LOO uses the raw importance ratios 1 / p(y | theta), without Pareto smoothing, which needs all samples of a site.
+ */
+public class PatternLogLikelihoodReader {
+
+    /**
+     * summary of the sites, with standard errors from the variance of the values of the sites
+     */
+    public static class Summary {
+        public long sampleCount;
+        public int siteCount;
+        public double lppd;
+        public double pWaic;
+        public double waic;
+        public double waicSE;
+        public double elpdLoo;
+        public double looic;
+        public double looicSE;
+
+        @Override
+        public String toString() {
+            return "samples\t" + sampleCount + "\n" +
+                    "sites\t" + siteCount + "\n" +
+                    "lppd\t" + lppd + "\n" +
+                    "p_waic\t" + pWaic + "\n" +
+                    "waic\t" + waic + "\tSE\t" + waicSE + "\n" +
+                    "elpd_loo\t" + elpdLoo + "\n" +
+                    "looic\t" + looic + "\tSE\t" + looicSE;
+        }
+    }
+
+    /**
+     * @param fileName file written by PatternLogLikelihoodLogger
+     * @param burnin   number of samples to skip at the start
+     * @return WAIC and LOO of the samples after burnin
+     */
+    public static Summary read(String fileName, long burnin) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))) {
+            if (in.readInt() != PatternLogLikelihoodLogger.MAGIC) {
+                throw new IOException(fileName + " is not a pattern log likelihood file");
+            }
+            int version = in.readInt();
+            if (version != PatternLogLikelihoodLogger.VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + fileName);
+            }
+            int bytesPerValue = in.readInt();
+            int patternCount = in.readInt();
+            int siteCount = in.readInt();
+            int[] siteCounts = new int[patternCount];
+            for (int s = 0; s < siteCount; s++) {
+                siteCounts[in.readInt()]++;
+            }
+
+            // running log sum of exp(logL) and exp(-logL), and Welford mean and sum of squares of logL, for each pattern
+            double[] maxLogL = new double[patternCount];
+            double[] sumExp = new double[patternCount];
+            double[] maxNegLogL = new double[patternCount];
+            double[] sumNegExp = new double[patternCount];
+            double[] mean = new double[patternCount];
+            double[] sumOfSquares = new double[patternCount];
+            Arrays.fill(maxLogL, Double.NEGATIVE_INFINITY);
+            Arrays.fill(maxNegLogL, Double.NEGATIVE_INFINITY);
+
+            long sample = 0;
+            long count = 0;
+            byte[] bytes = new byte[0];
+            double[] values = new double[0];
+            while (true) {
+                int n;
+                try {
+                    n = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    in.readLong();
+                }
+                if (bytes.length < n * patternCount * bytesPerValue) {
+                    bytes = new byte[n * patternCount * bytesPerValue];
+                    values = new double[n];
+                }
+                in.readFully(bytes, 0, n * patternCount * bytesPerValue);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                // samples of the block after burnin
+                int first = (int) Math.max(0, Math.min(n, burnin - sample));
+                for (int k = 0; k < patternCount; k++) {
+                    for (int i = 0; i < n; i++) {
+                        values[i] = bytesPerValue == Float.BYTES ? buffer.getFloat() : buffer.getDouble();
+                    }
+                    long c = count;
+                    for (int i = first; i < n; i++) {
+                        double x = values[i];
+                        c++;
+                        double delta = x - mean[k];
+                        mean[k] += delta / c;
+                        sumOfSquares[k] += delta * (x - mean[k]);
+                        if (x > maxLogL[k]) {
+                            sumExp[k] = sumExp[k] * Math.exp(maxLogL[k] - x) + 1.0;
+                            maxLogL[k] = x;
+                        } else {
+                            sumExp[k] += Math.exp(x - maxLogL[k]);
+                        }
+                        if (-x > maxNegLogL[k]) {
+                            sumNegExp[k] = sumNegExp[k] * Math.exp(maxNegLogL[k] + x) + 1.0;
+                            maxNegLogL[k] = -x;
+                        } else {
+                            sumNegExp[k] += Math.exp(-x - maxNegLogL[k]);
+                        }
+                    }
+                }
+                count += n - first;
+                sample += n;
+            }
+
+            Summary summary = new Summary();
+            summary.sampleCount = count;
+            summary.siteCount = siteCount;
+            // sums and sums of squares over the sites of the pointwise WAIC and LOO
+            double waicSquares = 0.0;
+            double looSquares = 0.0;
+            for (int k = 0; k < patternCount; k++) {
+                if (siteCounts[k] == 0) {
+                    continue;
+                }
+                double lppd = maxLogL[k] + Math.log(sumExp[k] / count);
+                double pWaic = count > 1 ? sumOfSquares[k] / (count - 1) : 0.0;
+                double elpdLoo = -(maxNegLogL[k] + Math.log(sumNegExp[k] / count));
+                double waic = -2.0 * (lppd - pWaic);
+                double looic = -2.0 * elpdLoo;
+                summary.lppd += siteCounts[k] * lppd;
+                summary.pWaic += siteCounts[k] * pWaic;
+                summary.waic += siteCounts[k] * waic;
+                summary.elpdLoo += siteCounts[k] * elpdLoo;
+                summary.looic += siteCounts[k] * looic;
+                waicSquares += siteCounts[k] * waic * waic;
+                looSquares += siteCounts[k] * looic * looic;
+            }
+            summary.waicSE = standardError(summary.waic, waicSquares, siteCount);
+            summary.looicSE = standardError(summary.looic, looSquares, siteCount);
+            return summary;
+        }
+    }
+
+    /**
+     * @return standard error of a sum over n sites, sqrt(n * variance of the pointwise values)
+     */
+    protected static double standardError(double sum, double sumOfSquares, int n) {
+        if (n < 2) {
+            return 0.0;
+        }
+        double mean = sum / n;
+        double variance = Math.max(0.0, (sumOfSquares - n * mean * mean) / (n - 1));
+        return Math.sqrt(n * variance);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PatternLogLikelihoodReader <file> [burnin samples]");
+            System.exit(1);
+        }
+        long burnin = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        System.out.println(read(args[0], burnin));
+    }
+
+}
@@ -0,0 +1,88 @@
+package phylonco.beast.evolution.likelihood;
+
+/**
+ * Error likelihood core where the partials of internal nodes are kept outside the double arrays of BeerLikelihoodCore,
+ * for example in single precision or off the Java heap.
+ *
+ * The stored partials of the children are read into double precision working arrays for each pruning step,
+ * and the partials of the parent are calculated in a working array and then written back.
+ * The stored partials are double buffered for store and restore using the partials indices of BeerLikelihoodCore.
+ */
+public abstract class StoredPartialsErrorLikelihoodCore extends ErrorLikelihoodCore {
+
+    /**
+     * double precision working arrays for the two children and the parent
+     */
+    protected double[][] workingPartials;
+
+    public StoredPartialsErrorLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        workingPartials = new double[3][partialsSize];
+    }
+
+    /**
+     * Allocates both buffers of the stored partials for a node
+     */
+    @Override
+    public abstract void createNodePartials(int nodeIndex);
+
+    /**
+     * Reads the stored partials of a node from the given buffer
+     */
+    protected abstract void readPartials(int nodeIndex, int bufferIndex, double[] partialsOut);
+
+    /**
+     * Writes the partials of a node into the given buffer
+     */
+    protected abstract void writePartials(int nodeIndex, int bufferIndex, double[] partialsIn);
+
+    /**
+     * Reads the current partials of a node into a working array,
+     * which then stands in for the partials of the node in the double precision arrays.
+     */
+    protected void expandPartials(int nodeIndex, double[] buffer) {
+        readPartials(nodeIndex, currentPartialsIndex[nodeIndex], buffer);
+        partials[currentPartialsIndex[nodeIndex]][nodeIndex] = buffer;
+    }
+
+    /**
+     * the stored partials are only read and written for whole nodes
+     */
+    @Override
+    public boolean canUpdatePatterns() {
+        return false;
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        if (codes[nodeIndex1] == null) {
+            expandPartials(nodeIndex1, workingPartials[0]);
+        }
+        if (codes[nodeIndex2] == null) {
+            expandPartials(nodeIndex2, workingPartials[1]);
+        }
+        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3] = workingPartials[2];
+        super.calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3);
+        writePartials(nodeIndex3, currentPartialsIndex[nodeIndex3], workingPartials[2]);
+    }
+
+    @Override
+    public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+        expandPartials(nodeIndex, workingPartials[2]);
+        super.integratePartials(nodeIndex, proportions, outPartials);
+    }
+
+    @Override
+    public void getNodePartials(int nodeIndex, double[] partialsOut) {
+        if (codes[nodeIndex] == null) {
+            expandPartials(nodeIndex, workingPartials[2]);
+        }
+        super.getNodePartials(nodeIndex, partialsOut);
+    }
+
+}
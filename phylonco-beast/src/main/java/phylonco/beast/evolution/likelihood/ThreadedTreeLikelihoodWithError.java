@@ -0,0 +1,367 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.inference.State;
+import phylonco.beast.evolution.errormodel.ErrorModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multithreaded version of TreeLikelihoodWithErrorFast, following ThreadedTreeLikelihood.
+ * Sites are split into contiguous blocks, each with its own likelihood core,
+ * and all blocks share the same error model.
+ */
+@Description("Tree likelihood calculation with error models, using multiple threads over blocks of sites")
+public class ThreadedTreeLikelihoodWithError extends GenericTreeLikelihood {
+
+    final public Input<ErrorModel> errorModelInput = new Input<>("errorModel", "error model to use for partials");
+    final public Input<Boolean> useTipsEmpiricalInput = new Input<>("useTipsEmpirical", "use tip ambiguities from data", false);
+    final public Input<Boolean> foldErrorMatrixInput = new Input<>("foldErrorMatrix", "precompute the transition matrix times the error matrix for each pendant branch and observed code", false);
+    final public Input<TreeLikelihoodWithError.PartialsStorage> partialsStorageInput = new Input<>("partialsStorage", "storage of the partials of internal nodes, one of " + Arrays.toString(TreeLikelihoodWithError.PartialsStorage.values()) + " (default doubles)",
+            TreeLikelihoodWithError.PartialsStorage.doubles, TreeLikelihoodWithError.PartialsStorage.values());
+    final public Input<String> scratchDirInput = new Input<>("scratchDir", "directory for the scratch files of mapped partials (default java.io.tmpdir)");
+    final public Input<Integer> scalingCheckIntervalInput = new Input<>("scalingCheckInterval", "number of calculations of a node between checks of its partials " +
+            "with dynamic scaling, 0 to scale every node once the likelihood underflows, see TreeLikelihoodWithError (default 0)", 0);
+    final public Input<TreeLikelihoodWithError.Ascertainment> ascertainmentInput = new Input<>("ascertainment", "condition the likelihood on the sites being variable, one of " +
+            Arrays.toString(TreeLikelihoodWithError.Ascertainment.values()) + ", see TreeLikelihoodWithError (default none)",
+            TreeLikelihoodWithError.Ascertainment.none, TreeLikelihoodWithError.Ascertainment.values());
+    final public Input<Boolean> useAmbiguitiesInput = new Input<>("useAmbiguities", "flag to indicate leafs that sites containing ambiguous states should be handled instead of ignored, " +
+            "always used with error models", true);
+
+    final public Input<Integer> maxNrOfThreadsInput = new Input<>("threads", "number of threads to use, if less than 1 the number of threads in BeastMCMC is used (default -1)", -1);
+
+    final public Input<String> proportionsInput = new Input<>("proportions", "specifies proportions of patterns used per thread as space "
+            + "delimited string, see ThreadedTreeLikelihood. If not specified, all threads get the same proportion of patterns.");
+
+    final public Input<TreeLikelihood.Scaling> scalingInput = new Input<>("scaling", "type of scaling to use, one of " + Arrays.toString(TreeLikelihood.Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.",
+            TreeLikelihood.Scaling._default, TreeLikelihood.Scaling.values());
+
+    final public Input<Frequencies> rootFrequenciesInput = new Input<>("rootFrequencies", "prior state frequencies at root, optional", Input.Validate.OPTIONAL);
+
+    /**
+     * private list of likelihoods, to notify framework of TreeLikelihoods being created in initAndValidate()
+     */
+    final private Input<List<TreeLikelihoodWithErrorFast>> likelihoodsInput = new Input<>("*", "", new ArrayList<>());
+
+    @Override
+    public List<Input<?>> listInputs() {
+        List<Input<?>> list = super.listInputs();
+        if (!ProgramStatus.name.equals("BEAUti") && System.getProperty("beast.is.junit.testing") == null) {
+            // do not expose internal likelihoods to BEAUti or junit tests
+            list.add(likelihoodsInput);
+        }
+        return list;
+    }
+
+    /**
+     * calculation engine for each block of sites
+     */
+    protected TreeLikelihoodWithErrorFast[] treelikelihood;
+
+    protected ErrorModel errorModel;
+
+    private ExecutorService pool = null;
+    private final List<Callable<Double>> likelihoodCallers = new ArrayList<>();
+
+    /**
+     * number of threads to use
+     */
+    private int threadCount;
+    private double[] logPByThread;
+
+    // first patternPoints contains 0, then one point for each thread
+    private int[] patternPoints;
+
+    @Override
+    public void initAndValidate() {
+        errorModel = errorModelInput.get();
+
+        threadCount = ProgramStatus.m_nThreads;
+        if (maxNrOfThreadsInput.get() > 0) {
+            threadCount = maxNrOfThreadsInput.get();
+        }
+        String instanceCount = System.getProperty("beast.instance.count");
+        if (instanceCount != null && instanceCount.length() > 0) {
+            threadCount = Integer.parseInt(instanceCount);
+        }
+
+        // sanity check: alignment should have same #taxa as tree
+        if (dataInput.get().getTaxonCount() != treeInput.get().getLeafNodeCount()) {
+            throw new IllegalArgumentException("The number of nodes in the tree does not match the number of sequences");
+        }
+
+        if (dataInput.get().isAscertained) {
+            Log.warning.println("Note, can only use single thread per alignment because the alignment is ascertained");
+            threadCount = 1;
+        }
+        if (threadCount > dataInput.get().getSiteCount()) {
+            threadCount = Math.max(1, dataInput.get().getSiteCount());
+        }
+
+        logPByThread = new double[threadCount];
+        treelikelihood = new TreeLikelihoodWithErrorFast[threadCount];
+        likelihoodsInput.get().clear();
+        likelihoodCallers.clear();
+        // initAndValidate can be called again, so the threads of an earlier pool are stopped
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+
+        if (threadCount <= 1) {
+            treelikelihood[0] = new TreeLikelihoodWithErrorFast();
+            treelikelihood[0].setID(getID() + "0");
+            initTreeLikelihood(treelikelihood[0], dataInput.get(), siteModelInput.get(), branchRateModelInput.get());
+            treelikelihood[0].getOutputs().add(this);
+            likelihoodsInput.get().add(treelikelihood[0]);
+        } else {
+            pool = Executors.newFixedThreadPool(threadCount, runnable -> {
+                // the threads do not keep the JVM alive after the analysis
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            calcPatternPoints(dataInput.get().getSiteCount());
+            for (int i = 0; i < threadCount; i++) {
+                String filterSpec = (patternPoints[i] + 1) + "-" + (patternPoints[i + 1]);
+                treelikelihood[i] = new TreeLikelihoodWithErrorFast();
+                treelikelihood[i].setID(getID() + i);
+                treelikelihood[i].getOutputs().add(this);
+                likelihoodsInput.get().add(treelikelihood[i]);
+
+                FilteredAlignment filter = new FilteredAlignment();
+                filter.initByName("data", dataInput.get(), "filter", filterSpec);
+                // site and branch rate models are not thread safe, the error model is shared
+                initTreeLikelihood(treelikelihood[i], filter,
+                        duplicate((BEASTInterface) siteModelInput.get(), i),
+                        duplicate(branchRateModelInput.get(), i));
+
+                likelihoodCallers.add(new TreeLikelihoodCaller(treelikelihood[i], i));
+            }
+        }
+    }
+
+    private void initTreeLikelihood(TreeLikelihoodWithErrorFast likelihood, Alignment data, Object siteModel, Object branchRateModel) {
+        likelihood.initByName(
+                "data", data,
+                "tree", treeInput.get(),
+                "siteModel", siteModel,
+                "branchRateModel", branchRateModel,
+                "rootFrequencies", rootFrequenciesInput.get(),
+                "useAmbiguities", useAmbiguitiesInput.get(),
+                "scaling", scalingInput.get() + "",
+                "errorModel", errorModel,
+                "useTipsEmpirical", useTipsEmpiricalInput.get(),
+                "foldErrorMatrix", foldErrorMatrixInput.get(),
+                "partialsStorage", partialsStorageInput.get(),
+                "scratchDir", scratchDirInput.get(),
+                "ascertainment", ascertainmentInput.get(),
+                "scalingCheckInterval", scalingCheckIntervalInput.get());
+    }
+
+    /**
+     * create new instance of src object, connecting all inputs from src object,
+     * substitution models are duplicated as well, see ThreadedTreeLikelihood
+     *
+     * @param src object to be copied
+     * @param i   index used to extend ID with.
+     * @return copy of src object
+     */
+    private Object duplicate(BEASTInterface src, int i) {
+        if (src == null) {
+            return null;
+        }
+        BEASTInterface copy;
+        try {
+            copy = src.getClass().getDeclaredConstructor().newInstance();
+            copy.setID(src.getID() + "_" + i);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Programmer error: every object in the model should have a default constructor that is publicly accessible: " + src.getClass().getName());
+        }
+        for (Input<?> input : src.listInputs()) {
+            if (input.get() != null) {
+                if (input.get() instanceof List) {
+                    // handle lists
+                    for (Object o : (List<?>) input.get()) {
+                        if (o instanceof BEASTInterface) {
+                            copy.setInputValue(input.getName(), o);
+                        }
+                    }
+                } else if (input.get() instanceof SubstitutionModel) {
+                    // duplicate subst models
+                    BEASTInterface substModel = (BEASTInterface) duplicate((BEASTInterface) input.get(), i);
+                    copy.setInputValue(input.getName(), substModel);
+                } else {
+                    // it is some other value
+                    copy.setInputValue(input.getName(), input.get());
+                }
+            }
+        }
+        copy.initAndValidate();
+        return copy;
+    }
+
+    private void calcPatternPoints(int nPatterns) {
+        patternPoints = new int[threadCount + 1];
+        if (proportionsInput.get() == null) {
+            int range = nPatterns / threadCount;
+            for (int i = 0; i < threadCount - 1; i++) {
+                patternPoints[i + 1] = range * (i + 1);
+            }
+            patternPoints[threadCount] = nPatterns;
+        } else {
+            String[] strs = proportionsInput.get().split("\\s+");
+            double[] proportions = new double[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                proportions[i] = Double.parseDouble(strs[i % strs.length]);
+            }
+            // normalise
+            double sum = 0;
+            for (double d : proportions) {
+                sum += d;
+            }
+            for (int i = 0; i < threadCount; i++) {
+                proportions[i] /= sum;
+            }
+            // cumulative
+            for (int i = 1; i < threadCount; i++) {
+                proportions[i] += proportions[i - 1];
+            }
+            // calc ranges
+            for (int i = 0; i < threadCount; i++) {
+                patternPoints[i + 1] = (int) (proportions[i] * nPatterns + 0.5);
+            }
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * This method samples the sequences based on the tree and site model.
+     */
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Can't sample a fixed alignment!");
+    }
+
+    class TreeLikelihoodCaller implements Callable<Double> {
+        private final TreeLikelihoodWithErrorFast likelihood;
+        private final int threadNr;
+
+        public TreeLikelihoodCaller(TreeLikelihoodWithErrorFast likelihood, int threadNr) {
+            this.likelihood = likelihood;
+            this.threadNr = threadNr;
+        }
+
+        public Double call() throws Exception {
+            // an exception is rethrown by calculateLogP() on the calling thread
+            logPByThread[threadNr] = likelihood.calculateLogP();
+            return logPByThread[threadNr];
+        }
+
+    }
+
+    @Override
+    public double calculateLogP() {
+        try {
+            if (threadCount > 1) {
+                // the error matrices are shared between threads, so they are updated before the threads read them
+                if (errorModel != null) {
+                    errorModel.updateErrorMatrices();
+                }
+                List<Future<Double>> results = pool.invokeAll(likelihoodCallers);
+
+                logP = 0;
+                for (Future<Double> result : results) {
+                    logP += result.get();
+                }
+            } else {
+                logP = treelikelihood[0].calculateLogP();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Tree likelihood calculation failed in a thread: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Tree likelihood calculation was interrupted", e);
+        }
+        return logP;
+    }
+
+    /**
+     * return copy of pattern log likelihoods for the patterns of each block of sites in turn
+     */
+    public double[] getPatternLogLikelihoods() {
+        int patternCount = 0;
+        for (TreeLikelihoodWithErrorFast b : treelikelihood) {
+            patternCount += b.dataInput.get().getPatternCount();
+        }
+        double[] patternLogLikelihoods = new double[patternCount];
+        int i = 0;
+        for (TreeLikelihoodWithErrorFast b : treelikelihood) {
+            double[] d = b.getPatternLogLikelihoods();
+            System.arraycopy(d, 0, patternLogLikelihoods, i, d.length);
+            i += d.length;
+        }
+        return patternLogLikelihoods;
+    }
+
+    /**
+     * check state for changed variables and update temp results if necessary *
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean requiresRecalculation = false;
+        for (TreeLikelihoodWithErrorFast b : treelikelihood) {
+            requiresRecalculation |= b.requiresRecalculation();
+        }
+        return requiresRecalculation;
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that form the argument
+     */
+    @Override
+    public List<String> getArguments() {
+        return Collections.singletonList(dataInput.get().getID());
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that make up the conditions
+     */
+    @Override
+    public List<String> getConditions() {
+        return ((SiteModel.Base) siteModelInput.get()).getConditions();
+    }
+
+}
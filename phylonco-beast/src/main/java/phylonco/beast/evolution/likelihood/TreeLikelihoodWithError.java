@@ -3,35 +3,113 @@ package phylonco.beast.evolution.likelihood;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
 import phylonco.beast.evolution.errormodel.ErrorModel;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
 @Description("Tree likelihood calculation with error models")
 public class TreeLikelihoodWithError extends TreeLikelihood {
 
     final public Input<phylonco.beast.evolution.errormodel.ErrorModel> errorModelInput = new Input<>("errorModel", "error model to use for partials");
     final public Input<Boolean> useTipsEmpiricalInput = new Input<>("useTipsEmpirical", "use tip ambiguities from data", false);
 
+    public enum PartialsStorage {doubles, floats, offHeap, mapped}
+
+    final public Input<PartialsStorage> partialsStorageInput = new Input<>("partialsStorage", "storage of the partials of internal nodes, one of " + Arrays.toString(PartialsStorage.values()) +
+            ". Partials stored as floats use half the memory and are always scaled, offHeap partials are stored outside the Java heap, " +
+            "and mapped partials are stored in a memory-mapped scratch file. Only used with an error model and useTipsEmpirical=false (default doubles)",
+            PartialsStorage.doubles, PartialsStorage.values());
+    final public Input<String> scratchDirInput = new Input<>("scratchDir", "directory for the scratch file of mapped partials (default java.io.tmpdir)");
+
+    final public Input<Integer> scalingCheckIntervalInput = new Input<>("scalingCheckInterval", "use dynamic scaling of the partials from the start, " +
+            "which only rescales nodes where the partials of a pattern fell below the scaling threshold, " +
+            "and checks the partials of the other nodes every scalingCheckInterval calculations of the node. " +
+            "0 turns scaling of every node on only when the likelihood underflows. " +
+            "Only used with an error model and useTipsEmpirical=false (default 0)", 0);
+
+    public enum Ascertainment {none, observed, genotypes}
+
+    final public Input<Ascertainment> ascertainmentInput = new Input<>("ascertainment", "condition the likelihood on the sites being variable, for alignments of variant sites only, one of " +
+            Arrays.toString(Ascertainment.values()) + ". With observed, sites with the same observed genotype in every cell are excluded, " +
+            "with genotypes, sites with the same true genotype in every cell are excluded. " +
+            "The alignment itself should not be ascertained (default none)",
+            Ascertainment.none, Ascertainment.values());
+
     protected ErrorModel errorModel;
     protected boolean useTipsEmpirical;
 
     protected boolean useTipLikelihoods = true;
     protected boolean useAmbiguities = true;
 
+    // code-by-state table shared by all leaves, used when tips are stored as observed codes
+    protected double[] codeTable;
+    // codes 0 to code count - 1, used to fill the code table from the error model
+    protected int[] allCodes;
+
+    // buffers reused when rebuilding leaf partials
+    protected int[] leafCodes;
+    protected double[] leafPartials;
+
+    // pattern log likelihoods of the stored state, swapped with the current ones when all patterns are recalculated,
+    // so they match the state after a rejected proposal without a copy in each store
+    protected double[] storedPatternLogLikelihoods;
+    protected boolean patternLogLikelihoodsSwapped;
+    // previous values of pattern log likelihoods updated one by one since the last store, set back on restore
+    protected int[] patternLogLikelihoodUpdates;
+    protected double[] patternLogLikelihoodValues;
+    protected int patternLogLikelihoodUpdateCount;
+
+    protected Ascertainment ascertainment;
+    // log probability of a variable site, subtracted from each pattern log likelihood
+    protected double logVariableProbability;
+    // partials of the constant patterns for each node, indexed by ((category * stateCount + constant state) * stateCount + state)
+    protected double[][] constantPartials;
+    protected double[] constantLogScales;
+    protected double[][] constantMatrices;
+    protected double[] constantRow;
+    // log of the product over the leaves of the error probability of observing code c for true state i,
+    // indexed by ((error category * stateCount + c) * stateCount + i), and the log probability of a constant invariant site for each c
+    protected double[] invariantErrorLogs;
+    protected double[] invariantLogProbabilities;
+
     @Override
     public void initAndValidate() {
         // get error model
         errorModel = errorModelInput.get();
         useTipsEmpirical = useTipsEmpiricalInput.get();
+        if (errorModel != null && errorModel.getMatrixCount() > 1 &&
+                errorModel.getMatrixCount() != dataInput.get().getTaxonCount()) {
+            throw new IllegalArgumentException("Error parameters have " + errorModel.getMatrixCount() +
+                    " values, expected one value or one value for each of the " + dataInput.get().getTaxonCount() + " taxa");
+        }
+        if (errorModel != null && errorModel.getCategoryCount() > 1 && useTipsEmpirical) {
+            throw new IllegalArgumentException("Error rate categories cannot be used with useTipsEmpirical=true");
+        }
+        ascertainment = ascertainmentInput.get();
+        if (ascertainment != Ascertainment.none && dataInput.get().isAscertained) {
+            throw new IllegalArgumentException("The alignment is ascertained, which cannot be combined with ascertainment=" + ascertainment);
+        }
+        if (ascertainment == Ascertainment.observed && errorModel == null) {
+            throw new IllegalArgumentException("ascertainment=observed needs an error model");
+        }
         // set fields from TreeLikelihood class
         super.m_useAmbiguities.setValue(useAmbiguities, this);
         super.m_useTipLikelihoods.setValue(useTipLikelihoods, this);
         // current implementation only supports BeerTreeLikelihoodCore implementation
         // beagle support to be added in the future
         super.implementationInput.setValue("beast.base.evolution.likelihood.TreeLikelihood", this);
-        System.setProperty("java.only", "true"); // use java implementation for likelihood core
+        // use java implementation for likelihood core, only while initialising this likelihood
+        boolean useJava = System.getProperty("java.only") == null ? false : Boolean.valueOf(System.getProperty("java.only"));
+        System.setProperty("java.only", "true");
         super.initAndValidate();
+        System.setProperty("java.only", useJava + "");
     }
 
     /**
@@ -54,32 +132,169 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
         return taxonIndex;
     }
 
-    protected double[] getLeafPartials(Node node) {
+    /**
+     * uses a likelihood core with observed codes at the tips when the error model provides the tip partials
+     */
+    @Override
+    protected LikelihoodCore createLikelihoodCore(int stateCount) {
+        if (errorModel != null && !useTipsEmpirical) {
+            ErrorLikelihoodCore core;
+            switch (partialsStorageInput.get()) {
+                case floats:
+                    core = new FloatErrorLikelihoodCore(stateCount);
+                    break;
+                case offHeap:
+                    core = new OffHeapErrorLikelihoodCore(stateCount, null);
+                    break;
+                case mapped:
+                    core = new OffHeapErrorLikelihoodCore(stateCount, createScratchFile());
+                    break;
+                default:
+                    core = new ErrorLikelihoodCore(stateCount);
+            }
+            core.setScalingCheckInterval(scalingCheckIntervalInput.get());
+            return core;
+        }
+        return super.createLikelihoodCore(stateCount);
+    }
+
+    /**
+     * @return a new scratch file for mapped partials
+     */
+    protected File createScratchFile() {
+        File dir = scratchDirInput.get() == null ? null : new File(scratchDirInput.get());
+        try {
+            return File.createTempFile("partials", ".bin", dir);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot create scratch file for partials in " +
+                    (dir == null ? System.getProperty("java.io.tmpdir") : dir.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * @return true if leaves are stored as observed codes with a shared code table in the likelihood core
+     */
+    protected boolean useCodeTable() {
+        return likelihoodCore instanceof ErrorLikelihoodCore;
+    }
+
+    /**
+     * rebuilds the code-by-state tables from the error matrices and sets them in the likelihood core,
+     * the previous tables are kept for restore
+     */
+    protected void updateCodeTable() {
+        for (int m = 0; m < errorModel.getMatrixCount(); m++) {
+            updateCodeTable(m);
+        }
+    }
+
+    /**
+     * rebuilds the code-by-state table of one error matrix and sets it in the likelihood core,
+     * the table has a block of rows for each error rate category
+     * @param matrixIndex index of the error matrix
+     */
+    protected void updateCodeTable(int matrixIndex) {
+        ErrorLikelihoodCore core = (ErrorLikelihoodCore) likelihoodCore;
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfCodes = errorModel.getCodeCount();
+        int nrOfCategories = errorModel.getCategoryCount();
+        if (codeTable == null) {
+            codeTable = new double[nrOfCategories * nrOfCodes * nrOfStates];
+            allCodes = new int[nrOfCodes];
+            for (int c = 0; c < nrOfCodes; c++) {
+                allCodes[c] = c;
+            }
+        }
+        for (int e = 0; e < nrOfCategories; e++) {
+            errorModel.fill(errorModel.getMatrixIndex(e, matrixIndex), allCodes, codeTable, e * nrOfCodes * nrOfStates, 1);
+        }
+        core.setCodeTableForUpdate(matrixIndex);
+        core.setCodeTable(matrixIndex, codeTable);
+    }
+
+    /**
+     * @return index of the error matrix of the leaf, which is its taxon index when error parameters have a value per taxon
+     */
+    protected int getMatrixIndex(Node node) {
+        if (errorModel.getMatrixCount() == 1) {
+            return 0;
+        }
+        return getTaxonIndex(node.getID(), dataInput.get());
+    }
+
+    /**
+     * @return observed code for each pattern of the leaf
+     */
+    protected int[] getLeafCodes(Node node) {
+        int[] codes = new int[dataInput.get().getPatternCount()];
+        fillLeafCodes(node, codes);
+        return codes;
+    }
+
+    /**
+     * fills the observed code for each pattern of the leaf
+     */
+    protected void fillLeafCodes(Node node, int[] codes) {
         Alignment data = dataInput.get();
-        int nrOfStates = data.getDataType().getStateCount();
         int nrOfPatterns = data.getPatternCount();
-        double[] partials = new double[nrOfPatterns * nrOfStates];
         int t = getTaxonIndex(node.getID(), data); // taxon index
-        int i = 0;
         for (int p = 0; p < nrOfPatterns; p++) {
-            int state = data.getPattern(t, p);
-            double[] tipLikelihoods;
-            if (useTipsEmpirical) {
-                tipLikelihoods = data.getTipLikelihoods(t, p);
-            } else {
-                tipLikelihoods = errorModel.getProbabilities(state);
+            codes[p] = data.getPattern(t, p);
+        }
+    }
+
+    /**
+     * returns the tip partials of the leaf, the returned buffer is reused by the next call
+     */
+    protected double[] getLeafPartials(Node node) {
+        Alignment data = dataInput.get();
+        int nrOfStates = data.getDataType().getStateCount();
+        int nrOfPatterns = data.getPatternCount();
+        if (leafPartials == null) {
+            leafCodes = new int[nrOfPatterns];
+            leafPartials = new double[nrOfPatterns * nrOfStates];
+        }
+        if (useTipsEmpirical) {
+            int t = getTaxonIndex(node.getID(), data); // taxon index
+            int i = 0;
+            for (int p = 0; p < nrOfPatterns; p++) {
+                double[] tipLikelihoods = data.getTipLikelihoods(t, p);
+                for (int s = 0; s < nrOfStates; s++) {
+                    leafPartials[i] = tipLikelihoods[s];
+                    i++;
+                }
             }
-            for (int s = 0; s < nrOfStates; s++) {
-                partials[i] = tipLikelihoods[s];
-                i++;
+        } else {
+            fillLeafCodes(node, leafCodes);
+            errorModel.fill(getMatrixIndex(node), leafCodes, leafPartials, 0, 1);
+        }
+        return leafPartials;
+    }
+
+    @Override
+    protected void initCore() {
+        if (useCodeTable()) {
+            ErrorLikelihoodCore core = (ErrorLikelihoodCore) likelihoodCore;
+            core.setCodeTableCount(errorModel.getMatrixCount());
+            core.setErrorCategoryProportions(errorModel.getCategoryProportions());
+        }
+        super.initCore();
+        if (useCodeTable()) {
+            updateCodeTable();
+            if (scalingCheckIntervalInput.get() > 0 && scaling.get() != Scaling.none) {
+                // dynamic scaling only pays for the nodes that need it, so it is on from the start
+                likelihoodCore.setUseScaling(1.01);
             }
         }
-        return partials;
     }
 
     @Override
     protected void setPartials(Node node, int nrOfPatterns) {
-        if (node.isLeaf()) {
+        if (node.isLeaf() && useCodeTable()) {
+            ErrorLikelihoodCore core = (ErrorLikelihoodCore) likelihoodCore;
+            core.setNodeCodes(node.getNr(), getLeafCodes(node));
+            core.setNodeCodeTable(node.getNr(), getMatrixIndex(node));
+        } else if (node.isLeaf()) {
             double[] partials = getLeafPartials(node);
             likelihoodCore.setNodePartials(node.getNr(), partials);
         } else {
@@ -88,4 +303,300 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
         }
     }
 
+    /**
+     * Swaps in the buffer of the stored pattern log likelihoods before the root recalculates all of them,
+     * once between store and restore, and swaps back if the root was clean and nothing was written.
+     */
+    @Override
+    protected int traverse(Node node) {
+        if (!node.isRoot() || patternLogLikelihoodsSwapped || patternLogLikelihoods == null) {
+            return super.traverse(node);
+        }
+        if (storedPatternLogLikelihoods == null || storedPatternLogLikelihoods.length != patternLogLikelihoods.length) {
+            storedPatternLogLikelihoods = new double[patternLogLikelihoods.length];
+        }
+        swapPatternLogLikelihoods();
+        int update = super.traverse(node);
+        if (update == Tree.IS_CLEAN) {
+            swapPatternLogLikelihoods();
+        } else {
+            patternLogLikelihoodsSwapped = true;
+        }
+        return update;
+    }
+
+    protected void swapPatternLogLikelihoods() {
+        double[] tmp = patternLogLikelihoods;
+        patternLogLikelihoods = storedPatternLogLikelihoods;
+        storedPatternLogLikelihoods = tmp;
+    }
+
+    /**
+     * sets the log likelihood of a single pattern, keeping the previous value for restore
+     * unless the stored pattern log likelihoods are already in the other buffer
+     */
+    protected void setPatternLogLikelihood(int pattern, double logL) {
+        if (!patternLogLikelihoodsSwapped) {
+            if (patternLogLikelihoodUpdates == null) {
+                patternLogLikelihoodUpdates = new int[16];
+                patternLogLikelihoodValues = new double[16];
+            } else if (patternLogLikelihoodUpdateCount == patternLogLikelihoodUpdates.length) {
+                patternLogLikelihoodUpdates = Arrays.copyOf(patternLogLikelihoodUpdates, 2 * patternLogLikelihoodUpdateCount);
+                patternLogLikelihoodValues = Arrays.copyOf(patternLogLikelihoodValues, 2 * patternLogLikelihoodUpdateCount);
+            }
+            patternLogLikelihoodUpdates[patternLogLikelihoodUpdateCount] = pattern;
+            patternLogLikelihoodValues[patternLogLikelihoodUpdateCount] = patternLogLikelihoods[pattern];
+            patternLogLikelihoodUpdateCount++;
+        }
+        patternLogLikelihoods[pattern] = logL;
+    }
+
+    /**
+     * subtracts the log probability of a variable site from each pattern log likelihood when conditioning on variable sites
+     */
+    @Override
+    protected void calcLogP() {
+        if (ascertainment != Ascertainment.none) {
+            logVariableProbability = calculateLogVariableProbability();
+        }
+        sumPatternLogLikelihoods();
+    }
+
+    /**
+     * sums the weighted pattern log likelihoods into logP,
+     * less the log probability of a variable site of the last call to calcLogP when conditioning on variable sites
+     */
+    protected void sumPatternLogLikelihoods() {
+        if (ascertainment == Ascertainment.none) {
+            super.calcLogP();
+            return;
+        }
+        if (Double.isNaN(logVariableProbability) || logVariableProbability == Double.NEGATIVE_INFINITY) {
+            logP = Double.NEGATIVE_INFINITY;
+            return;
+        }
+        Alignment data = dataInput.get();
+        logP = 0.0;
+        for (int k = 0; k < data.getPatternCount(); k++) {
+            logP += (patternLogLikelihoods[k] - logVariableProbability) * data.getPatternWeight(k);
+        }
+    }
+
+    /**
+     * @return log probability of a variable site of the last call to calculateLogP, zero without ascertainment
+     */
+    public double getLogVariableProbability() {
+        return ascertainment == Ascertainment.none ? 0.0 : logVariableProbability;
+    }
+
+    /**
+     * Calculates the log probability that a site is variable, one minus the probability of the constant patterns,
+     * by one post-order pass over the tree with a partial for each constant state instead of dummy constant patterns.
+     * With observed, the tips of constant state c are the rows of the error matrices for observed code c,
+     * with genotypes, they indicate true state c. The transition matrices are the ones of the likelihood core.
+     * Invariant sites add the proportion of invariant sites times the probability that every tip shows state c
+     * at a site that keeps its true state, which with genotypes is the frequency of c.
+     */
+    protected double calculateLogVariableProbability() {
+        TreeInterface tree = treeInput.get();
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfRates = m_siteModel.getCategoryCount();
+        int nrOfErrors = ascertainment == Ascertainment.observed ? errorModel.getCategoryCount() : 1;
+        if (constantPartials == null) {
+            constantPartials = new double[tree.getNodeCount()][nrOfRates * nrOfErrors * nrOfStates * nrOfStates];
+            constantLogScales = new double[nrOfStates];
+            constantMatrices = new double[nrOfRates][nrOfStates * nrOfStates];
+            constantRow = new double[nrOfStates];
+            invariantLogProbabilities = new double[nrOfStates];
+        }
+        Arrays.fill(constantLogScales, 0.0);
+        Node root = tree.getRoot();
+        traverseConstant(root, nrOfRates, nrOfErrors);
+
+        double[] proportions = m_siteModel.getCategoryProportions(root);
+        double[] errorProportions = nrOfErrors > 1 ? errorModel.getCategoryProportions() : new double[] {1.0};
+        double[] frequencies = rootFrequenciesInput.get() != null ?
+                rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+        double proportionInvariant = getConstantPattern() != null ? m_siteModel.getProportionInvariant() : 0.0;
+        if (proportionInvariant > 0.0) {
+            if (ascertainment == Ascertainment.observed) {
+                calculateInvariantLogProbabilities(nrOfErrors, errorProportions, frequencies);
+            } else {
+                for (int c = 0; c < nrOfStates; c++) {
+                    invariantLogProbabilities[c] = Math.log(frequencies[c]);
+                }
+            }
+        }
+        double[] rootPartials = constantPartials[root.getNr()];
+        double maxLogP = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < nrOfStates; c++) {
+            double sum = 0.0;
+            for (int l = 0; l < nrOfRates * nrOfErrors; l++) {
+                double weight = errorProportions[l / nrOfRates] * proportions[l % nrOfRates];
+                int v = (l * nrOfStates + c) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    sum += weight * frequencies[i] * rootPartials[v + i];
+                }
+            }
+            constantRow[c] = Math.log(sum) + constantLogScales[c];
+            if (proportionInvariant > 0.0) {
+                // added in log space, the invariant sites can have a different scale than the partials
+                double logInvariant = Math.log(proportionInvariant) + invariantLogProbabilities[c];
+                double max = Math.max(constantRow[c], logInvariant);
+                if (max > Double.NEGATIVE_INFINITY) {
+                    constantRow[c] = max + Math.log(Math.exp(constantRow[c] - max) + Math.exp(logInvariant - max));
+                }
+            }
+            maxLogP = Math.max(maxLogP, constantRow[c]);
+        }
+        if (maxLogP == Double.NEGATIVE_INFINITY) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        for (int c = 0; c < nrOfStates; c++) {
+            sum += Math.exp(constantRow[c] - maxLogP);
+        }
+        double logConstantProbability = maxLogP + Math.log(sum);
+        return logConstantProbability >= 0.0 ? Double.NEGATIVE_INFINITY : Math.log1p(-Math.exp(logConstantProbability));
+    }
+
+    /**
+     * Calculates the log probability that every tip shows code c at an invariant site with observed codes,
+     * the sum over error categories and true states i of the category proportion and the frequency of i
+     * times the product over the leaves of the error probability of observing c for true state i, kept in logs.
+     */
+    protected void calculateInvariantLogProbabilities(int nrOfErrors, double[] errorProportions, double[] frequencies) {
+        TreeInterface tree = treeInput.get();
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        if (invariantErrorLogs == null) {
+            invariantErrorLogs = new double[nrOfErrors * nrOfStates * nrOfStates];
+        }
+        Arrays.fill(invariantErrorLogs, 0.0);
+        for (int n = 0; n < tree.getLeafNodeCount(); n++) {
+            int matrixIndex = getMatrixIndex(tree.getNode(n));
+            for (int e = 0; e < nrOfErrors; e++) {
+                for (int c = 0; c < nrOfStates; c++) {
+                    double[] row = errorModel.getProbabilities(errorModel.getMatrixIndex(e, matrixIndex), c);
+                    int v = (e * nrOfStates + c) * nrOfStates;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        invariantErrorLogs[v + i] += Math.log(row[i]);
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < nrOfStates; c++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int e = 0; e < nrOfErrors; e++) {
+                int v = (e * nrOfStates + c) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    max = Math.max(max, invariantErrorLogs[v + i]);
+                }
+            }
+            if (max == Double.NEGATIVE_INFINITY) {
+                invariantLogProbabilities[c] = max;
+                continue;
+            }
+            double sum = 0.0;
+            for (int e = 0; e < nrOfErrors; e++) {
+                int v = (e * nrOfStates + c) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    sum += errorProportions[e] * frequencies[i] * Math.exp(invariantErrorLogs[v + i] - max);
+                }
+            }
+            invariantLogProbabilities[c] = max + Math.log(sum);
+        }
+    }
+
+    /**
+     * post-order pass of the constant patterns, the partials of each node are rescaled per constant state
+     */
+    protected void traverseConstant(Node node, int nrOfRates, int nrOfErrors) {
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfCategories = nrOfRates * nrOfErrors;
+        double[] partials = constantPartials[node.getNr()];
+        if (node.isLeaf()) {
+            int matrixIndex = ascertainment == Ascertainment.observed ? getMatrixIndex(node) : 0;
+            Arrays.fill(partials, 0.0);
+            for (int l = 0; l < nrOfCategories; l++) {
+                for (int c = 0; c < nrOfStates; c++) {
+                    int v = (l * nrOfStates + c) * nrOfStates;
+                    if (ascertainment == Ascertainment.observed) {
+                        double[] row = errorModel.getProbabilities(errorModel.getMatrixIndex(l / nrOfRates, matrixIndex), c);
+                        System.arraycopy(row, 0, partials, v, nrOfStates);
+                    } else {
+                        partials[v + c] = 1.0;
+                    }
+                }
+            }
+            return;
+        }
+
+        for (int n = 0; n < 2; n++) {
+            Node child = node.getChild(n);
+            traverseConstant(child, nrOfRates, nrOfErrors);
+            for (int r = 0; r < nrOfRates; r++) {
+                likelihoodCore.getNodeMatrix(child.getNr(), r, constantMatrices[r]);
+            }
+            double[] childPartials = constantPartials[child.getNr()];
+            int u = 0;
+            for (int l = 0; l < nrOfCategories; l++) {
+                double[] matrix = constantMatrices[l % nrOfRates];
+                for (int c = 0; c < nrOfStates; c++) {
+                    int v = (l * nrOfStates + c) * nrOfStates;
+                    int w = 0;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        double sum = 0.0;
+                        for (int j = 0; j < nrOfStates; j++) {
+                            sum += matrix[w] * childPartials[v + j];
+                            w++;
+                        }
+                        partials[u] = n == 0 ? sum : partials[u] * sum;
+                        u++;
+                    }
+                }
+            }
+        }
+
+        // rescale each constant state to prevent underflow in large trees
+        for (int c = 0; c < nrOfStates; c++) {
+            double max = 0.0;
+            for (int l = 0; l < nrOfCategories; l++) {
+                int v = (l * nrOfStates + c) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    max = Math.max(max, partials[v + i]);
+                }
+            }
+            if (max > 0.0) {
+                constantLogScales[c] += Math.log(max);
+                for (int l = 0; l < nrOfCategories; l++) {
+                    int v = (l * nrOfStates + c) * nrOfStates;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        partials[v + i] /= max;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void store() {
+        patternLogLikelihoodsSwapped = false;
+        patternLogLikelihoodUpdateCount = 0;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (patternLogLikelihoodsSwapped) {
+            swapPatternLogLikelihoods();
+            patternLogLikelihoodsSwapped = false;
+        }
+        // single pattern updates are set back last, they may have been made in the current buffer before a swap
+        for (int u = patternLogLikelihoodUpdateCount - 1; u >= 0; u--) {
+            patternLogLikelihoods[patternLogLikelihoodUpdates[u]] = patternLogLikelihoodValues[u];
+        }
+        patternLogLikelihoodUpdateCount = 0;
+        super.restore();
+    }
+
 }
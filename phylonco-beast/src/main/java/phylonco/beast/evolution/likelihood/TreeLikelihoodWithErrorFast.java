@@ -1,17 +1,179 @@
 package phylonco.beast.evolution.likelihood;
 
 import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import mutablealignment.MutableAlignment;
 
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.List;
 
-@Description("Implementation of optimised tree likelihood calculation with error models")
-public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
+@Description("Implementation of optimised tree likelihood calculation with error models. " +
+        "Edits of the alignment, for example genotypes sampled in a MutableAlignment, update the tips, " +
+        "and when only the alignment changed, only the edited patterns are recalculated along the paths to the root")
+public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError implements GradientProvider {
+
+    final public Input<Boolean> foldErrorMatrixInput = new Input<>("foldErrorMatrix", "precompute the transition matrix times the error matrix for each pendant branch and observed code, " +
+            "which is faster when there are more patterns than observed codes", false);
+    final public Input<Integer> subsampleSizeInput = new Input<>("subsampleSize", "number of patterns evaluated in each step " +
+            "for an approximate likelihood that uses the pattern log likelihoods of a reference state as control variates, " +
+            "the variance of the estimate is logged and should stay below about 1, 0 evaluates all patterns", 0);
+    final public Input<Integer> referenceIntervalInput = new Input<>("referenceInterval", "number of evaluations between full evaluations " +
+            "that update the reference state of the subsampled likelihood, 0 only uses the first state", 0);
+    final public Input<Boolean> biasCorrectionInput = new Input<>("biasCorrection", "subtract half the variance of the estimate " +
+            "from the subsampled log likelihood, so the likelihood is approximately unbiased", true);
 
     boolean updateLeafPartials = false;
 
+    /**
+     * leaves with a changed error matrix, only used when error parameters have a value for each taxon
+     */
+    protected boolean[] updateLeaves;
+
+    /**
+     * error matrix index of each leaf
+     */
+    protected int[] leafMatrixIndex;
+
+    /**
+     * buffers for the gradient, allocated on first use:
+     * outside partials for each depth of the tree, derivative tables of each error matrix,
+     * outside partials at the top of a branch, partials and transition matrices of the sibling and child of a branch,
+     * the share of each pattern likelihood from the variable sites, and the weight of each pattern divided by its likelihood
+     */
+    protected double[][] outsidePartials;
+    protected double[][] derivativeTables;
+    protected double[] topPartials;
+    protected double[] siblingPartials;
+    protected double[] childPartials;
+    protected double[][] siblingMatrices;
+    protected double[][] childMatrices;
+    protected int[] gradientCodes;
+    protected double[] gradientRootPartials;
+    protected double[] variableLogLikelihoods;
+    protected double[] totalLogLikelihoods;
+    protected double[] variableShares;
+    protected double[] patternScales;
+
+    /**
+     * posterior probabilities of the true states of each pattern from the invariant sites, for the genotype posteriors
+     */
+    protected double[] invariantPosteriors;
+
+    /**
+     * buffers for the batch likelihood, allocated on first use and when the batch size changes:
+     * tip tables and partials of each node with the proposals of the batch as the innermost index,
+     * log scale factors of each pattern and proposal, a row of values for each proposal,
+     * and the patterns that are evaluated, which index the partials
+     */
+    protected double[] batchTables;
+    protected double[][] batchPartials;
+    protected double[] batchLogScales;
+    protected double[] batchRow;
+    protected double[] batchInvariants;
+    protected double[][] batchErrorMatrix;
+    protected double[][] batchNodeMatrices;
+    protected int[] batchCodes;
+    protected int[] batchPatterns;
+    protected double[] batchPatternLogLikelihoods;
+
+    /**
+     * number of patterns of the subsampled likelihood, zero if all patterns are evaluated,
+     * a permutation of the patterns whose first entries are the subsample,
+     * and the pattern log likelihoods of the reference state with their weighted sum
+     */
+    protected int subsampleSize;
+    protected int[] subsamplePermutation;
+    protected int[] subsample;
+    protected double[] referenceLogLikelihoods;
+    protected double referenceLogP;
+    protected long evaluationCount;
+    protected double subsampleVariance;
+    protected double storedSubsampleVariance;
+
+    /**
+     * rate matrix of the substitution model and the derivatives of the transition matrices of a branch,
+     * used for the branch length gradient
+     */
+    protected double[] rateMatrix;
+    protected EigenDecomposition rateMatrixSource;
+    protected double[][] matrixDerivatives;
+    protected double[] numerators;
+    protected double[] denominators;
+
+    /**
+     * leaf of each taxon, allocated when the alignment is first edited
+     */
+    protected int[] taxonLeaves;
+
+    /**
+     * flags for an edit of the alignment that is not yet applied to the tips,
+     * and for recalculating only the edited patterns because nothing else changed
+     */
+    protected boolean alignmentChanged;
+    protected boolean updatePatterns;
+
+    /**
+     * flag for a calculation of all partials, which the edited patterns are updated from
+     */
+    protected boolean hasPartials;
+
+    /**
+     * edits of the tips since the alignment changed as pairs of leaf and pattern,
+     * the edited patterns with a flag for each pattern, and a buffer for the codes of a taxon
+     */
+    protected int[] editedLeaves;
+    protected int[] editedLeafPatterns;
+    protected int editCount;
+    protected int[] editedPatterns;
+    protected boolean[] isEditedPattern;
+    protected int[] taxonCodes;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        if (errorModel != null && errorModel.getMatrixCount() > 1) {
+            updateLeaves = new boolean[treeInput.get().getNodeCount()];
+            leafMatrixIndex = new int[treeInput.get().getNodeCount()];
+            for (Node node : treeInput.get().getExternalNodes()) {
+                leafMatrixIndex[node.getNr()] = getMatrixIndex(node);
+            }
+        }
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        subsampleSize = subsampleSizeInput.get() < nrOfPatterns ? subsampleSizeInput.get() : 0;
+        if (subsampleSize > 0 && (useAscertainedSitePatterns || ascertainment != Ascertainment.none)) {
+            throw new IllegalArgumentException("subsampleSize cannot be used with ascertained site patterns");
+        }
+        if (subsampleSize > 0) {
+            subsamplePermutation = new int[nrOfPatterns];
+            for (int k = 0; k < nrOfPatterns; k++) {
+                subsamplePermutation[k] = k;
+            }
+            subsample = new int[subsampleSize];
+            Log.warning.println(getID() + " evaluates " + subsampleSize + " of " + nrOfPatterns + " patterns in each step, " +
+                    "check that the logged variance of the estimate stays below about 1");
+        }
+    }
+
+    @Override
+    protected LikelihoodCore createLikelihoodCore(int stateCount) {
+        LikelihoodCore core = super.createLikelihoodCore(stateCount);
+        if (core instanceof ErrorLikelihoodCore) {
+            ((ErrorLikelihoodCore) core).setUseFoldedTips(foldErrorMatrixInput.get());
+        }
+        return core;
+    }
+
     /**
      * check state for changed variables and update temp results if necessary *
      */
@@ -20,10 +182,22 @@ public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
         hasDirt = Tree.IS_CLEAN;
         if (errorModel != null && errorModel.isDirtyCalculation()) {
             updateLeafPartials = true;
-            hasDirt = Tree.IS_FILTHY;
-            return true;
+            if (updateLeaves == null) {
+                hasDirt = Tree.IS_FILTHY;
+                return true;
+            }
+            // only the leaves with a changed error matrix and the paths to the root are updated
+            for (Node node : treeInput.get().getExternalNodes()) {
+                updateLeaves[node.getNr()] = errorModel.matrixIsDirty(leafMatrixIndex[node.getNr()]);
+            }
         }
         if (dataInput.get().isDirtyCalculation()) {
+            alignmentChanged = true;
+            if (canUpdatePatterns()) {
+                // the tree stays clean, only the edited patterns are recalculated
+                updatePatterns = true;
+                return true;
+            }
             hasDirt = Tree.IS_FILTHY;
             return true;
         }
@@ -34,13 +208,56 @@ public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
         if (branchRateModel != null && branchRateModel.isDirtyCalculation()) {
             return true;
         }
-        return treeInput.get().somethingIsDirty();
+        return treeInput.get().somethingIsDirty() || updateLeafPartials;
+    }
+
+    /**
+     * @return true if an edit of the alignment can be applied by recalculating only the edited patterns,
+     *         which needs a likelihood core with codes at the tips, calculated partials,
+     *         and nothing but the alignment to have changed
+     */
+    protected boolean canUpdatePatterns() {
+        if (!hasPartials || !useCodeTable() || !((ErrorLikelihoodCore) likelihoodCore).canUpdatePatterns() ||
+                subsampleSize > 0 || useAscertainedSitePatterns || getConstantPattern() != null) {
+            return false;
+        }
+        return !updateLeafPartials && !m_siteModel.isDirtyCalculation() &&
+                (branchRateModel == null || !branchRateModel.isDirtyCalculation()) &&
+                !treeInput.get().somethingIsDirty();
+    }
+
+    /**
+     * marks leaves with a changed error matrix as dirty, so only their ancestors are recalculated
+     */
+    @Override
+    protected int traverse(Node node) {
+        int update = super.traverse(node);
+        if (updateLeaves != null && node.isLeaf() && updateLeaves[node.getNr()]) {
+            update |= Tree.IS_DIRTY;
+        }
+        return update;
     }
 
     public void updateLeafPartials() {
+        if (useCodeTable()) {
+            // leaves share the code tables, only the changed tables need to be rebuilt
+            if (updateLeaves == null) {
+                updateCodeTable();
+            } else {
+                for (int m = 0; m < errorModel.getMatrixCount(); m++) {
+                    if (errorModel.matrixIsDirty(m)) {
+                        updateCodeTable(m);
+                    }
+                }
+            }
+            return;
+        }
         List<Node> leaves = treeInput.get().getExternalNodes();
         for (Node node: leaves) {
             int nodeId = node.getNr();
+            if (updateLeaves != null && !updateLeaves[nodeId]) {
+                continue;
+            }
             likelihoodCore.setNodePartialsForUpdate(nodeId);
             BeerLikelihoodCore beer = (BeerLikelihoodCore) likelihoodCore;
             double[] partials = getLeafPartials(node);
@@ -48,13 +265,986 @@ public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
         }
     }
 
+    /**
+     * Applies the edits of the alignment to the tips, for example of a MutableAlignment.
+     * With codes at the tips, the codes of the edited taxa and sites are compared with the alignment
+     * and only the changed codes are set, which the likelihood core sets back on restore.
+     * Otherwise the tip partials of each taxon are rebuilt in their other buffer, if they come from the error model.
+     * When more codes changed than there are patterns, the edited patterns are not updated one by one,
+     * since recalculating all partials is then cheaper.
+     */
+    protected void updateAlignment() {
+        if (errorModel == null) {
+            return;
+        }
+        Alignment data = dataInput.get();
+        int nrOfPatterns = data.getPatternCount();
+        if (taxonLeaves == null) {
+            taxonLeaves = new int[data.getTaxonCount()];
+            for (Node node : treeInput.get().getExternalNodes()) {
+                taxonLeaves[getTaxonIndex(node.getID(), data)] = node.getNr();
+            }
+            editedLeaves = new int[nrOfPatterns];
+            editedLeafPatterns = new int[nrOfPatterns];
+            editedPatterns = new int[nrOfPatterns];
+            isEditedPattern = new boolean[nrOfPatterns];
+            taxonCodes = new int[nrOfPatterns];
+        }
+        editCount = 0;
+        if (!useCodeTable()) {
+            for (int leaf : taxonLeaves) {
+                likelihoodCore.setNodePartialsForUpdate(leaf);
+                ((BeerLikelihoodCore) likelihoodCore).setCurrentNodePartials(leaf, getLeafPartials(treeInput.get().getNode(leaf)));
+            }
+            return;
+        }
+        Integer[] indices = getEditIndices(data);
+        if (indices == null || indices.length >= taxonLeaves.length) {
+            // unknown or bulk edits, every taxon is compared
+            for (int t = 0; t < taxonLeaves.length; t++) {
+                updateTaxonCodes(data, t);
+            }
+        } else {
+            // each index is checked as a site and as a taxon
+            for (int index : indices) {
+                if (index < data.getSiteCount()) {
+                    updatePatternCodes(data, data.getPatternIndex(index));
+                }
+                if (index < taxonLeaves.length) {
+                    updateTaxonCodes(data, index);
+                }
+            }
+        }
+        if (updatePatterns && editCount > nrOfPatterns) {
+            updatePatterns = false;
+            hasDirt = Tree.IS_FILTHY;
+        }
+    }
+
+    /**
+     * The dirty sequence indices of a MutableAlignment are taxa for edits of all sites of a taxon,
+     * and every taxon for edits of a site or of the whole alignment,
+     * but for an edit of a single code, MutableAlignment 0.0.1 gives the site instead of the taxon.
+     *
+     * @return indices of the edited taxa or sites since the last store, or null if the alignment does not report its edits
+     */
+    protected Integer[] getEditIndices(Alignment data) {
+        if (data instanceof MutableAlignment) {
+            return ((MutableAlignment) data).getDirtySequenceIndices();
+        }
+        return null;
+    }
+
+    /**
+     * sets the changed codes of all patterns of a taxon
+     */
+    protected void updateTaxonCodes(Alignment data, int taxon) {
+        int leaf = taxonLeaves[taxon];
+        ((ErrorLikelihoodCore) likelihoodCore).getNodeCodes(leaf, taxonCodes);
+        for (int k = 0; k < taxonCodes.length; k++) {
+            int code = data.getPattern(taxon, k);
+            if (code != taxonCodes[k]) {
+                setEditedCode(leaf, k, code);
+            }
+        }
+    }
+
+    /**
+     * sets the changed codes of all taxa of a pattern
+     */
+    protected void updatePatternCodes(Alignment data, int pattern) {
+        ErrorLikelihoodCore core = (ErrorLikelihoodCore) likelihoodCore;
+        for (int t = 0; t < taxonLeaves.length; t++) {
+            int code = data.getPattern(t, pattern);
+            if (code != core.getNodeCode(taxonLeaves[t], pattern)) {
+                setEditedCode(taxonLeaves[t], pattern, code);
+            }
+        }
+    }
+
+    protected void setEditedCode(int leaf, int pattern, int code) {
+        ((ErrorLikelihoodCore) likelihoodCore).setNodeCode(leaf, pattern, code);
+        if (editCount < editedLeaves.length) {
+            editedLeaves[editCount] = leaf;
+            editedLeafPatterns[editCount] = pattern;
+        }
+        editCount++;
+    }
+
+    /**
+     * Recalculates the partials of the edited patterns on the path from each edited leaf to the root,
+     * then the log likelihoods of the edited patterns, and sums the pattern log likelihoods.
+     * When several leaves of a pattern are edited, their common ancestors are recalculated after each path,
+     * so the last path gives the partials with all edits.
+     * Falls back to recalculating all partials when a pattern likelihood underflows, which also turns on scaling.
+     */
+    protected double calculateEditedPatternsLogP() {
+        ErrorLikelihoodCore core = (ErrorLikelihoodCore) likelihoodCore;
+        TreeInterface tree = treeInput.get();
+        int editedPatternCount = 0;
+        for (int e = 0; e < editCount; e++) {
+            int k = editedLeafPatterns[e];
+            Node node = tree.getNode(editedLeaves[e]).getParent();
+            while (node != null) {
+                core.calculatePatternPartials(node.getLeft().getNr(), node.getRight().getNr(), node.getNr(), k);
+                node = node.getParent();
+            }
+            if (!isEditedPattern[k]) {
+                isEditedPattern[k] = true;
+                editedPatterns[editedPatternCount] = k;
+                editedPatternCount++;
+            }
+        }
+
+        Node root = tree.getRoot();
+        double[] proportions = m_siteModel.getCategoryProportions(root);
+        double[] frequencies = rootFrequenciesInput.get() != null ?
+                rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+        boolean underflow = false;
+        for (int q = 0; q < editedPatternCount; q++) {
+            int k = editedPatterns[q];
+            isEditedPattern[k] = false;
+            setPatternLogLikelihood(k, core.calculatePatternLogLikelihood(root.getNr(), k, proportions, frequencies));
+            underflow |= patternLogLikelihoods[k] == Double.NEGATIVE_INFINITY;
+        }
+        if (underflow && !likelihoodCore.getUseScaling()) {
+            hasDirt = Tree.IS_FILTHY;
+            return super.calculateLogP();
+        }
+        sumPatternLogLikelihoods();
+        return logP;
+    }
+
     @Override
     public double calculateLogP() {
-        if (updateLeafPartials) {
+        if (alignmentChanged) {
+            updateAlignment();
+            alignmentChanged = false;
+        }
+        if (updatePatterns) {
+            logP = calculateEditedPatternsLogP();
+            updatePatterns = false;
+        } else if (subsampleSize > 0) {
+            logP = calculateSubsampledLogP();
+        } else {
+            if (updateLeafPartials) {
+                updateLeafPartials();
+                updateLeafPartials = false;
+            }
+            logP = super.calculateLogP();
+            hasPartials = true;
+        }
+        if (updateLeaves != null) {
+            Arrays.fill(updateLeaves, false);
+        }
+        return logP;
+    }
+
+    /**
+     * Estimates the log likelihood from a random subsample of the patterns drawn for each evaluation,
+     * with the pattern log likelihoods q of a reference state as control variates:
+     * the sum of q over all patterns plus N / n times the sum over the subsample of the weighted differences l - q.
+     * The estimate is unbiased for the log likelihood, and its variance is estimated from the differences
+     * with the finite population correction. With bias correction half the variance is subtracted.
+     * The subsample is evaluated by one post-order pass of the batch likelihood,
+     * the partials of the likelihood core are only updated by the full evaluations of the reference state.
+     */
+    protected double calculateSubsampledLogP() {
+        int referenceInterval = referenceIntervalInput.get();
+        if (referenceLogLikelihoods == null || (referenceInterval > 0 && evaluationCount % referenceInterval == 0)) {
+            evaluationCount++;
+            subsampleVariance = 0.0;
+            return calculateReferenceLogP();
+        }
+        evaluationCount++;
+        updateLeafPartials = false;
+
+        // draw a subsample without replacement by a partial shuffle, sorted for memory locality
+        Alignment data = dataInput.get();
+        int nrOfPatterns = data.getPatternCount();
+        for (int q = 0; q < subsampleSize; q++) {
+            int r = q + Randomizer.nextInt(nrOfPatterns - q);
+            int tmp = subsamplePermutation[q];
+            subsamplePermutation[q] = subsamplePermutation[r];
+            subsamplePermutation[r] = tmp;
+        }
+        System.arraycopy(subsamplePermutation, 0, subsample, 0, subsampleSize);
+        Arrays.sort(subsample);
+
+        calculateLogPBatch(null, new double[1][], subsample);
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (int q = 0; q < subsampleSize; q++) {
+            int k = subsample[q];
+            double difference = data.getPatternWeight(k) * (batchPatternLogLikelihoods[q] - referenceLogLikelihoods[k]);
+            sum += difference;
+            sumOfSquares += difference * difference;
+        }
+        double mean = sum / subsampleSize;
+        double sampleVariance = subsampleSize > 1 ?
+                Math.max(0.0, (sumOfSquares - subsampleSize * mean * mean) / (subsampleSize - 1)) : 0.0;
+        subsampleVariance = (double) nrOfPatterns * nrOfPatterns * (1.0 - (double) subsampleSize / nrOfPatterns) *
+                sampleVariance / subsampleSize;
+        double estimate = referenceLogP + nrOfPatterns * mean;
+        if (biasCorrectionInput.get()) {
+            estimate -= subsampleVariance / 2.0;
+        }
+        return estimate;
+    }
+
+    /**
+     * Evaluates all patterns with the likelihood core, rebuilding the tip partials and the partials of every node,
+     * and keeps the pattern log likelihoods as the control variates of the subsampled likelihood
+     */
+    protected double calculateReferenceLogP() {
+        if (useCodeTable()) {
+            updateCodeTable();
+        } else {
+            if (updateLeaves != null) {
+                Arrays.fill(updateLeaves, true);
+            }
             updateLeafPartials();
-            updateLeafPartials = false;
         }
-        return super.calculateLogP();
+        updateLeafPartials = false;
+        hasDirt = Tree.IS_FILTHY;
+        referenceLogP = super.calculateLogP();
+        referenceLogLikelihoods = patternLogLikelihoods.clone();
+        return referenceLogP;
+    }
+
+    /**
+     * @return pattern log likelihoods of the current state, not available with a subsampled likelihood
+     */
+    @Override
+    public double[] getPatternLogLikelihoods() {
+        if (subsampleSize > 0) {
+            throw new UnsupportedOperationException("Pattern log likelihoods are only calculated for a subsample of the patterns");
+        }
+        return super.getPatternLogLikelihoods();
+    }
+
+    /**
+     * @return estimated variance of the subsampled log likelihood of the current state, zero if all patterns are evaluated
+     */
+    public double getSubsampleVariance() {
+        return subsampleVariance;
+    }
+
+    /**
+     * Calculates the derivative of the log likelihood with respect to each value of an error parameter,
+     * for example delta or epsilon of a GT16 error model, from the partials of the last call to calculateLogP.
+     * One pre-order pass over the tree gives the outside partials of each leaf,
+     * which are the likelihood of the data outside the leaf for each state of the leaf.
+     * The derivative of a pattern likelihood is then the outside partials times the derivative of the tip partials,
+     * summed over leaves. The outside partials are normalised per pattern,
+     * which cancels in the derivative of the log likelihood.
+     *
+     * @param parameter error parameter of the error model
+     * @return derivative of the log likelihood with respect to each value of the parameter,
+     *         a parameter with one value per taxon gets the derivative for each taxon
+     */
+    @Override
+    public double[] getGradient(RealParameter parameter) {
+        prepareOutsidePass();
+        for (int m = 0; m < derivativeTables.length; m++) {
+            errorModel.getDerivatives(parameter, m, derivativeTables[m]);
+        }
+        double[] gradient = new double[parameter.getDimension()];
+        traverseOutside(treeInput.get().getRoot(), 0, gradient, null, null);
+        return gradient;
+    }
+
+    /**
+     * Calculates the log likelihood for several proposed values of an error parameter at once,
+     * for example for multiple-try proposals on delta or epsilon of a GT16 error model.
+     * The transition matrices do not depend on the error parameters, so they are taken from the last call to calculateLogP,
+     * and one post-order pass carries the tip tables of all proposals in lockstep,
+     * with the proposals as the innermost index of the partials.
+     * The partials of each pattern and proposal are rescaled at every node.
+     * Neither the parameter nor the state of this likelihood are changed.
+     *
+     * With a subsampled likelihood the transition matrices are calculated in the pass.
+     *
+     * @param parameter error parameter of the error model, or null for the current error matrices
+     * @param values    proposed values of the parameter, one array of values for each dimension of the parameter per proposal
+     * @return log likelihood of each proposal
+     */
+    public double[] calculateLogPBatch(RealParameter parameter, double[][] values) {
+        return calculateLogPBatch(parameter, values, null);
+    }
+
+    /**
+     * Calculates the log likelihood of a subsample of the patterns for several proposed values of an error parameter,
+     * see {@link #calculateLogPBatch(RealParameter, double[][])}
+     *
+     * @param patterns indices of the patterns to include, or null for all patterns
+     * @return log likelihood of the patterns for each proposal, the sum of the weighted pattern log likelihoods
+     */
+    public double[] calculateLogPBatch(RealParameter parameter, double[][] values, int[] patterns) {
+        if (!useCodeTable()) {
+            throw new UnsupportedOperationException("The batch likelihood needs tip partials from the error model, not empirical tips");
+        }
+        if (useAscertainedSitePatterns || ascertainment != Ascertainment.none) {
+            throw new UnsupportedOperationException("The batch likelihood is not available with ascertained site patterns");
+        }
+        Alignment data = dataInput.get();
+        TreeInterface tree = treeInput.get();
+        int nrOfStates = data.getDataType().getStateCount();
+        int nrOfPatterns = data.getPatternCount();
+        int nrOfRates = m_siteModel.getCategoryCount();
+        int nrOfErrors = errorModel.getCategoryCount();
+        int nrOfCodes = errorModel.getCodeCount();
+        int nrOfMatrices = nrOfErrors * errorModel.getMatrixCount();
+        int batchSize = values.length;
+        if (patterns == null) {
+            patterns = new int[nrOfPatterns];
+            for (int k = 0; k < nrOfPatterns; k++) {
+                patterns[k] = k;
+            }
+        }
+        batchPatterns = patterns;
+        if (batchRow == null || batchRow.length != batchSize || batchLogScales.length != patterns.length * batchSize) {
+            batchTables = new double[nrOfMatrices * nrOfCodes * nrOfStates * batchSize];
+            batchPartials = new double[tree.getNodeCount()][];
+            batchLogScales = new double[patterns.length * batchSize];
+            batchPatternLogLikelihoods = new double[patterns.length * batchSize];
+            batchRow = new double[batchSize];
+            batchInvariants = new double[nrOfPatterns];
+            batchErrorMatrix = new double[nrOfCodes][nrOfStates];
+            batchNodeMatrices = new double[nrOfRates][nrOfStates * nrOfStates];
+            batchCodes = new int[nrOfPatterns];
+        }
+
+        // tip tables of each error matrix indexed by code, true state, then proposal
+        for (int b = 0; b < batchSize; b++) {
+            for (int m = 0; m < nrOfMatrices; m++) {
+                if (parameter != null) {
+                    errorModel.calculateErrorMatrix(parameter, values[b], m, batchErrorMatrix);
+                }
+                int v = m * nrOfCodes * nrOfStates * batchSize + b;
+                for (int c = 0; c < nrOfCodes; c++) {
+                    double[] row = parameter != null ? batchErrorMatrix[c] : errorModel.getProbabilities(m, c);
+                    for (int j = 0; j < nrOfStates; j++) {
+                        batchTables[v] = row[j];
+                        v += batchSize;
+                    }
+                }
+            }
+        }
+        Arrays.fill(batchLogScales, 0.0);
+        Node root = tree.getRoot();
+        traverseBatch(root, batchSize);
+
+        // integrate the root partials over the categories and root frequencies, adding the invariant sites
+        double[] proportions = m_siteModel.getCategoryProportions(root);
+        double[] errorProportions = errorModel.getCategoryProportions();
+        double[] frequencies = rootFrequenciesInput.get() != null ?
+                rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+        Arrays.fill(batchInvariants, 0.0);
+        if (getConstantPattern() != null) {
+            double proportionInvariant = m_siteModel.getProportionInvariant();
+            for (int i : getConstantPattern()) {
+                batchInvariants[i / nrOfStates] += proportionInvariant * frequencies[i % nrOfStates];
+            }
+        }
+        double[] rootPartials = batchPartials[root.getNr()];
+        double[] logP = new double[batchSize];
+        for (int q = 0; q < patterns.length; q++) {
+            int k = patterns[q];
+            Arrays.fill(batchRow, 0.0);
+            for (int l = 0; l < nrOfRates * nrOfErrors; l++) {
+                double weight = errorProportions[l / nrOfRates] * proportions[l % nrOfRates];
+                int u = (l * patterns.length + q) * nrOfStates * batchSize;
+                for (int i = 0; i < nrOfStates; i++) {
+                    double w = weight * frequencies[i];
+                    for (int b = 0; b < batchSize; b++) {
+                        batchRow[b] += w * rootPartials[u + b];
+                    }
+                    u += batchSize;
+                }
+            }
+            for (int b = 0; b < batchSize; b++) {
+                double logScale = batchLogScales[q * batchSize + b];
+                double sum = batchRow[b];
+                if (batchInvariants[k] > 0.0) {
+                    sum += batchInvariants[k] * Math.exp(-logScale);
+                }
+                batchPatternLogLikelihoods[q * batchSize + b] = Math.log(sum) + logScale;
+                logP[b] += data.getPatternWeight(k) * batchPatternLogLikelihoods[q * batchSize + b];
+            }
+        }
+        return logP;
+    }
+
+    /**
+     * Post-order pass of the batch likelihood, calculates the partials of a node for each proposal
+     * from the transition matrices of its children and their partials or tip tables
+     */
+    protected void traverseBatch(Node node, int batchSize) {
+        if (node.isLeaf()) {
+            return;
+        }
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = batchPatterns.length;
+        int nrOfRates = batchNodeMatrices.length;
+        int nrOfCategories = nrOfRates * errorModel.getCategoryCount();
+        int tableSize = errorModel.getCodeCount() * nrOfStates * batchSize;
+        int rowSize = nrOfStates * batchSize;
+        if (batchPartials[node.getNr()] == null) {
+            batchPartials[node.getNr()] = new double[nrOfCategories * nrOfPatterns * rowSize];
+        }
+        double[] partials = batchPartials[node.getNr()];
+
+        for (int c = 0; c < 2; c++) {
+            Node child = node.getChild(c);
+            traverseBatch(child, batchSize);
+            if (subsampleSize > 0) {
+                // the matrices of the likelihood core are only updated by full evaluations
+                double branchRate = branchRateModel.getRateForBranch(child);
+                for (int r = 0; r < nrOfRates; r++) {
+                    double jointBranchRate = m_siteModel.getRateForCategory(r, child) * branchRate;
+                    substitutionModel.getTransitionProbabilities(child, node.getHeight(), child.getHeight(), jointBranchRate, batchNodeMatrices[r]);
+                }
+            } else {
+                for (int r = 0; r < nrOfRates; r++) {
+                    likelihoodCore.getNodeMatrix(child.getNr(), r, batchNodeMatrices[r]);
+                }
+            }
+            int childMatrixIndex = 0;
+            if (child.isLeaf()) {
+                fillLeafCodes(child, batchCodes);
+                childMatrixIndex = getMatrixIndex(child);
+            }
+            int u = 0;
+            for (int l = 0; l < nrOfCategories; l++) {
+                double[] matrix = batchNodeMatrices[l % nrOfRates];
+                int tableOffset = errorModel.getMatrixIndex(l / nrOfRates, childMatrixIndex) * tableSize;
+                for (int k = 0; k < nrOfPatterns; k++) {
+                    // the child has either the tip tables of its observed code or its partials
+                    double[] childPartials = batchPartials[child.getNr()];
+                    int v = (l * nrOfPatterns + k) * rowSize;
+                    if (child.isLeaf()) {
+                        childPartials = batchTables;
+                        v = tableOffset + batchCodes[batchPatterns[k]] * rowSize;
+                    }
+                    int w = 0;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        Arrays.fill(batchRow, 0.0);
+                        for (int j = 0; j < nrOfStates; j++) {
+                            double value = matrix[w];
+                            int x = v + j * batchSize;
+                            for (int b = 0; b < batchSize; b++) {
+                                batchRow[b] += value * childPartials[x + b];
+                            }
+                            w++;
+                        }
+                        if (c == 0) {
+                            System.arraycopy(batchRow, 0, partials, u, batchSize);
+                        } else {
+                            for (int b = 0; b < batchSize; b++) {
+                                partials[u + b] *= batchRow[b];
+                            }
+                        }
+                        u += batchSize;
+                    }
+                }
+            }
+        }
+
+        // rescale each pattern and proposal to prevent underflow
+        int categorySize = nrOfPatterns * rowSize;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            Arrays.fill(batchRow, 0.0);
+            for (int l = 0; l < nrOfCategories; l++) {
+                int v = l * categorySize + k * rowSize;
+                for (int i = 0; i < nrOfStates; i++) {
+                    for (int b = 0; b < batchSize; b++) {
+                        batchRow[b] = Math.max(batchRow[b], partials[v + b]);
+                    }
+                    v += batchSize;
+                }
+            }
+            for (int b = 0; b < batchSize; b++) {
+                if (batchRow[b] > 0.0) {
+                    batchLogScales[k * batchSize + b] += Math.log(batchRow[b]);
+                    batchRow[b] = 1.0 / batchRow[b];
+                }
+            }
+            for (int l = 0; l < nrOfCategories; l++) {
+                int v = l * categorySize + k * rowSize;
+                for (int i = 0; i < nrOfStates; i++) {
+                    for (int b = 0; b < batchSize; b++) {
+                        partials[v + b] *= batchRow[b];
+                    }
+                    v += batchSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the posterior probabilities of the true state of each leaf and pattern given all the data,
+     * from the partials of the last call to calculateLogP and one pre-order pass over the tree.
+     * For a leaf, the posterior of true state j is proportional to the outside partials of the leaf
+     * times the tip partials of the observed code, summed over the categories.
+     * With invariant sites, the share of the pattern likelihood from the invariant sites goes to the constant states.
+     *
+     * @param posteriors posterior probabilities indexed by node number of the leaf, then pattern * stateCount + state,
+     *                   leaf arrays are allocated if null
+     */
+    public void calculateGenotypePosteriors(double[][] posteriors) {
+        prepareOutsidePass();
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        if (invariantPosteriors == null) {
+            invariantPosteriors = new double[nrOfPatterns * nrOfStates];
+        }
+        Arrays.fill(invariantPosteriors, 0.0);
+        if (getConstantPattern() != null) {
+            double[] frequencies = rootFrequenciesInput.get() != null ?
+                    rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+            for (int i : getConstantPattern()) {
+                invariantPosteriors[i] = frequencies[i % nrOfStates];
+            }
+            for (int k = 0; k < nrOfPatterns; k++) {
+                double sum = 0.0;
+                for (int j = 0; j < nrOfStates; j++) {
+                    sum += invariantPosteriors[k * nrOfStates + j];
+                }
+                for (int j = 0; sum > 0.0 && j < nrOfStates; j++) {
+                    invariantPosteriors[k * nrOfStates + j] *= (1.0 - variableShares[k]) / sum;
+                }
+            }
+        }
+        traverseOutside(treeInput.get().getRoot(), 0, null, null, posteriors);
+    }
+
+    /**
+     * Calculates the derivative of the log likelihood with respect to the length of each branch,
+     * from the partials of the last call to calculateLogP and one pre-order pass over the tree.
+     * For a branch above a child, the derivative of a pattern likelihood is the outside partials at the top of the branch
+     * times dP/dt times the partials of the child, where dP/dt is the rate matrix times the transition matrix
+     * scaled by the rate of the branch and category, with the tip partials of the error model at the leaves.
+     *
+     * @return derivative of the log likelihood with respect to the length of the branch above each node,
+     *         indexed by node number, zero for the root
+     */
+    @Override
+    public double[] getBranchLengthGradient() {
+        prepareOutsidePass();
+        double[] gradient = new double[treeInput.get().getNodeCount()];
+        traverseOutside(treeInput.get().getRoot(), 0, null, gradient, null);
+        return gradient;
+    }
+
+    /**
+     * Allocates the buffers for the pre-order pass on first use,
+     * and calculates the outside partials of the root and the scale of each pattern
+     */
+    protected void prepareOutsidePass() {
+        if (subsampleSize > 0) {
+            throw new UnsupportedOperationException("The pre-order pass needs the partials of all patterns, not a subsampled likelihood");
+        }
+        if (!useCodeTable()) {
+            throw new UnsupportedOperationException("The gradient needs tip partials from the error model, not empirical tips");
+        }
+        if (useAscertainedSitePatterns || ascertainment != Ascertainment.none) {
+            throw new UnsupportedOperationException("The gradient is not available with ascertained site patterns");
+        }
+        Alignment data = dataInput.get();
+        TreeInterface tree = treeInput.get();
+        int nrOfStates = data.getDataType().getStateCount();
+        int nrOfPatterns = data.getPatternCount();
+        int nrOfRates = m_siteModel.getCategoryCount();
+        int nrOfErrors = errorModel.getCategoryCount();
+        if (outsidePartials == null) {
+            int partialsSize = nrOfErrors * nrOfRates * nrOfPatterns * nrOfStates;
+            outsidePartials = new double[tree.getNodeCount()][];
+            derivativeTables = new double[nrOfErrors * errorModel.getMatrixCount()][errorModel.getCodeCount() * nrOfStates];
+            topPartials = new double[partialsSize];
+            siblingPartials = new double[partialsSize];
+            childPartials = new double[partialsSize];
+            siblingMatrices = new double[nrOfRates][nrOfStates * nrOfStates];
+            childMatrices = new double[nrOfRates][nrOfStates * nrOfStates];
+            matrixDerivatives = new double[nrOfRates][nrOfStates * nrOfStates];
+            rateMatrix = new double[nrOfStates * nrOfStates];
+            numerators = new double[nrOfPatterns];
+            denominators = new double[nrOfPatterns];
+            gradientCodes = new int[nrOfPatterns];
+            gradientRootPartials = new double[nrOfPatterns * nrOfStates];
+            variableLogLikelihoods = new double[nrOfPatterns];
+            totalLogLikelihoods = new double[nrOfPatterns];
+            variableShares = new double[nrOfPatterns];
+            patternScales = new double[nrOfPatterns];
+        }
+        rateMatrixSource = null;
+
+        // the outside partials of the root are the root frequencies weighted by the category proportions
+        Node root = tree.getRoot();
+        double[] proportions = m_siteModel.getCategoryProportions(root);
+        double[] errorProportions = errorModel.getCategoryProportions();
+        double[] frequencies = rootFrequenciesInput.get() != null ?
+                rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+        double[] outside = getOutsidePartials(0);
+        int u = 0;
+        for (int e = 0; e < nrOfErrors; e++) {
+            for (int r = 0; r < nrOfRates; r++) {
+                double weight = errorProportions[e] * proportions[r];
+                for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int i = 0; i < nrOfStates; i++) {
+                        outside[u] = weight * frequencies[i];
+                        u++;
+                    }
+                }
+            }
+        }
+
+        // share of each pattern likelihood from the variable sites, less than one with invariant sites
+        likelihoodCore.integratePartials(root.getNr(), proportions, gradientRootPartials);
+        likelihoodCore.calculateLogLikelihoods(gradientRootPartials, frequencies, variableLogLikelihoods);
+        // pattern likelihoods as in calculateLogP, which are not restored with the partials after a rejected proposal
+        if (getConstantPattern() != null) {
+            double proportionInvariant = m_siteModel.getProportionInvariant();
+            for (int i : getConstantPattern()) {
+                gradientRootPartials[i] += proportionInvariant;
+            }
+        }
+        likelihoodCore.calculateLogLikelihoods(gradientRootPartials, frequencies, totalLogLikelihoods);
+        for (int k = 0; k < nrOfPatterns; k++) {
+            variableShares[k] = Math.exp(variableLogLikelihoods[k] - totalLogLikelihoods[k]);
+            patternScales[k] = data.getPatternWeight(k) * variableShares[k];
+        }
+    }
+
+    protected double[] getOutsidePartials(int depth) {
+        if (outsidePartials[depth] == null) {
+            outsidePartials[depth] = new double[siblingPartials.length];
+        }
+        return outsidePartials[depth];
+    }
+
+    /**
+     * Pre-order pass that calculates the outside partials of the children of a node,
+     * and adds the derivatives of the leaves to the parameter gradient or of each branch to the branch gradient,
+     * or calculates the genotype posteriors of the leaves
+     *
+     * @param parameterGradient  gradient of an error parameter, or null
+     * @param branchGradient     gradient of the branch lengths, or null
+     * @param genotypePosteriors posteriors of the true states of the leaves, or null
+     */
+    protected void traverseOutside(Node node, int depth, double[] parameterGradient, double[] branchGradient,
+                                   double[][] genotypePosteriors) {
+        double[] outside = getOutsidePartials(depth);
+        if (node.isLeaf()) {
+            if (parameterGradient != null) {
+                addLeafGradient(node, outside, parameterGradient);
+            }
+            if (genotypePosteriors != null) {
+                if (genotypePosteriors[node.getNr()] == null) {
+                    genotypePosteriors[node.getNr()] = new double[invariantPosteriors.length];
+                }
+                calculateLeafPosteriors(node, outside, genotypePosteriors[node.getNr()]);
+            }
+            return;
+        }
+        for (int c = 0; c < 2; c++) {
+            Node child = node.getChild(c);
+            calculateOutsidePartials(outside, node.getChild(1 - c), child, getOutsidePartials(depth + 1));
+            if (branchGradient != null) {
+                branchGradient[child.getNr()] = calculateBranchGradient(child);
+            }
+            traverseOutside(child, depth + 1, parameterGradient, branchGradient, genotypePosteriors);
+        }
+    }
+
+    /**
+     * Calculates the outside partials at the top of the branch of a child, top[i] = parent[i] * (P_sibling * sibling)[i],
+     * and at the bottom of the branch, out[j] = sum_i top[i] * P_child(i -> j), for each category and pattern,
+     * from the outside partials of its parent and the partials of its sibling
+     */
+    protected void calculateOutsidePartials(double[] parentOutside, Node sibling, Node child, double[] out) {
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        int nrOfRates = siblingMatrices.length;
+        int nrOfCategories = nrOfRates * errorModel.getCategoryCount();
+        for (int r = 0; r < nrOfRates; r++) {
+            likelihoodCore.getNodeMatrix(sibling.getNr(), r, siblingMatrices[r]);
+            likelihoodCore.getNodeMatrix(child.getNr(), r, childMatrices[r]);
+        }
+        int siblingMatrixIndex = 0;
+        if (sibling.isLeaf()) {
+            fillLeafCodes(sibling, gradientCodes);
+            siblingMatrixIndex = getMatrixIndex(sibling);
+        } else {
+            likelihoodCore.getNodePartials(sibling.getNr(), siblingPartials);
+        }
+
+        int u = 0;
+        for (int l = 0; l < nrOfCategories; l++) {
+            double[] siblingMatrix = siblingMatrices[l % nrOfRates];
+            double[] childMatrix = childMatrices[l % nrOfRates];
+            int errorMatrix = errorModel.getMatrixIndex(l / nrOfRates, siblingMatrixIndex);
+            for (int k = 0; k < nrOfPatterns; k++) {
+                // partials of the sibling are either the tip partials of its observed code or its partials
+                double[] partials = siblingPartials;
+                int v = u;
+                if (sibling.isLeaf()) {
+                    partials = errorModel.getProbabilities(errorMatrix, gradientCodes[k]);
+                    v = 0;
+                }
+                int w = 0;
+                for (int i = 0; i < nrOfStates; i++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < nrOfStates; j++) {
+                        sum += siblingMatrix[w] * partials[v + j];
+                        w++;
+                    }
+                    topPartials[u + i] = parentOutside[u + i] * sum;
+                }
+                for (int j = 0; j < nrOfStates; j++) {
+                    double sum = 0.0;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        sum += topPartials[u + i] * childMatrix[i * nrOfStates + j];
+                    }
+                    out[u + j] = sum;
+                }
+                u += nrOfStates;
+            }
+        }
+
+        // normalise each pattern to prevent underflow
+        int categorySize = nrOfPatterns * nrOfStates;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            double max = 0.0;
+            for (int l = 0; l < nrOfCategories; l++) {
+                for (int j = 0; j < nrOfStates; j++) {
+                    max = Math.max(max, out[l * categorySize + k * nrOfStates + j]);
+                }
+            }
+            if (max > 0.0) {
+                for (int l = 0; l < nrOfCategories; l++) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        out[l * categorySize + k * nrOfStates + j] /= max;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the derivative of the log likelihood with respect to the length of the branch above a child,
+     * using the outside partials at the top of the branch from {@link #calculateOutsidePartials}
+     */
+    protected double calculateBranchGradient(Node child) {
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        int nrOfRates = siblingMatrices.length;
+        int nrOfCategories = nrOfRates * errorModel.getCategoryCount();
+
+        // dP/dt = rate * Q * P for each rate category
+        setupRateMatrix(child);
+        double branchRate = branchRateModel.getRateForBranch(child);
+        for (int r = 0; r < nrOfRates; r++) {
+            double rate = m_siteModel.getRateForCategory(r, child) * branchRate;
+            double[] matrix = childMatrices[r];
+            for (int i = 0; i < nrOfStates; i++) {
+                for (int j = 0; j < nrOfStates; j++) {
+                    double sum = 0.0;
+                    for (int k = 0; k < nrOfStates; k++) {
+                        sum += rateMatrix[i * nrOfStates + k] * matrix[k * nrOfStates + j];
+                    }
+                    matrixDerivatives[r][i * nrOfStates + j] = rate * sum;
+                }
+            }
+        }
+
+        int childMatrixIndex = 0;
+        if (child.isLeaf()) {
+            fillLeafCodes(child, gradientCodes);
+            childMatrixIndex = getMatrixIndex(child);
+        } else {
+            likelihoodCore.getNodePartials(child.getNr(), childPartials);
+        }
+
+        Arrays.fill(numerators, 0.0);
+        Arrays.fill(denominators, 0.0);
+        int u = 0;
+        for (int l = 0; l < nrOfCategories; l++) {
+            double[] matrix = childMatrices[l % nrOfRates];
+            double[] derivative = matrixDerivatives[l % nrOfRates];
+            int errorMatrix = errorModel.getMatrixIndex(l / nrOfRates, childMatrixIndex);
+            for (int k = 0; k < nrOfPatterns; k++) {
+                double[] partials = childPartials;
+                int v = u;
+                if (child.isLeaf()) {
+                    partials = errorModel.getProbabilities(errorMatrix, gradientCodes[k]);
+                    v = 0;
+                }
+                int w = 0;
+                for (int i = 0; i < nrOfStates; i++) {
+                    double sum = 0.0;
+                    double derivativeSum = 0.0;
+                    for (int j = 0; j < nrOfStates; j++) {
+                        sum += matrix[w] * partials[v + j];
+                        derivativeSum += derivative[w] * partials[v + j];
+                        w++;
+                    }
+                    denominators[k] += topPartials[u + i] * sum;
+                    numerators[k] += topPartials[u + i] * derivativeSum;
+                }
+                u += nrOfStates;
+            }
+        }
+
+        double gradient = 0.0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            if (denominators[k] > 0.0) {
+                gradient += patternScales[k] * numerators[k] / denominators[k];
+            }
+        }
+        return gradient;
+    }
+
+    /**
+     * Sets up the rate matrix Q of the substitution model for the branch of a node from its eigen decomposition,
+     * normalised in the same way as the transition matrices
+     */
+    protected void setupRateMatrix(Node node) {
+        EigenDecomposition eigen = substitutionModel.getEigenDecomposition(node);
+        if (eigen == rateMatrixSource) {
+            return;
+        }
+        if (eigen == null) {
+            throw new UnsupportedOperationException("The branch length gradient needs the eigen decomposition of the substitution model");
+        }
+        double[] imaginary = eigen.getImEigenValues();
+        if (imaginary != null) {
+            for (double value : imaginary) {
+                if (value != 0.0) {
+                    throw new UnsupportedOperationException("The branch length gradient needs a substitution model with real eigenvalues");
+                }
+            }
+        }
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        double[] eigenVectors = eigen.getEigenVectors();
+        double[] inverseEigenVectors = eigen.getInverseEigenVectors();
+        double[] eigenValues = eigen.getEigenValues();
+        for (int i = 0; i < nrOfStates; i++) {
+            for (int j = 0; j < nrOfStates; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < nrOfStates; k++) {
+                    sum += eigenVectors[i * nrOfStates + k] * eigenValues[k] * inverseEigenVectors[k * nrOfStates + j];
+                }
+                rateMatrix[i * nrOfStates + j] = sum;
+            }
+        }
+        rateMatrixSource = eigen;
+    }
+
+    /**
+     * Adds the derivative of the log likelihood through the tip partials of a leaf to the gradient,
+     * for each pattern the outside partials times the derivative of the tip partials,
+     * divided by the outside partials times the tip partials
+     */
+    protected void addLeafGradient(Node leaf, double[] outside, double[] gradient) {
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        int nrOfRates = siblingMatrices.length;
+        int nrOfCategories = nrOfRates * errorModel.getCategoryCount();
+        int categorySize = nrOfPatterns * nrOfStates;
+        fillLeafCodes(leaf, gradientCodes);
+        int matrixIndex = getMatrixIndex(leaf);
+        double sum = 0.0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int code = gradientCodes[k];
+            double numerator = 0.0;
+            double denominator = 0.0;
+            for (int l = 0; l < nrOfCategories; l++) {
+                int errorMatrix = errorModel.getMatrixIndex(l / nrOfRates, matrixIndex);
+                double[] tipPartials = errorModel.getProbabilities(errorMatrix, code);
+                double[] derivatives = derivativeTables[errorMatrix];
+                int v = l * categorySize + k * nrOfStates;
+                for (int j = 0; j < nrOfStates; j++) {
+                    numerator += outside[v + j] * derivatives[code * nrOfStates + j];
+                    denominator += outside[v + j] * tipPartials[j];
+                }
+            }
+            if (denominator > 0.0) {
+                sum += patternScales[k] * numerator / denominator;
+            }
+        }
+        gradient[matrixIndex % gradient.length] += sum;
+    }
+
+    /**
+     * Calculates the posterior probabilities of the true states of a leaf for each pattern,
+     * the outside partials times the tip partials normalised over the states,
+     * mixed with the posteriors of the invariant sites
+     */
+    protected void calculateLeafPosteriors(Node leaf, double[] outside, double[] posteriors) {
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        int nrOfPatterns = dataInput.get().getPatternCount();
+        int nrOfRates = siblingMatrices.length;
+        int nrOfCategories = nrOfRates * errorModel.getCategoryCount();
+        int categorySize = nrOfPatterns * nrOfStates;
+        fillLeafCodes(leaf, gradientCodes);
+        int matrixIndex = getMatrixIndex(leaf);
+        Arrays.fill(posteriors, 0.0);
+        for (int l = 0; l < nrOfCategories; l++) {
+            int errorMatrix = errorModel.getMatrixIndex(l / nrOfRates, matrixIndex);
+            for (int k = 0; k < nrOfPatterns; k++) {
+                double[] tipPartials = errorModel.getProbabilities(errorMatrix, gradientCodes[k]);
+                int v = l * categorySize + k * nrOfStates;
+                for (int j = 0; j < nrOfStates; j++) {
+                    posteriors[k * nrOfStates + j] += outside[v + j] * tipPartials[j];
+                }
+            }
+        }
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int v = k * nrOfStates;
+            double sum = 0.0;
+            for (int j = 0; j < nrOfStates; j++) {
+                sum += posteriors[v + j];
+            }
+            double scale = sum > 0.0 ? variableShares[k] / sum : 0.0;
+            for (int j = 0; j < nrOfStates; j++) {
+                posteriors[v + j] = posteriors[v + j] * scale + invariantPosteriors[v + j];
+            }
+        }
+    }
+
+    @Override
+    public void store() {
+        storedSubsampleVariance = subsampleVariance;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        subsampleVariance = storedSubsampleVariance;
+        updateLeafPartials = false;
+        alignmentChanged = false;
+        updatePatterns = false;
+        if (updateLeaves != null) {
+            Arrays.fill(updateLeaves, false);
+        }
+        super.restore();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        super.init(out);
+        if (subsampleSize > 0) {
+            out.print(getID() + ".variance\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        super.log(sample, out);
+        if (subsampleSize > 0) {
+            out.print(subsampleVariance + "\t");
+        }
     }
 
 }
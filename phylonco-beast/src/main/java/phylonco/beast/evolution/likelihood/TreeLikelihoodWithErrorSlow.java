@@ -11,6 +11,9 @@ public class TreeLikelihoodWithErrorSlow  extends TreeLikelihoodWithError {
     @Override
     public boolean requiresRecalculation() {
         errorModel.setUpdateFlag(true);
+        if (useCodeTable()) {
+            updateCodeTable();
+        }
         if (m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
             setPartials(treeInput.get().getRoot(), dataInput.get().getPatternCount());
         } else {
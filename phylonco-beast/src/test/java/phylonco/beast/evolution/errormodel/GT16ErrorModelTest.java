@@ -1,6 +1,7 @@
 package phylonco.beast.evolution.errormodel;
 
 import beast.base.evolution.datatype.DataType;
+import beast.base.inference.parameter.RealParameter;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import phylonco.beast.TestUtils;
@@ -9,6 +10,9 @@ import phylonco.beast.evolution.datatype.NucleotideDiploid16;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
 
 public class GT16ErrorModelTest {
 
@@ -205,4 +209,149 @@ public class GT16ErrorModelTest {
             }
         }
     }
+
+    /***
+     * Tests that restore returns the stored error matrix without recalculating it,
+     * and that the error matrix is only recalculated when an error parameter changes.
+     ***/
+    @Test
+    public void testGT16StoreRestore() {
+        RealParameter epsilon = new RealParameter("0.1");
+        RealParameter delta = new RealParameter("0.2");
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName(
+                "epsilon", epsilon,
+                "delta", delta,
+                "datatype", new NucleotideDiploid16()
+        );
+
+        int observedState = 1;
+        errorModel.store();
+        double[] expected = errorModel.getProbabilities(observedState).clone();
+
+        delta.setValue(0.3);
+        assertTrue(errorModel.requiresRecalculation());
+        double[] changed = errorModel.getProbabilities(observedState).clone();
+        assertFalse(expected[0] == changed[0]);
+
+        delta.restore();
+        errorModel.restore();
+        assertFalse(errorModel.getUpdateFlag());
+        assertArrayEquals(expected, errorModel.getProbabilities(observedState), DELTA);
+
+        // no error parameter has changed
+        errorModel.store();
+        assertFalse(errorModel.requiresRecalculation());
+        assertFalse(errorModel.getUpdateFlag());
+    }
+
+    /***
+     * Tests the error matrix matches P(x | y) for all codes including ambiguous codes,
+     * and the delta and epsilon derivatives match central finite differences.
+     ***/
+    @Test
+    public void testGT16ErrorMatrixDerivatives() {
+        double epsilon = 0.1;
+        double delta = 0.2;
+        double h = 1e-6;
+        NucleotideDiploid16 datatype = new NucleotideDiploid16();
+
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", Double.toString(epsilon), "delta", Double.toString(delta), "datatype", datatype);
+        GT16ErrorModel deltaUp = new GT16ErrorModel();
+        deltaUp.initByName("epsilon", Double.toString(epsilon), "delta", Double.toString(delta + h), "datatype", datatype);
+        GT16ErrorModel deltaDown = new GT16ErrorModel();
+        deltaDown.initByName("epsilon", Double.toString(epsilon), "delta", Double.toString(delta - h), "datatype", datatype);
+        GT16ErrorModel epsilonUp = new GT16ErrorModel();
+        epsilonUp.initByName("epsilon", Double.toString(epsilon + h), "delta", Double.toString(delta), "datatype", datatype);
+        GT16ErrorModel epsilonDown = new GT16ErrorModel();
+        epsilonDown.initByName("epsilon", Double.toString(epsilon - h), "delta", Double.toString(delta), "datatype", datatype);
+
+        int nrOfCodes = datatype.mapCodeToStateSet.length;
+        int nrOfStates = datatype.getStateCount();
+        double[] derivDelta = new double[nrOfCodes * nrOfStates];
+        double[] derivEpsilon = new double[nrOfCodes * nrOfStates];
+        errorModel.getDerivativesDelta(derivDelta);
+        errorModel.getDerivativesEpsilon(derivEpsilon);
+
+        double[][] expectedMatrix = getExpectedMatrix(epsilon, delta);
+        for (int observedState = 0; observedState < nrOfCodes; observedState++) {
+            double[] probs = errorModel.getProbabilities(observedState);
+            int[] codes = datatype.getStatesForCode(observedState);
+            for (int trueState = 0; trueState < nrOfStates; trueState++) {
+                double expected = 0.0;
+                if (codes.length == nrOfStates) {
+                    // gap or missing
+                    expected = 1.0;
+                } else {
+                    for (int code : codes) {
+                        expected += expectedMatrix[trueState][code];
+                    }
+                }
+                assertEquals(expected, probs[trueState], DELTA);
+
+                int k = observedState * nrOfStates + trueState;
+                double expectedDelta = (deltaUp.getProbability(observedState, trueState) - deltaDown.getProbability(observedState, trueState)) / (2 * h);
+                double expectedEpsilon = (epsilonUp.getProbability(observedState, trueState) - epsilonDown.getProbability(observedState, trueState)) / (2 * h);
+                assertEquals(expectedDelta, derivDelta[k], 1e-6);
+                assertEquals(expectedEpsilon, derivEpsilon[k], 1e-6);
+            }
+        }
+    }
+
+    /***
+     * Tests that fill writes the error matrix rows of the observed codes at the offset,
+     * repeated for each category.
+     ***/
+    @Test
+    public void testGT16Fill() {
+        NucleotideDiploid16 datatype = new NucleotideDiploid16();
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", "0.1", "delta", "0.2", "datatype", datatype);
+
+        int nrOfStates = datatype.getStateCount();
+        int[] codes = {0, 17, 23, 5};
+        int offset = 3;
+        int categories = 2;
+        double[] out = new double[offset + categories * codes.length * nrOfStates];
+        errorModel.fill(codes, out, offset, categories);
+
+        for (int l = 0; l < categories; l++) {
+            for (int i = 0; i < codes.length; i++) {
+                double[] expected = errorModel.getProbabilities(codes[i]);
+                for (int j = 0; j < nrOfStates; j++) {
+                    int k = offset + (l * codes.length + i) * nrOfStates + j;
+                    assertEquals(expected[j], out[k], 0.0);
+                }
+            }
+        }
+    }
+
+    /***
+     * Tests that the error rate categories have a mean rate of one,
+     * and the error matrix of each category uses the error parameters scaled by the category rate.
+     ***/
+    @Test
+    public void testGT16ErrorCategories() {
+        NucleotideDiploid16 datatype = new NucleotideDiploid16();
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", "0.1", "delta", "0.2", "datatype", datatype,
+                "categoryCount", 4, "shape", new RealParameter("0.5"));
+
+        double[] rates = errorModel.getCategoryRates();
+        double mean = 0.0;
+        for (int c = 0; c < rates.length; c++) {
+            mean += rates[c] * errorModel.getCategoryProportions()[c];
+        }
+        assertEquals(1.0, mean, DELTA);
+
+        for (int c = 0; c < rates.length; c++) {
+            GT16ErrorModel scaled = new GT16ErrorModel();
+            scaled.initByName("epsilon", "" + 0.1 * rates[c], "delta", "" + 0.2 * rates[c], "datatype", datatype);
+            for (int observedState = 0; observedState < datatype.getStateCount(); observedState++) {
+                assertArrayEquals(scaled.getProbabilities(observedState),
+                        errorModel.getProbabilities(errorModel.getMatrixIndex(c, 0), observedState), DELTA);
+            }
+        }
+    }
 }
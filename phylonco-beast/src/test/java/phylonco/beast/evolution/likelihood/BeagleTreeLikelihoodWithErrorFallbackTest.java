@@ -0,0 +1,202 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.datatype.NucleotideDiploid16;
+import phylonco.beast.evolution.errormodel.GT16ErrorModel;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Tests BeagleTreeLikelihoodWithError using the java implementation, does not require Beagle.
+ */
+public class BeagleTreeLikelihoodWithErrorFallbackTest {
+
+    private static double DELTA = 1e-10;
+
+    private static String javaOnly;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+        javaOnly = System.getProperty("java.only");
+        System.setProperty("java.only", "true");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        if (javaOnly == null) {
+            System.clearProperty("java.only");
+        } else {
+            System.setProperty("java.only", javaOnly);
+        }
+    }
+
+    private double calculateLikelihoodGT16(String seq, String epsilon, String delta) {
+        return createLikelihoodGT16(seq, new RealParameter(epsilon), new RealParameter(delta)).calculateLogP();
+    }
+
+    private BeagleTreeLikelihoodWithError createLikelihoodGT16(String seq, RealParameter epsilon, RealParameter delta) {
+        return createLikelihoodGT16(seq.substring(0, 1), seq.substring(1), epsilon, delta);
+    }
+
+    private BeagleTreeLikelihoodWithError createLikelihoodGT16(String seqA, String seqB, RealParameter epsilon, RealParameter delta) {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", seqA),
+                "sequence", new Sequence("b", seqB),
+                "dataType", "nucleotideDiploid16"
+        );
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "(a: 0.5, b: 0.5);",
+                "IsLabelledNewick", true
+        );
+
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        RealParameter f = new RealParameter(pi);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", f, "estimate", false);
+        freqs.initAndValidate();
+
+        Double[] rates = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0};
+        RealParameter nucRates = new RealParameter(rates);
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+
+        phylonco.beast.evolution.substitutionmodel.GT16 subsModel = new phylonco.beast.evolution.substitutionmodel.GT16();
+        subsModel.initByName(
+                "nucRates", nucRates,
+                "frequencies", freqs
+        );
+        subsModel.initAndValidate();
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", subsModel);
+        siteModel.initAndValidate();
+
+        NucleotideDiploid16 datatype = new NucleotideDiploid16();
+
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", datatype);
+        errorModel.initAndValidate();
+
+        BeagleTreeLikelihoodWithError likelihood = new BeagleTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "useAmbiguities", true,
+                "useTipLikelihoods", true,
+                "errorModel", errorModel);
+        assertNotNull(likelihood.javaLikelihood);
+
+        return likelihood;
+    }
+
+    /**
+     * same expected values as BeagleTreeLikelihoodWithErrorTest
+     */
+    @Test
+    public void testGT16ErrorLikelihoodCase0() {
+        double logP = calculateLikelihoodGT16("00", "0.1", "0.2");
+        double expectedLogP = -3.2683402019565975;
+        assertEquals(expectedLogP, logP, DELTA);
+    }
+
+    @Test
+    public void testGT16ErrorLikelihoodCase1() {
+        double logP = calculateLikelihoodGT16("01", "0.1", "0.2");
+        double expectedLogP = -5.1071258693509041;
+        assertEquals(expectedLogP, logP, DELTA);
+    }
+
+    /**
+     * the java likelihood is stored and restored like BEAGLE, a rejected change restores the previous likelihood
+     */
+    @Test
+    public void testGT16ErrorLikelihoodStoreRestore() {
+        RealParameter epsilon = new RealParameter("0.1");
+        BeagleTreeLikelihoodWithError likelihood = createLikelihoodGT16("01", epsilon, new RealParameter("0.2"));
+        double logP = likelihood.calculateLogP();
+        assertEquals(-5.1071258693509041, logP, DELTA);
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(likelihood);
+
+        state.store(1);
+        epsilon.setValue(0.3);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        double changedLogP = likelihood.calculateLogP();
+        assertEquals(calculateLikelihoodGT16("01", "0.3", "0.2"), changedLogP, DELTA);
+
+        // reject the change
+        state.restore();
+        state.restoreCalculationNodes();
+        assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+
+        // accept the next change
+        state.store(2);
+        epsilon.setValue(0.2);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        changedLogP = likelihood.calculateLogP();
+        state.acceptCalculationNodes();
+        assertEquals(calculateLikelihoodGT16("01", "0.2", "0.2"), changedLogP, DELTA);
+    }
+
+    /**
+     * the pattern log likelihoods of the java likelihood on two threads are those of each block of sites,
+     * the logged sites should map to these patterns so that lppd of a single sample is the log likelihood
+     */
+    @Test
+    public void testGT16PatternLogLikelihoodLoggerThreads() throws Exception {
+        String instanceCount = System.getProperty("beast.instance.count");
+        System.setProperty("beast.instance.count", "2");
+        try {
+            // sites 0 0 are repeated in both blocks of sites, each block also has its own patterns
+            BeagleTreeLikelihoodWithError likelihood = createLikelihoodGT16("0011100022", "0011100221",
+                    new RealParameter("0.1"), new RealParameter("0.2"));
+            assertEquals(2, likelihood.javaLikelihood.treelikelihood.length);
+            double logP = likelihood.calculateLogP();
+
+            File file = File.createTempFile("patternLogL", ".bin");
+            file.deleteOnExit();
+            PatternLogLikelihoodLogger logger = new PatternLogLikelihoodLogger();
+            logger.initByName("likelihood", likelihood, "fileName", file.getPath());
+            logger.init((PrintStream) null);
+            logger.log(0, null);
+            logger.close(null);
+
+            PatternLogLikelihoodReader.Summary summary = PatternLogLikelihoodReader.read(file.getPath(), 0);
+            assertEquals(1, summary.sampleCount);
+            assertEquals(10, summary.siteCount);
+            assertEquals(logP, summary.lppd, DELTA);
+        } finally {
+            if (instanceCount == null) {
+                System.clearProperty("beast.instance.count");
+            } else {
+                System.setProperty("beast.instance.count", instanceCount);
+            }
+        }
+    }
+}
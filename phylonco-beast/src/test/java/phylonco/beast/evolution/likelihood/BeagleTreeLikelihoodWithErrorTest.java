@@ -86,6 +86,11 @@ public class BeagleTreeLikelihoodWithErrorTest {
 
     private static double getLogLikelihood(Alignment data, TreeParser tree,
                                            SiteModel siteModel, ErrorModel errorModel) {
+        return getLogLikelihood(data, tree, siteModel, errorModel, false);
+    }
+
+    private static double getLogLikelihood(Alignment data, TreeParser tree,
+                                           SiteModel siteModel, ErrorModel errorModel, boolean foldErrorMatrix) {
         BeagleTreeLikelihoodWithError likelihood = new BeagleTreeLikelihoodWithError();
         likelihood.initByName(
                 "data", data,
@@ -93,7 +98,8 @@ public class BeagleTreeLikelihoodWithErrorTest {
                 "siteModel", siteModel,
                 "useAmbiguities", true,
                 "useTipLikelihoods", true,
-                "errorModel", errorModel);
+                "errorModel", errorModel,
+                "foldErrorMatrix", foldErrorMatrix);
         assertNotNull("BeagleTreeLikelihoodWithError beagle = " + likelihood.beagle, likelihood.beagle);
 
         return likelihood.calculateLogP();
@@ -195,6 +201,10 @@ public class BeagleTreeLikelihoodWithErrorTest {
     }
 
     private double calculateLikelihoodGT16(String seq, String epsilon, String delta) {
+        return calculateLikelihoodGT16(seq, epsilon, delta, false);
+    }
+
+    private double calculateLikelihoodGT16(String seq, String epsilon, String delta, boolean foldErrorMatrix) {
         Alignment data = new Alignment();
         Sequence seqA = new Sequence("a", seq.substring(0, 1));
         Sequence seqB = new Sequence("b", seq.substring(1));
@@ -233,7 +243,7 @@ public class BeagleTreeLikelihoodWithErrorTest {
         errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", datatype);
         errorModel.initAndValidate();
 
-        return getLogLikelihood(data, tree, siteModel, errorModel);
+        return getLogLikelihood(data, tree, siteModel, errorModel, foldErrorMatrix);
     }
 
     @Test
@@ -249,4 +259,11 @@ public class BeagleTreeLikelihoodWithErrorTest {
         double expectedLogP = -5.1071258693509041;
         assertEquals(expectedLogP, logP, DELTA);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGT16ErrorLikelihoodFolded() {
+        double logP = calculateLikelihoodGT16("01", "0.1", "0.2", true);
+        double expectedLogP = -5.1071258693509041;
+        assertEquals(expectedLogP, logP, DELTA);
+    }
+}
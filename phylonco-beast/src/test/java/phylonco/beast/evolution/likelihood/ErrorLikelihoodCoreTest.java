@@ -0,0 +1,111 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ErrorLikelihoodCoreTest {
+
+    private static double DELTA = 1e-12;
+
+    /**
+     * The partials of the error likelihood core with observed codes at the tips should match BeerLikelihoodCore
+     * with the code table rows as tip partials, for the unrolled kernels of two and three states and the general loops.
+     * The tree ((((0,1)6,(2,3)7)8,4)9,5)10 has every combination of leaf and internal children,
+     * and the last code is missing, with a row of ones.
+     */
+    @Test
+    public void testPartialsMatchBeerLikelihoodCore() {
+        for (int nrOfStates = 2; nrOfStates <= 4; nrOfStates++) {
+            Random random = new Random(nrOfStates);
+            int nrOfCodes = nrOfStates + 1;
+            int nrOfPatterns = 25;
+            int nrOfRates = 2;
+            int nrOfLeaves = 6;
+            int nodeCount = 2 * nrOfLeaves - 1;
+            int[][] children = {{0, 1}, {2, 3}, {6, 7}, {8, 4}, {9, 5}};
+
+            double[] codeTable = new double[nrOfCodes * nrOfStates];
+            for (int i = 0; i < codeTable.length; i++) {
+                codeTable[i] = i < nrOfStates * nrOfStates ? random.nextDouble() : 1.0;
+            }
+            int[][] codes = new int[nrOfLeaves][nrOfPatterns];
+            for (int[] leafCodes : codes) {
+                for (int k = 0; k < nrOfPatterns; k++) {
+                    // mostly observed codes, some missing
+                    leafCodes[k] = random.nextInt(4) == 0 ? nrOfStates : random.nextInt(nrOfStates);
+                }
+            }
+            // one pattern missing below the first internal node, and one missing everywhere
+            codes[0][0] = codes[1][0] = nrOfStates;
+            for (int[] leafCodes : codes) {
+                leafCodes[1] = nrOfStates;
+            }
+
+            ErrorLikelihoodCore core = new ErrorLikelihoodCore(nrOfStates);
+            core.initialize(nodeCount, nrOfPatterns, nrOfRates, true, true);
+            core.setCodeTableForUpdate();
+            core.setCodeTable(codeTable);
+            BeerLikelihoodCore expectedCore = new BeerLikelihoodCore(nrOfStates);
+            expectedCore.initialize(nodeCount, nrOfPatterns, nrOfRates, true, true);
+            for (int n = 0; n < nrOfLeaves; n++) {
+                core.setNodeCodes(n, codes[n]);
+                double[] partials = new double[nrOfPatterns * nrOfStates];
+                for (int k = 0; k < nrOfPatterns; k++) {
+                    System.arraycopy(codeTable, codes[n][k] * nrOfStates, partials, k * nrOfStates, nrOfStates);
+                }
+                expectedCore.setNodePartials(n, partials);
+            }
+            for (int n = nrOfLeaves; n < nodeCount; n++) {
+                core.createNodePartials(n);
+                expectedCore.createNodePartials(n);
+            }
+            for (int n = 0; n < nodeCount - 1; n++) {
+                core.setNodeMatrixForUpdate(n);
+                expectedCore.setNodeMatrixForUpdate(n);
+                for (int r = 0; r < nrOfRates; r++) {
+                    double[] matrix = new double[nrOfStates * nrOfStates];
+                    for (int i = 0; i < nrOfStates; i++) {
+                        double sum = 0.0;
+                        for (int j = 0; j < nrOfStates; j++) {
+                            matrix[i * nrOfStates + j] = random.nextDouble();
+                            sum += matrix[i * nrOfStates + j];
+                        }
+                        for (int j = 0; j < nrOfStates; j++) {
+                            matrix[i * nrOfStates + j] /= sum;
+                        }
+                    }
+                    core.setNodeMatrix(n, r, matrix);
+                    expectedCore.setNodeMatrix(n, r, matrix);
+                }
+            }
+
+            double[] partials = new double[nrOfRates * nrOfPatterns * nrOfStates];
+            double[] expectedPartials = new double[partials.length];
+            for (int n = nrOfLeaves; n < nodeCount; n++) {
+                int[] c = children[n - nrOfLeaves];
+                core.setNodePartialsForUpdate(n);
+                core.calculatePartials(c[0], c[1], n);
+                expectedCore.setNodePartialsForUpdate(n);
+                expectedCore.calculatePartials(c[0], c[1], n);
+                core.getNodePartials(n, partials);
+                expectedCore.getNodePartials(n, expectedPartials);
+                for (int i = 0; i < partials.length; i++) {
+                    assertEquals("states " + nrOfStates + " node " + n + " entry " + i, expectedPartials[i], partials[i], DELTA);
+                }
+            }
+            // patterns missing in every leaf have partials of one
+            core.getNodePartials(nodeCount - 1, partials);
+            for (int r = 0; r < nrOfRates; r++) {
+                int v = (r * nrOfPatterns + 1) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    assertEquals(1.0, partials[v + i], 0.0);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.datatype.NucleotideDiploid16;
+import phylonco.beast.evolution.errormodel.GT16ErrorModel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+public class PartialsPrecisionCheckTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    private TreeLikelihoodWithErrorFast getLikelihood() {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "05M?A-3F"),
+                "sequence", new Sequence("b", "0R??AS3F"),
+                "sequence", new Sequence("c", "15W-AYK?"),
+                "sequence", new Sequence("d", "?5MFA-3F"),
+                "dataType", "nucleotideDiploid16"
+        );
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, (c: 0.4, d: 0.1): 0.2);",
+                "IsLabelledNewick", true
+        );
+
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+
+        RealParameter nucRates = new RealParameter(new Double[] {1.0, 2.0, 3.0, 4.0, 5.0, 6.0});
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+
+        phylonco.beast.evolution.substitutionmodel.GT16 subsModel = new phylonco.beast.evolution.substitutionmodel.GT16();
+        subsModel.initByName("nucRates", nucRates, "frequencies", freqs);
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", subsModel);
+
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", "0.1", "delta", "0.2", "datatype", new NucleotideDiploid16());
+
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel);
+        return likelihood;
+    }
+
+    @Test
+    public void testGetLikelihoods() {
+        TreeLikelihoodWithErrorFast likelihood = getLikelihood();
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", likelihood);
+
+        List<GenericTreeLikelihood> likelihoods = PartialsPrecisionCheck.getLikelihoods(posterior);
+        assertEquals(1, likelihoods.size());
+        assertSame(likelihood, likelihoods.get(0));
+    }
+
+    @Test
+    public void testCompare() {
+        TreeLikelihoodWithErrorFast likelihood = getLikelihood();
+        double expectedLogP = likelihood.calculateLogP();
+
+        double[] logP = PartialsPrecisionCheck.compare(likelihood);
+        assertEquals(expectedLogP, logP[0], 1e-10);
+        assertEquals(expectedLogP, logP[1], 1e-5);
+        // the original storage is kept
+        assertEquals(TreeLikelihoodWithError.PartialsStorage.doubles, likelihood.partialsStorageInput.get());
+        assertEquals(expectedLogP, likelihood.calculateLogP(), 1e-10);
+    }
+}
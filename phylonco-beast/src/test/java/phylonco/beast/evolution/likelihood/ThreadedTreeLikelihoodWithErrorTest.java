@@ -0,0 +1,178 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.datatype.NucleotideDiploid16;
+import phylonco.beast.evolution.errormodel.GT16ErrorModel;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class ThreadedTreeLikelihoodWithErrorTest {
+
+    private static double DELTA = 1e-10;
+
+    private Alignment data;
+    private TreeParser tree;
+    private SiteModel siteModel;
+    private GT16ErrorModel errorModel;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    private void setUpGT16(String epsilon, String delta) {
+        data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "05M?A-3F"),
+                "sequence", new Sequence("b", "0R??AS3F"),
+                "sequence", new Sequence("c", "15W-AYK?"),
+                "sequence", new Sequence("d", "?5MFA-3F"),
+                "dataType", "nucleotideDiploid16"
+        );
+
+        tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, (c: 0.4, d: 0.1): 0.2);",
+                "IsLabelledNewick", true
+        );
+
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+
+        RealParameter nucRates = new RealParameter(new Double[] {1.0, 2.0, 3.0, 4.0, 5.0, 6.0});
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+
+        phylonco.beast.evolution.substitutionmodel.GT16 subsModel = new phylonco.beast.evolution.substitutionmodel.GT16();
+        subsModel.initByName("nucRates", nucRates, "frequencies", freqs);
+
+        siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", subsModel);
+
+        errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", new NucleotideDiploid16());
+    }
+
+    private double getExpectedLogLikelihood() {
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel);
+        return likelihood.calculateLogP();
+    }
+
+    private ThreadedTreeLikelihoodWithError getThreadedLikelihood(int threads, boolean foldErrorMatrix) {
+        ThreadedTreeLikelihoodWithError likelihood = new ThreadedTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel,
+                "foldErrorMatrix", foldErrorMatrix,
+                "threads", threads);
+        return likelihood;
+    }
+
+    @Test
+    public void testGT16SingleThread() {
+        setUpGT16("0.1", "0.2");
+        double expectedLogP = getExpectedLogLikelihood();
+        ThreadedTreeLikelihoodWithError likelihood = getThreadedLikelihood(1, false);
+        assertEquals(1, likelihood.getThreadCount());
+        assertEquals(expectedLogP, likelihood.calculateLogP(), DELTA);
+    }
+
+    @Test
+    public void testGT16MultipleThreads() {
+        setUpGT16("0.1", "0.2");
+        double expectedLogP = getExpectedLogLikelihood();
+        ThreadedTreeLikelihoodWithError likelihood = getThreadedLikelihood(3, false);
+        assertEquals(3, likelihood.getThreadCount());
+        assertEquals(expectedLogP, likelihood.calculateLogP(), DELTA);
+    }
+
+    @Test
+    public void testGT16MultipleThreadsFolded() {
+        setUpGT16("0.1", "0.2");
+        double expectedLogP = getExpectedLogLikelihood();
+        ThreadedTreeLikelihoodWithError likelihood = getThreadedLikelihood(3, true);
+        assertEquals(expectedLogP, likelihood.calculateLogP(), DELTA);
+    }
+
+    /**
+     * the number of threads is limited by the number of sites
+     */
+    @Test
+    public void testThreadCountLimitedBySites() {
+        setUpGT16("0.1", "0.2");
+        ThreadedTreeLikelihoodWithError likelihood = getThreadedLikelihood(20, false);
+        assertEquals(data.getSiteCount(), likelihood.getThreadCount());
+        assertEquals(getExpectedLogLikelihood(), likelihood.calculateLogP(), DELTA);
+    }
+
+    /**
+     * pattern log likelihoods of all blocks should sum to the total log likelihood
+     */
+    @Test
+    public void testPatternLogLikelihoods() {
+        setUpGT16("0.1", "0.2");
+        ThreadedTreeLikelihoodWithError likelihood = getThreadedLikelihood(3, false);
+        double logP = likelihood.calculateLogP();
+        double sum = 0;
+        for (double d : likelihood.getPatternLogLikelihoods()) {
+            sum += d;
+        }
+        // each site is its own pattern in this alignment
+        assertEquals(logP, sum, DELTA);
+    }
+
+    /**
+     * site model that fails in each calculation, public with a default constructor to be duplicated for each thread
+     */
+    public static class FailingSiteModel extends SiteModel {
+        @Override
+        public double[] getCategoryProportions(Node node) {
+            throw new IllegalStateException("failing site model");
+        }
+    }
+
+    /**
+     * an exception in a thread should be rethrown by calculateLogP
+     */
+    @Test
+    public void testExceptionInThread() {
+        setUpGT16("0.1", "0.2");
+        SiteModel failingSiteModel = new FailingSiteModel();
+        failingSiteModel.initByName("mutationRate", "1.0", "substModel", siteModel.substModelInput.get());
+        ThreadedTreeLikelihoodWithError likelihood = new ThreadedTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", failingSiteModel,
+                "errorModel", errorModel,
+                "threads", 3);
+        try {
+            likelihood.calculateLogP();
+            fail("expected the exception of the threads");
+        } catch (IllegalStateException e) {
+            assertEquals("failing site model", e.getMessage());
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package phylonco.beast.evolution.likelihood;
 
+import beast.base.core.Input;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.datatype.Binary;
 import beast.base.evolution.datatype.Nucleotide;
+import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import mutablealignment.MutableAlignment;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import phylonco.beast.TestUtils;
@@ -18,7 +25,10 @@ import phylonco.beast.evolution.errormodel.ErrorModelBase;
 import phylonco.beast.evolution.errormodel.GT16ErrorModel;
 import phylonco.beast.evolution.substitutionmodel.BinarySubstitutionModel;
 
+import java.io.File;
+import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Random;
 
 import static junit.framework.Assert.assertEquals;
 
@@ -295,6 +305,41 @@ public class TreeLikelihoodWithErrorFastTest {
         assertEquals(1.0, probSum, DELTA);
     }
 
+    /**
+     * @return GT16 site model with equal frequencies, rates 1 to 6 and a gamma shape of 0.5
+     */
+    private static SiteModel createGT16SiteModel(int gammaCategoryCount) {
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+
+        RealParameter nucRates = new RealParameter(new Double[] {1.0, 2.0, 3.0, 4.0, 5.0, 6.0});
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+
+        phylonco.beast.evolution.substitutionmodel.GT16 subsModel = new phylonco.beast.evolution.substitutionmodel.GT16();
+        subsModel.initByName("nucRates", nucRates, "frequencies", freqs);
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", gammaCategoryCount, "shape", "0.5", "substModel", subsModel);
+        return siteModel;
+    }
+
+    /**
+     * @return GT16 error model, with error rate categories of gamma shape 0.5 if there is more than one category
+     */
+    private static GT16ErrorModel createGT16ErrorModel(Object epsilon, Object delta, int categoryCount) {
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        if (categoryCount > 1) {
+            errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", new NucleotideDiploid16(),
+                    "categoryCount", categoryCount, "shape", new RealParameter("0.5"));
+        } else {
+            errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", new NucleotideDiploid16());
+        }
+        return errorModel;
+    }
+
     private double calculateLikelihoodGT16(String seq, String epsilon, String delta) {
         Alignment data = new Alignment();
         Sequence seqA = new Sequence("a", seq.substring(0, 1));
@@ -531,4 +576,1028 @@ public class TreeLikelihoodWithErrorFastTest {
         double expectedLogP = -5.1071258693509041;
         assertEquals(expectedLogP, logP, DELTA);
     }
+
+    private Alignment gt16Data;
+    private TreeParser gt16Tree;
+    private SiteModel gt16SiteModel;
+    private TreeLikelihoodWithErrorFast gt16Likelihood;
+
+    private double calculateLikelihoodGT16FourTaxa(Object epsilon, Object delta, boolean foldErrorMatrix) {
+        return calculateLikelihoodGT16FourTaxa(epsilon, delta, foldErrorMatrix, TreeLikelihoodWithError.PartialsStorage.doubles);
+    }
+
+    private double calculateLikelihoodGT16FourTaxa(Object epsilon, Object delta, boolean foldErrorMatrix,
+                                                   TreeLikelihoodWithError.PartialsStorage partialsStorage) {
+        gt16Data = new Alignment();
+        gt16Data.initByName(
+                "sequence", new Sequence("a", "05M?A-3F"),
+                "sequence", new Sequence("b", "0R??AS3F"),
+                "sequence", new Sequence("c", "15W-AYK?"),
+                "sequence", new Sequence("d", "?5MFA-3F"),
+                "dataType", "nucleotideDiploid16"
+        );
+
+        gt16Tree = new TreeParser();
+        gt16Tree.initByName(
+                "taxa", gt16Data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, (c: 0.4, d: 0.1): 0.2);",
+                "IsLabelledNewick", true
+        );
+
+        gt16SiteModel = createGT16SiteModel(4);
+        GT16ErrorModel errorModel = createGT16ErrorModel(epsilon, delta, 1);
+
+        gt16Likelihood = new TreeLikelihoodWithErrorFast();
+        gt16Likelihood.initByName(
+                "data", gt16Data,
+                "tree", gt16Tree,
+                "siteModel", gt16SiteModel,
+                "errorModel", errorModel,
+                "foldErrorMatrix", foldErrorMatrix,
+                "partialsStorage", partialsStorage);
+
+        return gt16Likelihood.calculateLogP();
+    }
+
+    /**
+     * with zero error rates the GT16 error matrix only contains the state sets of the observed codes,
+     * so the likelihood with codes at the tips should match the tree likelihood using ambiguities
+     */
+    @Test
+    public void testGT16ZeroErrorMatchesAmbiguities() {
+        double logP = calculateLikelihoodGT16FourTaxa("0.0", "0.0", false);
+
+        TreeLikelihood expectedLikelihood = new TreeLikelihood();
+        expectedLikelihood.initByName(
+                "data", gt16Data,
+                "tree", gt16Tree,
+                "siteModel", gt16SiteModel,
+                "useAmbiguities", true);
+
+        assertEquals(expectedLikelihood.calculateLogP(), logP, DELTA);
+    }
+
+    /**
+     * folding the error matrix into the pendant branch matrices should not change the likelihood
+     */
+    @Test
+    public void testGT16FoldedErrorMatrix() {
+        double expectedLogP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        double logP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", true);
+        assertEquals(expectedLogP, logP, DELTA);
+    }
+
+    private double calculateLikelihoodGT16Missing(String newick, boolean foldErrorMatrix, Sequence... sequences) {
+        Alignment data = new Alignment();
+        for (Sequence sequence : sequences) {
+            data.setInputValue("sequence", sequence);
+        }
+        data.initByName("dataType", "nucleotideDiploid16");
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", newick,
+                "IsLabelledNewick", true
+        );
+
+        SiteModel siteModel = createGT16SiteModel(4);
+        GT16ErrorModel errorModel = createGT16ErrorModel("0.1", "0.2", 1);
+
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel,
+                "foldErrorMatrix", foldErrorMatrix);
+
+        return likelihood.calculateLogP();
+    }
+
+    /**
+     * a taxon with only missing data should give the same likelihood as the tree without that taxon,
+     * for the subtree of missing leaves to be skipped
+     */
+    @Test
+    public void testGT16MissingTaxonMatchesPrunedTree() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            double logP = calculateLikelihoodGT16Missing(
+                    "((a: 0.2, b: 0.3): 0.1, (c: 0.4, (d: 0.1, e: 0.3): 0.05): 0.2);", foldErrorMatrix,
+                    new Sequence("a", "05M?A-3F"),
+                    new Sequence("b", "0R??AS3F"),
+                    new Sequence("c", "15W-AYK?"),
+                    new Sequence("d", "????????"),
+                    new Sequence("e", "-?-?-?-?"));
+            double expectedLogP = calculateLikelihoodGT16Missing(
+                    "((a: 0.2, b: 0.3): 0.1, c: 0.6);", foldErrorMatrix,
+                    new Sequence("a", "05M?A-3F"),
+                    new Sequence("b", "0R??AS3F"),
+                    new Sequence("c", "15W-AYK?"));
+            assertEquals(expectedLogP, logP, DELTA);
+        }
+    }
+
+    /**
+     * partials stored as floats should match partials stored as doubles to single precision
+     */
+    @Test
+    public void testGT16FloatPartials() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            double expectedLogP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            double logP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix, TreeLikelihoodWithError.PartialsStorage.floats);
+            assertEquals(expectedLogP, logP, 1e-5);
+        }
+    }
+
+    /**
+     * partials stored off heap or in a mapped file should match partials stored on the heap
+     */
+    @Test
+    public void testGT16OffHeapPartials() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            double expectedLogP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            double logP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix, TreeLikelihoodWithError.PartialsStorage.offHeap);
+            assertEquals(expectedLogP, logP, DELTA);
+            logP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix, TreeLikelihoodWithError.PartialsStorage.mapped);
+            assertEquals(expectedLogP, logP, DELTA);
+        }
+    }
+
+    /**
+     * per-cell error parameters with the same value for each cell should match shared error parameters
+     */
+    @Test
+    public void testGT16PerCellErrorMatchesShared() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            double expectedLogP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            double logP = calculateLikelihoodGT16FourTaxa("0.1 0.1 0.1 0.1", "0.2 0.2 0.2 0.2", foldErrorMatrix);
+            assertEquals(expectedLogP, logP, DELTA);
+        }
+    }
+
+    /**
+     * changing the error parameter of one cell only updates that leaf,
+     * the likelihood should match a new likelihood with the changed value, and restore to the previous likelihood
+     */
+    @Test
+    public void testGT16PerCellErrorUpdate() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            RealParameter epsilon = new RealParameter("0.1 0.05 0.1 0.2");
+            RealParameter delta = new RealParameter("0.2 0.2 0.2 0.2");
+            double logP = calculateLikelihoodGT16FourTaxa(epsilon, delta, foldErrorMatrix);
+            TreeLikelihoodWithErrorFast likelihood = gt16Likelihood;
+            State state = new State();
+            state.initByName("stateNode", delta, "stateNode", epsilon);
+            state.initialise();
+            state.setPosterior(likelihood);
+
+            // change the dropout probability of taxon c
+            state.store(1);
+            delta.setValue(2, 0.3);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            double changedLogP = likelihood.calculateLogP();
+
+            double expectedLogP = calculateLikelihoodGT16FourTaxa(epsilon, new RealParameter("0.2 0.2 0.3 0.2"), foldErrorMatrix);
+            assertEquals(expectedLogP, changedLogP, DELTA);
+
+            // reject the change
+            state.restore();
+            state.restoreCalculationNodes();
+            assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+
+            // change the sequencing error of taxon a after the restore
+            state.store(2);
+            epsilon.setValue(0, 0.15);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            changedLogP = likelihood.calculateLogP();
+
+            expectedLogP = calculateLikelihoodGT16FourTaxa(new RealParameter("0.15 0.05 0.1 0.2"), new RealParameter("0.2 0.2 0.2 0.2"), foldErrorMatrix);
+            assertEquals(expectedLogP, changedLogP, DELTA);
+        }
+    }
+
+    private double[] errorRates;
+
+    private double calculateLikelihoodGT16OneSite(String epsilon, String delta, int categoryCount, boolean foldErrorMatrix) {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "5"),
+                "sequence", new Sequence("b", "R"),
+                "sequence", new Sequence("c", "1"),
+                "sequence", new Sequence("d", "M"),
+                "dataType", "nucleotideDiploid16"
+        );
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, (c: 0.4, d: 0.1): 0.2);",
+                "IsLabelledNewick", true
+        );
+
+        SiteModel siteModel = createGT16SiteModel(4);
+        GT16ErrorModel errorModel = createGT16ErrorModel(epsilon, delta, categoryCount);
+        errorRates = errorModel.getCategoryRates();
+
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        gt16Likelihood = likelihood;
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel,
+                "foldErrorMatrix", foldErrorMatrix);
+
+        return likelihood.calculateLogP();
+    }
+
+    /**
+     * the likelihood of a site with error rate categories should be the mean of the likelihoods
+     * with the error parameters scaled by the rate of each category
+     */
+    @Test
+    public void testGT16ErrorCategoriesMatchMixture() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            double logP = calculateLikelihoodGT16OneSite("0.1", "0.2", 3, foldErrorMatrix);
+            double[] rates = errorRates;
+            double expectedP = 0.0;
+            for (double rate : rates) {
+                double categoryLogP = calculateLikelihoodGT16OneSite("" + 0.1 * rate, "" + 0.2 * rate, 1, foldErrorMatrix);
+                expectedP += Math.exp(categoryLogP) / rates.length;
+            }
+            assertEquals(Math.log(expectedP), logP, DELTA);
+        }
+    }
+
+    /**
+     * the gradient of the log likelihood with respect to delta and epsilon should match finite differences,
+     * for shared and per-cell error parameters
+     */
+    @Test
+    public void testGT16GradientMatchesFiniteDifferences() {
+        double h = 1e-6;
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            for (String[] values : new String[][] {{"0.1", "0.2"}, {"0.1 0.05 0.1 0.2", "0.2 0.3 0.1 0.2"}}) {
+                RealParameter epsilon = new RealParameter(values[0]);
+                RealParameter delta = new RealParameter(values[1]);
+                calculateLikelihoodGT16FourTaxa(epsilon, delta, foldErrorMatrix);
+                TreeLikelihoodWithErrorFast likelihood = gt16Likelihood;
+                for (RealParameter parameter : new RealParameter[] {epsilon, delta}) {
+                    double[] gradient = likelihood.getGradient(parameter);
+                    assertEquals(parameter.getDimension(), gradient.length);
+                    for (int i = 0; i < parameter.getDimension(); i++) {
+                        double value = parameter.getValue(i);
+                        parameter.setValue(i, value + h);
+                        double logPUp = calculateLikelihoodGT16FourTaxa(new RealParameter(epsilon.getValues()), new RealParameter(delta.getValues()), foldErrorMatrix);
+                        parameter.setValue(i, value - h);
+                        double logPDown = calculateLikelihoodGT16FourTaxa(new RealParameter(epsilon.getValues()), new RealParameter(delta.getValues()), foldErrorMatrix);
+                        parameter.setValue(i, value);
+                        assertEquals((logPUp - logPDown) / (2 * h), gradient[i], 1e-5);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the gradient with error rate categories should match finite differences
+     */
+    @Test
+    public void testGT16GradientErrorCategories() {
+        double h = 1e-6;
+        calculateLikelihoodGT16OneSite("0.1", "0.2", 3, false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        double gradientEpsilon = gt16Likelihood.getGradient(errorModel.epsilonInput.get())[0];
+        double gradientDelta = gt16Likelihood.getGradient(errorModel.deltaInput.get())[0];
+
+        double expected = (calculateLikelihoodGT16OneSite("" + (0.1 + h), "0.2", 3, false) -
+                calculateLikelihoodGT16OneSite("" + (0.1 - h), "0.2", 3, false)) / (2 * h);
+        assertEquals(expected, gradientEpsilon, 1e-5);
+        expected = (calculateLikelihoodGT16OneSite("0.1", "" + (0.2 + h), 3, false) -
+                calculateLikelihoodGT16OneSite("0.1", "" + (0.2 - h), 3, false)) / (2 * h);
+        assertEquals(expected, gradientDelta, 1e-5);
+    }
+
+    /**
+     * changes the height of a node, calculates the likelihood and restores the height
+     */
+    private double calculateLikelihoodChangedHeight(State state, TreeLikelihoodWithErrorFast likelihood, int nodeNr, double change) {
+        state.store(nodeNr);
+        Node node = gt16Tree.getNode(nodeNr);
+        node.setHeight(node.getHeight() + change);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        double logP = likelihood.calculateLogP();
+        state.restore();
+        state.restoreCalculationNodes();
+        return logP;
+    }
+
+    /**
+     * the gradient of the log likelihood with respect to each branch length should match finite differences of node heights,
+     * where the derivative for a node height is minus the gradient of its branch plus the gradients of the branches of its children
+     */
+    @Test
+    public void testGT16BranchLengthGradientMatchesFiniteDifferences() {
+        double h = 1e-6;
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            TreeLikelihoodWithErrorFast likelihood = gt16Likelihood;
+            double[] gradient = likelihood.getBranchLengthGradient();
+            assertEquals(0.0, gradient[gt16Tree.getRoot().getNr()], 0.0);
+
+            State state = new State();
+            state.initByName("stateNode", gt16Tree);
+            state.initialise();
+            state.setPosterior(likelihood);
+            for (int nodeNr = 0; nodeNr < gt16Tree.getNodeCount(); nodeNr++) {
+                Node node = gt16Tree.getNode(nodeNr);
+                double expected = -gradient[nodeNr];
+                for (Node child : node.getChildren()) {
+                    expected += gradient[child.getNr()];
+                }
+                double logPUp = calculateLikelihoodChangedHeight(state, likelihood, nodeNr, h);
+                double logPDown = calculateLikelihoodChangedHeight(state, likelihood, nodeNr, -h);
+                assertEquals(expected, (logPUp - logPDown) / (2 * h), 1e-5);
+            }
+        }
+    }
+
+    /**
+     * the genotype posteriors of a leaf should match the likelihood with the true state of the leaf fixed,
+     * summed over the states of the internal nodes and divided by the likelihood
+     */
+    @Test
+    public void testGT16GenotypePosteriors() {
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            GenotypePosteriorLogger logger = new GenotypePosteriorLogger();
+            logger.initByName("likelihood", gt16Likelihood);
+            logger.setID("genotypes");
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            java.io.PrintStream out = new java.io.PrintStream(bytes);
+            logger.init(out);
+            String header = bytes.toString();
+            bytes.reset();
+            logger.log(0, out);
+            assertEquals(header.split("\t").length, bytes.toString().split("\t").length);
+            logger.log(1, out);
+
+            int nrOfPatterns = gt16Data.getPatternCount();
+            for (Node leaf : gt16Tree.getExternalNodes()) {
+                double[] posteriors = logger.getPosteriors()[leaf.getNr()];
+                double[] means = logger.getPosteriorMeans(leaf);
+                for (int k = 0; k < nrOfPatterns; k++) {
+                    double[] expected = calculateGenotypePosteriors(leaf, k);
+                    double sum = 0.0;
+                    for (int j = 0; j < 16; j++) {
+                        assertEquals(expected[j], posteriors[k * 16 + j], 1e-10);
+                        assertEquals(posteriors[k * 16 + j], means[k * 16 + j], 1e-12);
+                        sum += posteriors[k * 16 + j];
+                    }
+                    assertEquals(1.0, sum, 1e-10);
+                }
+            }
+        }
+    }
+
+    private double[] calculateGenotypePosteriors(Node fixedLeaf, int pattern) {
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        double[] frequencies = gt16SiteModel.getSubstitutionModel().getFrequencies();
+        double[] proportions = gt16SiteModel.getCategoryProportions(gt16Tree.getRoot());
+        double[] joint = new double[16];
+        double total = 0.0;
+        for (int j = 0; j < 16; j++) {
+            for (int r = 0; r < proportions.length; r++) {
+                double[] partials = calculateFixedPartials(gt16Tree.getRoot(), r, pattern, fixedLeaf, j, errorModel);
+                for (int i = 0; i < 16; i++) {
+                    joint[j] += proportions[r] * frequencies[i] * partials[i];
+                }
+            }
+            total += joint[j];
+        }
+        for (int j = 0; j < 16; j++) {
+            joint[j] /= total;
+        }
+        return joint;
+    }
+
+    private double[] calculateFixedPartials(Node node, int category, int pattern, Node fixedLeaf, int state, GT16ErrorModel errorModel) {
+        double[] partials = new double[16];
+        if (node.isLeaf()) {
+            int code = gt16Data.getPattern(gt16Data.getTaxonIndex(node.getID()), pattern);
+            double[] tipPartials = errorModel.getProbabilities(code);
+            for (int j = 0; j < 16; j++) {
+                partials[j] = node == fixedLeaf && j != state ? 0.0 : tipPartials[j];
+            }
+            return partials;
+        }
+        Arrays.fill(partials, 1.0);
+        double[] matrix = new double[16 * 16];
+        for (Node child : node.getChildren()) {
+            double[] childPartials = calculateFixedPartials(child, category, pattern, fixedLeaf, state, errorModel);
+            gt16SiteModel.getSubstitutionModel().getTransitionProbabilities(child, node.getHeight(), child.getHeight(),
+                    gt16SiteModel.getRateForCategory(category, child), matrix);
+            for (int i = 0; i < 16; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < 16; j++) {
+                    sum += matrix[i * 16 + j] * childPartials[j];
+                }
+                partials[i] *= sum;
+            }
+        }
+        return partials;
+    }
+
+    /**
+     * the batch likelihood for several values of an error parameter should match the likelihood at each value
+     */
+    @Test
+    public void testGT16BatchLikelihood() {
+        double[] epsilons = {0.05, 0.1, 0.3};
+        for (boolean foldErrorMatrix : new boolean[] {false, true}) {
+            calculateLikelihoodGT16FourTaxa("0.1", "0.2", foldErrorMatrix);
+            GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+            double[][] values = new double[epsilons.length][];
+            for (int b = 0; b < epsilons.length; b++) {
+                values[b] = new double[] {epsilons[b]};
+            }
+            double[] logP = gt16Likelihood.calculateLogPBatch(errorModel.epsilonInput.get(), values);
+            for (int b = 0; b < epsilons.length; b++) {
+                assertEquals(calculateLikelihoodGT16FourTaxa("" + epsilons[b], "0.2", foldErrorMatrix), logP[b], 1e-10);
+            }
+
+            // per taxon values and error rate categories
+            calculateLikelihoodGT16OneSite("0.1", "0.2", 3, foldErrorMatrix);
+            errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+            logP = gt16Likelihood.calculateLogPBatch(errorModel.deltaInput.get(), new double[][] {{0.3}, {0.05}});
+            assertEquals(calculateLikelihoodGT16OneSite("0.1", "0.3", 3, foldErrorMatrix), logP[0], 1e-10);
+            assertEquals(calculateLikelihoodGT16OneSite("0.1", "0.05", 3, foldErrorMatrix), logP[1], 1e-10);
+
+            calculateLikelihoodGT16FourTaxa(new RealParameter("0.15 0.05 0.1 0.2"), "0.2", foldErrorMatrix);
+            errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+            logP = gt16Likelihood.calculateLogPBatch(errorModel.epsilonInput.get(), new double[][] {{0.15, 0.3, 0.1, 0.2}});
+            assertEquals(calculateLikelihoodGT16FourTaxa(new RealParameter("0.15 0.3 0.1 0.2"), "0.2", foldErrorMatrix), logP[0], 1e-10);
+        }
+    }
+
+    /**
+     * the multiple-try operator should move one value of the parameter within the window with a finite Hastings ratio
+     */
+    @Test
+    public void testGT16MultipleTryOperator() {
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        RealParameter epsilon = errorModel.epsilonInput.get();
+        epsilon.setBounds(0.0, 1.0);
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(gt16Likelihood);
+
+        MultipleTryErrorOperator operator = new MultipleTryErrorOperator();
+        operator.initByName("parameter", epsilon, "likelihood", gt16Likelihood, "tryCount", 4, "windowSize", 0.05, "weight", 1.0);
+        state.store(0);
+        double logHR = operator.proposal();
+        assertEquals(false, Double.isInfinite(logHR) || Double.isNaN(logHR));
+        assertEquals(0.1, epsilon.getValue(), 0.05);
+    }
+
+    /**
+     * the batch likelihood of a subsample of patterns should be the weighted sum of their pattern log likelihoods,
+     * and the delayed acceptance operator should return minus the scaled log ratio of the subsample likelihoods
+     */
+    @Test
+    public void testGT16DelayedAcceptanceOperator() {
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        RealParameter epsilon = errorModel.epsilonInput.get();
+        epsilon.setBounds(0.0, 1.0);
+        int[] patterns = {1, 4, 6};
+        double[] patternLogL = gt16Likelihood.getPatternLogLikelihoods();
+        double expected = 0.0;
+        for (int k : patterns) {
+            expected += gt16Data.getPatternWeight(k) * patternLogL[k];
+        }
+        assertEquals(expected, gt16Likelihood.calculateLogPBatch(epsilon, new double[][] {{0.1}}, patterns)[0], 1e-10);
+
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(gt16Likelihood);
+        DelayedAcceptanceErrorOperator operator = new DelayedAcceptanceErrorOperator();
+        operator.initByName("parameter", epsilon, "likelihood", gt16Likelihood, "subsampleSize", 3, "windowSize", 0.05, "weight", 1.0);
+        assertEquals(3, operator.getSubsample().length);
+        for (int i = 0; i < 20; i++) {
+            state.store(i);
+            double logHR = operator.proposal();
+            if (logHR != Double.NEGATIVE_INFINITY) {
+                double[] logL = gt16Likelihood.calculateLogPBatch(epsilon, new double[][] {{0.1}, {epsilon.getValue()}}, operator.getSubsample());
+                assertEquals(-operator.getSubsampleScale() * (logL[1] - logL[0]), logHR, 1e-10);
+            }
+            state.restore();
+            assertEquals(0.1, epsilon.getValue(), 0.0);
+        }
+    }
+
+    /**
+     * the subsampled likelihood should be exact at the reference state, and away from it the mean of the estimates
+     * should match the full likelihood, with a variance that matches the reported variance
+     */
+    @Test
+    public void testGT16SubsampledLikelihood() {
+        double expectedLogP = calculateLikelihoodGT16FourTaxa("0.12", "0.2", false);
+        double referenceLogP = calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", gt16Data,
+                "tree", gt16Tree,
+                "siteModel", gt16SiteModel,
+                "errorModel", errorModel,
+                "subsampleSize", 4,
+                "biasCorrection", false);
+        assertEquals(referenceLogP, likelihood.calculateLogP(), DELTA);
+        assertEquals(referenceLogP, likelihood.calculateLogP(), DELTA);
+        assertEquals(0.0, likelihood.getSubsampleVariance(), DELTA);
+
+        RealParameter epsilon = errorModel.epsilonInput.get();
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.store(0);
+        epsilon.setValue(0.12);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+
+        int n = 4000;
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        double sumOfVariances = 0.0;
+        for (int i = 0; i < n; i++) {
+            double logP = likelihood.calculateLogP();
+            sum += logP;
+            sumOfSquares += logP * logP;
+            sumOfVariances += likelihood.getSubsampleVariance();
+        }
+        double mean = sum / n;
+        double variance = sumOfSquares / n - mean * mean;
+        assertEquals(expectedLogP, mean, 4 * Math.sqrt(variance / n));
+        assertEquals(variance, sumOfVariances / n, 0.2 * variance);
+    }
+
+    /**
+     * the pattern log likelihoods should be restored with the state after a rejected proposal
+     */
+    @Test
+    public void testGT16RestorePatternLogLikelihoods() {
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        RealParameter epsilon = ((GT16ErrorModel) gt16Likelihood.errorModelInput.get()).epsilonInput.get();
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(gt16Likelihood);
+        double[] expected = gt16Likelihood.getPatternLogLikelihoods().clone();
+
+        state.store(0);
+        epsilon.setValue(0.3);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        gt16Likelihood.calculateLogP();
+        assertEquals(false, Arrays.equals(expected, gt16Likelihood.getPatternLogLikelihoods()));
+        state.restore();
+        state.restoreCalculationNodes();
+        double[] restored = gt16Likelihood.getPatternLogLikelihoods();
+        for (int k = 0; k < expected.length; k++) {
+            assertEquals(expected[k], restored[k], DELTA);
+        }
+
+        // accept a change, then reject the next one, which swaps the buffers of the pattern log likelihoods again
+        state.store(1);
+        epsilon.setValue(0.3);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        gt16Likelihood.calculateLogP();
+        state.acceptCalculationNodes();
+        expected = gt16Likelihood.getPatternLogLikelihoods().clone();
+        state.setEverythingDirty(false);
+
+        state.store(2);
+        epsilon.setValue(0.2);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        gt16Likelihood.calculateLogP();
+        state.restore();
+        state.restoreCalculationNodes();
+        restored = gt16Likelihood.getPatternLogLikelihoods();
+        for (int k = 0; k < expected.length; k++) {
+            assertEquals(expected[k], restored[k], DELTA);
+        }
+    }
+
+    /**
+     * WAIC and LOO read back from the pattern log likelihood file should match the values computed from the samples
+     */
+    @Test
+    public void testGT16PatternLogLikelihoodLogger() throws Exception {
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        RealParameter epsilon = ((GT16ErrorModel) gt16Likelihood.errorModelInput.get()).epsilonInput.get();
+        double[] epsilons = {0.1, 0.05, 0.2, 0.15, 0.12};
+        for (boolean useFloat : new boolean[] {false, true}) {
+            File file = File.createTempFile("patternLogL", ".bin");
+            file.deleteOnExit();
+            PatternLogLikelihoodLogger logger = new PatternLogLikelihoodLogger();
+            logger.initByName("likelihood", gt16Likelihood, "fileName", file.getPath(), "useFloat", useFloat, "blockSize", 2);
+            logger.init((PrintStream) null);
+            double[][] samples = new double[epsilons.length][];
+            for (int i = 0; i < epsilons.length; i++) {
+                epsilon.setValue(epsilons[i]);
+                gt16Likelihood.calculateLogP();
+                samples[i] = gt16Likelihood.getPatternLogLikelihoods().clone();
+                logger.log(i * 10, null);
+            }
+            logger.close(null);
+
+            // the first sample is burnin
+            Alignment data = gt16Likelihood.dataInput.get();
+            double lppd = 0.0;
+            double pWaic = 0.0;
+            double elpdLoo = 0.0;
+            int n = epsilons.length - 1;
+            for (int k = 0; k < data.getPatternCount(); k++) {
+                double likelihood = 0.0;
+                double inverseLikelihood = 0.0;
+                double mean = 0.0;
+                for (int i = 1; i <= n; i++) {
+                    likelihood += Math.exp(samples[i][k]) / n;
+                    inverseLikelihood += Math.exp(-samples[i][k]) / n;
+                    mean += samples[i][k] / n;
+                }
+                double variance = 0.0;
+                for (int i = 1; i <= n; i++) {
+                    variance += (samples[i][k] - mean) * (samples[i][k] - mean) / (n - 1);
+                }
+                lppd += data.getPatternWeight(k) * Math.log(likelihood);
+                pWaic += data.getPatternWeight(k) * variance;
+                elpdLoo -= data.getPatternWeight(k) * Math.log(inverseLikelihood);
+            }
+
+            PatternLogLikelihoodReader.Summary summary = PatternLogLikelihoodReader.read(file.getPath(), 1);
+            double tolerance = useFloat ? 1e-4 : DELTA;
+            assertEquals(n, summary.sampleCount);
+            assertEquals(data.getSiteCount(), summary.siteCount);
+            assertEquals(lppd, summary.lppd, tolerance);
+            assertEquals(pWaic, summary.pWaic, tolerance);
+            assertEquals(-2 * (lppd - pWaic), summary.waic, tolerance);
+            assertEquals(elpdLoo, summary.elpdLoo, tolerance);
+            assertEquals(-2 * elpdLoo, summary.looic, tolerance);
+        }
+    }
+
+    /**
+     * conditioning on variable sites should subtract the log of one minus the probability of the constant patterns,
+     * calculated here from alignments of one constant site, with observed codes under the error model or true genotypes
+     */
+    @Test
+    public void testGT16Ascertainment() {
+        for (TreeLikelihoodWithError.Ascertainment ascertainment : new TreeLikelihoodWithError.Ascertainment[] {
+                TreeLikelihoodWithError.Ascertainment.observed, TreeLikelihoodWithError.Ascertainment.genotypes}) {
+            double logP = calculateLikelihoodGT16FourTaxa(new RealParameter("0.15 0.05 0.1 0.2"), "0.2", false);
+            GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+            NucleotideDiploid16 dataType = new NucleotideDiploid16();
+            double constantProbability = 0.0;
+            for (int c = 0; c < dataType.getStateCount(); c++) {
+                String site = dataType.getCharacter(c);
+                Alignment constant = new Alignment();
+                constant.initByName(
+                        "sequence", new Sequence("a", site),
+                        "sequence", new Sequence("b", site),
+                        "sequence", new Sequence("c", site),
+                        "sequence", new Sequence("d", site),
+                        "dataType", "nucleotideDiploid16"
+                );
+                TreeLikelihood likelihood = ascertainment == TreeLikelihoodWithError.Ascertainment.observed ?
+                        new TreeLikelihoodWithErrorFast() : new TreeLikelihood();
+                if (ascertainment == TreeLikelihoodWithError.Ascertainment.observed) {
+                    likelihood.setInputValue("errorModel", errorModel);
+                }
+                likelihood.initByName("data", constant, "tree", gt16Tree, "siteModel", gt16SiteModel);
+                constantProbability += Math.exp(likelihood.calculateLogP());
+            }
+            double expectedLogP = logP - gt16Data.getSiteCount() * Math.log(1.0 - constantProbability);
+
+            TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+            likelihood.initByName(
+                    "data", gt16Data,
+                    "tree", gt16Tree,
+                    "siteModel", gt16SiteModel,
+                    "errorModel", errorModel,
+                    "ascertainment", ascertainment);
+            assertEquals(expectedLogP, likelihood.calculateLogP(), DELTA);
+            assertEquals(Math.log(1.0 - constantProbability), likelihood.getLogVariableProbability(), DELTA);
+        }
+    }
+
+    /**
+     * with invariant sites and observed codes, an invariant site of true state i shows code c in every cell
+     * with the product of the error probabilities of c for i, so the probability of a variable site
+     * should match an explicit sum over the constant patterns with this probability for the invariant sites
+     */
+    @Test
+    public void testGT16AscertainmentInvariantSites() {
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        double proportionInvariant = 0.2;
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5",
+                "proportionInvariant", proportionInvariant + "", "substModel", gt16SiteModel.getSubstitutionModel());
+        GT16ErrorModel errorModel = createGT16ErrorModel(new RealParameter("0.15 0.05 0.1 0.2"), "0.2", 3);
+        double[] errorProportions = errorModel.getCategoryProportions();
+        double[] frequencies = siteModel.getSubstitutionModel().getFrequencies();
+        NucleotideDiploid16 dataType = new NucleotideDiploid16();
+        int nrOfStates = dataType.getStateCount();
+        double constantProbability = 0.0;
+        for (int c = 0; c < nrOfStates; c++) {
+            String site = dataType.getCharacter(c);
+            Alignment constant = new Alignment();
+            constant.initByName(
+                    "sequence", new Sequence("a", site),
+                    "sequence", new Sequence("b", site),
+                    "sequence", new Sequence("c", site),
+                    "sequence", new Sequence("d", site),
+                    "dataType", "nucleotideDiploid16"
+            );
+            TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+            likelihood.initByName("data", constant, "tree", gt16Tree, "siteModel", siteModel, "errorModel", errorModel);
+
+            double invariant = 0.0;
+            for (int e = 0; e < errorProportions.length; e++) {
+                for (int i = 0; i < nrOfStates; i++) {
+                    double product = errorProportions[e] * frequencies[i];
+                    for (int t = 0; t < constant.getTaxonCount(); t++) {
+                        product *= errorModel.getProbability(errorModel.getMatrixIndex(e, t), c, i);
+                    }
+                    invariant += product;
+                }
+            }
+            // the likelihood of the constant pattern adds the invariant sites as the frequency of c
+            constantProbability += Math.exp(likelihood.calculateLogP()) + proportionInvariant * (invariant - frequencies[c]);
+        }
+
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", gt16Data,
+                "tree", gt16Tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel,
+                "ascertainment", TreeLikelihoodWithError.Ascertainment.observed);
+        likelihood.calculateLogP();
+        assertEquals(Math.log(1.0 - constantProbability), likelihood.getLogVariableProbability(), DELTA);
+    }
+
+    /**
+     * with many cells the partials underflow without scaling, dynamic scaling should give the same likelihood
+     * as scaling every node, also after proposals are accepted and rejected
+     */
+    @Test
+    public void testGT16DynamicScaling() {
+        int nrOfTaxa = 600;
+        NucleotideDiploid16 dataType = new NucleotideDiploid16();
+        Random random = new Random(7);
+        Alignment data = new Alignment();
+        for (int t = 0; t < nrOfTaxa; t++) {
+            StringBuilder sequence = new StringBuilder();
+            for (int k = 0; k < 12; k++) {
+                sequence.append(dataType.getCharacter(random.nextInt(3) == 0 ? random.nextInt(16) : k % 16));
+            }
+            data.setInputValue("sequence", new Sequence("t" + t, sequence.toString()));
+        }
+        data.initByName("dataType", "nucleotideDiploid16");
+
+        // caterpillar tree, so the partials near the root are products over all cells
+        String tree = "t0:0.1";
+        for (int t = 1; t < nrOfTaxa; t++) {
+            tree = "(" + tree + ",t" + t + ":0.1):0.05";
+        }
+        TreeParser treeParser = new TreeParser();
+        treeParser.initByName("taxa", data, "newick", tree + ";", "IsLabelledNewick", true);
+
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        RealParameter epsilon = errorModel.epsilonInput.get();
+        epsilon.setBounds(0.0, 1.0);
+
+        TreeLikelihoodWithErrorFast scaled = new TreeLikelihoodWithErrorFast();
+        scaled.initByName("data", data, "tree", treeParser, "siteModel", gt16SiteModel, "errorModel", errorModel);
+        TreeLikelihoodWithErrorFast dynamic = new TreeLikelihoodWithErrorFast();
+        dynamic.initByName("data", data, "tree", treeParser, "siteModel", gt16SiteModel, "errorModel", errorModel,
+                "scalingCheckInterval", 3);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", scaled, "distribution", dynamic);
+
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(posterior);
+        double logP = scaled.calculateLogP();
+        assertEquals(false, Double.isInfinite(logP) || Double.isNaN(logP));
+        assertEquals(logP, dynamic.calculateLogP(), 1e-10 * Math.abs(logP));
+
+        double[] epsilons = {0.12, 0.08, 0.15, 0.05, 0.11, 0.09, 0.2, 0.1};
+        for (int i = 0; i < epsilons.length; i++) {
+            state.store(i);
+            epsilon.setValue(epsilons[i]);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            posterior.calculateLogP();
+            assertEquals(scaled.getCurrentLogP(), dynamic.getCurrentLogP(), 1e-10 * Math.abs(logP));
+            if (i % 2 == 0) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            assertEquals(scaled.getCurrentLogP(), dynamic.getCurrentLogP(), 1e-10 * Math.abs(logP));
+        }
+    }
+
+    /**
+     * MutableAlignment whose codes are edited without being a state node, which needs a newer BEAST.
+     * The alignment is dirty when its edits parameter changes, and its dirty sequence indices are set by the test
+     * as MutableAlignment 0.0.1 gives them: the site of an edit of one code, the taxon of an edit of a taxon,
+     * and every taxon for other edits.
+     */
+    public static class EditableAlignment extends MutableAlignment {
+        final public Input<IntegerParameter> editsInput = new Input<>("edits", "parameter that is changed with each edit");
+
+        Integer[] editIndices = new Integer[0];
+
+        @Override
+        public Integer[] getDirtySequenceIndices() {
+            return editIndices;
+        }
+
+        int setCode(int taxonIndex, int patternIndex, int code) {
+            int oldCode = sitePatterns[patternIndex][taxonIndex];
+            sitePatterns[patternIndex][taxonIndex] = code;
+            return oldCode;
+        }
+    }
+
+    /**
+     * @return alignment with the current codes of each site of an alignment
+     */
+    private Alignment copyAlignment(Alignment data) {
+        NucleotideDiploid16 dataType = new NucleotideDiploid16();
+        Alignment copy = new Alignment();
+        for (int t = 0; t < data.getTaxonCount(); t++) {
+            StringBuilder sequence = new StringBuilder();
+            for (int s = 0; s < data.getSiteCount(); s++) {
+                sequence.append(dataType.getCharacter(data.getPattern(t, data.getPatternIndex(s))));
+            }
+            copy.setInputValue("sequence", new Sequence(data.getTaxaNames().get(t), sequence.toString()));
+        }
+        copy.initByName("dataType", "nucleotideDiploid16");
+        return copy;
+    }
+
+    /**
+     * edits of the alignment should give the likelihood of the edited alignment,
+     * when only the edited patterns are recalculated, with dynamic scaling and folded tips,
+     * and when all partials are recalculated, as with float partials or an edit of every code,
+     * also after edits are accepted and rejected.
+     * The partials of the caterpillar tree with many cells underflow, so they are scaled.
+     */
+    @Test
+    public void testGT16AlignmentEdits() {
+        NucleotideDiploid16 dataType = new NucleotideDiploid16();
+        int missing = dataType.stringToEncoding("?").get(0);
+        calculateLikelihoodGT16FourTaxa("0.1", "0.2", false);
+        GT16ErrorModel errorModel = (GT16ErrorModel) gt16Likelihood.errorModelInput.get();
+        for (int nrOfTaxa : new int[] {20, 600}) {
+            Random random = new Random(nrOfTaxa);
+            IntegerParameter editCount = new IntegerParameter("0");
+            EditableAlignment data = new EditableAlignment();
+            data.setInputValue("edits", editCount);
+            for (int t = 0; t < nrOfTaxa; t++) {
+                StringBuilder sequence = new StringBuilder();
+                for (int k = 0; k < 12; k++) {
+                    sequence.append(random.nextInt(10) == 0 ? "?" : dataType.getCharacter(random.nextInt(3) == 0 ? random.nextInt(16) : k % 16));
+                }
+                data.setInputValue("sequence", new Sequence("t" + t, sequence.toString()));
+            }
+            data.initByName("dataType", "nucleotideDiploid16");
+            int nrOfPatterns = data.getPatternCount();
+            String tree = "t0:0.1";
+            for (int t = 1; t < nrOfTaxa; t++) {
+                tree = "(" + tree + ",t" + t + ":0.1):0.05";
+            }
+            TreeParser treeParser = new TreeParser();
+            treeParser.initByName("taxa", data, "newick", tree + ";", "IsLabelledNewick", true);
+
+            TreeLikelihoodWithErrorFast[] likelihoods = new TreeLikelihoodWithErrorFast[4];
+            for (int i = 0; i < likelihoods.length; i++) {
+                likelihoods[i] = new TreeLikelihoodWithErrorFast();
+                likelihoods[i].setInputValue("data", data);
+                likelihoods[i].setInputValue("tree", treeParser);
+                likelihoods[i].setInputValue("siteModel", gt16SiteModel);
+                likelihoods[i].setInputValue("errorModel", errorModel);
+            }
+            likelihoods[1].setInputValue("scalingCheckInterval", 3);
+            likelihoods[2].setInputValue("foldErrorMatrix", true);
+            likelihoods[3].setInputValue("partialsStorage", TreeLikelihoodWithError.PartialsStorage.floats);
+            CompoundDistribution posterior = new CompoundDistribution();
+            for (TreeLikelihoodWithErrorFast likelihood : likelihoods) {
+                likelihood.initAndValidate();
+                posterior.setInputValue("distribution", likelihood);
+            }
+            posterior.initAndValidate();
+            State state = new State();
+            state.initByName("stateNode", editCount);
+            state.initialise();
+            state.setPosterior(posterior);
+            state.robustlyCalcPosterior(posterior);
+            double expectedLogP = likelihoods[0].getCurrentLogP();
+
+            for (int i = 0; i < 16; i++) {
+                double storedLogP = expectedLogP;
+                double[] storedPatternLogP = likelihoods[0].getPatternLogLikelihoods();
+                state.store(i);
+                editCount.setValue(i + 1);
+                // taxon, pattern and old code of each edit, the patterns of a MutableAlignment are its sites
+                int[][] edits;
+                // every taxon is dirty for edits of a site or of every code
+                data.editIndices = new Integer[nrOfTaxa];
+                for (int t = 0; t < nrOfTaxa; t++) {
+                    data.editIndices[t] = t;
+                }
+                if (i == 10) {
+                    // edit of every code
+                    edits = new int[nrOfTaxa * nrOfPatterns][];
+                    for (int t = 0; t < nrOfTaxa; t++) {
+                        for (int k = 0; k < nrOfPatterns; k++) {
+                            edits[t * nrOfPatterns + k] = new int[] {t, k, random.nextInt(16)};
+                        }
+                    }
+                } else if (i % 4 == 3) {
+                    // edit of every taxon at a pattern
+                    int k = random.nextInt(nrOfPatterns);
+                    edits = new int[nrOfTaxa][];
+                    for (int t = 0; t < nrOfTaxa; t++) {
+                        edits[t] = new int[] {t, k, random.nextInt(16)};
+                    }
+                } else if (i % 4 == 2) {
+                    // edit of one taxon at every pattern
+                    int t = random.nextInt(nrOfTaxa);
+                    edits = new int[nrOfPatterns][];
+                    for (int k = 0; k < nrOfPatterns; k++) {
+                        edits[k] = new int[] {t, k, random.nextInt(5) == 0 ? missing : random.nextInt(16)};
+                    }
+                    data.editIndices = new Integer[] {t};
+                } else {
+                    // edit of a single genotype
+                    edits = new int[][] {{random.nextInt(nrOfTaxa), random.nextInt(nrOfPatterns), random.nextInt(5) == 0 ? missing : random.nextInt(16)}};
+                    // the site of the edit instead of the taxon, as in MutableAlignment 0.0.1
+                    data.editIndices = new Integer[] {edits[0][1]};
+                }
+                for (int[] edit : edits) {
+                    edit[2] = data.setCode(edit[0], edit[1], edit[2]);
+                }
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+                posterior.calculateLogP();
+
+                TreeLikelihoodWithErrorFast expected = new TreeLikelihoodWithErrorFast();
+                expected.initByName("data", copyAlignment(data), "tree", treeParser, "siteModel", gt16SiteModel, "errorModel", errorModel);
+                expectedLogP = expected.calculateLogP();
+                assertEquals(false, Double.isInfinite(expectedLogP) || Double.isNaN(expectedLogP));
+                for (TreeLikelihoodWithErrorFast likelihood : likelihoods) {
+                    double tolerance = likelihood == likelihoods[3] ? 1e-6 : 1e-10;
+                    assertEquals(expectedLogP, likelihood.getCurrentLogP(), tolerance * Math.abs(expectedLogP));
+                }
+                if (i % 2 == 0 || i == 1) {
+                    state.acceptCalculationNodes();
+                } else {
+                    for (int e = edits.length - 1; e >= 0; e--) {
+                        data.setCode(edits[e][0], edits[e][1], edits[e][2]);
+                    }
+                    state.restore();
+                    state.restoreCalculationNodes();
+                    expectedLogP = storedLogP;
+                    for (TreeLikelihoodWithErrorFast likelihood : likelihoods) {
+                        double tolerance = likelihood == likelihoods[3] ? 1e-6 : 1e-10;
+                        assertEquals(expectedLogP, likelihood.getCurrentLogP(), tolerance * Math.abs(expectedLogP));
+                    }
+                    double[] patternLogP = likelihoods[0].getPatternLogLikelihoods();
+                    for (int k = 0; k < nrOfPatterns; k++) {
+                        assertEquals(storedPatternLogP[k], patternLogP[k], 0.0);
+                    }
+                }
+                state.setEverythingDirty(false);
+            }
+        }
+    }
 }
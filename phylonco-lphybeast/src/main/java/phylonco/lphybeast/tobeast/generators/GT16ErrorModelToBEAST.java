@@ -2,6 +2,7 @@ package phylonco.lphybeast.tobeast.generators;
 
 import beast.base.core.BEASTInterface;
 import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.inference.parameter.RealParameter;
 import lphy.base.evolution.alignment.Alignment;
@@ -12,20 +13,27 @@ import lphybeast.BEASTContext;
 import lphybeast.GeneratorToBEAST;
 import lphybeast.tobeast.generators.PhyloCTMCToBEAST;
 import phylonco.beast.evolution.errormodel.ErrorModel;
-import phylonco.beast.evolution.likelihood.TreeLikelihoodWithError;
+import phylonco.beast.evolution.likelihood.ThreadedTreeLikelihoodWithError;
 import phylonco.beast.evolution.likelihood.TreeLikelihoodWithErrorFast;
 import phylonco.lphy.evolution.alignment.GT16ErrorModel;
 
 import java.util.Objects;
 
 /**
- * This has to create TreeLikelihood
+ * This has to create TreeLikelihood.
+ * If the system property phylonco.threads is greater than 1,
+ * a ThreadedTreeLikelihoodWithError using that many threads is created.
  * @author Walter Xie
  */
-public class GT16ErrorModelToBEAST implements GeneratorToBEAST<GT16ErrorModel, TreeLikelihoodWithError> {
+public class GT16ErrorModelToBEAST implements GeneratorToBEAST<GT16ErrorModel, GenericTreeLikelihood> {
+
+    /**
+     * system property for the number of threads used by the tree likelihood with error
+     */
+    public static final String THREADS_PROPERTY = "phylonco.threads";
 
     @Override
-    public TreeLikelihoodWithError generatorToBEAST(GT16ErrorModel generator, BEASTInterface value, BEASTContext context) {
+    public GenericTreeLikelihood generatorToBEAST(GT16ErrorModel generator, BEASTInterface value, BEASTContext context) {
 
         assert value instanceof beast.base.evolution.alignment.Alignment;
         beast.base.evolution.alignment.Alignment errAlignment = (beast.base.evolution.alignment.Alignment) value;
@@ -59,7 +67,7 @@ public class GT16ErrorModelToBEAST implements GeneratorToBEAST<GT16ErrorModel, T
             throw new IllegalArgumentException("Cannot find err alignment and PhyloCTMC !");
         }
 
-        TreeLikelihoodWithError treeLikelihoodWithError =
+        GenericTreeLikelihood treeLikelihoodWithError =
                 getTreeLikelihoodWithError(errAlignment, gt16ErrorModel, phyloCTMC, context);
 
         // logging
@@ -79,9 +87,16 @@ public class GT16ErrorModelToBEAST implements GeneratorToBEAST<GT16ErrorModel, T
     }
 
 
-    private TreeLikelihoodWithError getTreeLikelihoodWithError(beast.base.evolution.alignment.Alignment errAlignment,
-                                                               ErrorModel errorModel, PhyloCTMC phyloCTMC, BEASTContext context) {
-        TreeLikelihoodWithErrorFast treeLikelihoodWithError = new TreeLikelihoodWithErrorFast();
+    private GenericTreeLikelihood getTreeLikelihoodWithError(beast.base.evolution.alignment.Alignment errAlignment,
+                                                             ErrorModel errorModel, PhyloCTMC phyloCTMC, BEASTContext context) {
+        GenericTreeLikelihood treeLikelihoodWithError;
+        int threads = Integer.getInteger(THREADS_PROPERTY, -1);
+        if (threads > 1) {
+            treeLikelihoodWithError = new ThreadedTreeLikelihoodWithError();
+            treeLikelihoodWithError.setInputValue("threads", threads);
+        } else {
+            treeLikelihoodWithError = new TreeLikelihoodWithErrorFast();
+        }
 
         treeLikelihoodWithError.setInputValue("data", errAlignment);
 
@@ -107,7 +122,7 @@ public class GT16ErrorModelToBEAST implements GeneratorToBEAST<GT16ErrorModel, T
     }
 
     @Override
-    public Class<TreeLikelihoodWithError> getBEASTClass() {
-        return TreeLikelihoodWithError.class;
+    public Class<GenericTreeLikelihood> getBEASTClass() {
+        return GenericTreeLikelihood.class;
     }
 }
@@ -9,6 +9,7 @@ import lphy.core.model.GraphicalModelNode;
 import lphy.core.model.Value;
 import lphybeast.BEASTContext;
 import lphybeast.GeneratorToBEAST;
+import phylonco.beast.evolution.likelihood.ThreadedTreeLikelihoodWithError;
 import phylonco.beast.evolution.likelihood.TreeLikelihoodWithError;
 import phylonco.lphy.evolution.alignment.UnphaseGenotypeAlignment;
 
@@ -47,6 +48,8 @@ public class GTUnphaseToBEAST implements GeneratorToBEAST<UnphaseGenotypeAlignme
         // only cast if TreeLikelihoodWithError if using an error model
         if (context.getBEASTObject(errAligGenerator) instanceof TreeLikelihoodWithError) {
             treeLikelihood = (TreeLikelihoodWithError) context.getBEASTObject(errAligGenerator);
+        } else if (context.getBEASTObject(errAligGenerator) instanceof ThreadedTreeLikelihoodWithError) {
+            treeLikelihood = (ThreadedTreeLikelihoodWithError) context.getBEASTObject(errAligGenerator);
         } else {
             treeLikelihood = (ThreadedTreeLikelihood) context.getBEASTObject(errAligGenerator);
         }